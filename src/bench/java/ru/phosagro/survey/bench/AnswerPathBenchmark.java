@@ -0,0 +1,80 @@
+package ru.phosagro.survey.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.util.Keyboards;
+import ru.phosagro.survey.util.MessageRenderer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Путь ответа на кнопку, как в Bot.handleCallback, без запросов к Telegram: чтение сессии, текст
+ * «Ваш ответ», сохранение ответа и прогресса (SQLite на временном файле), отрисовка следующего вопроса.
+ * Когда анкета пройдена, её начинает следующий респондент.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnswerPathBenchmark {
+    private BenchFixture f;
+    private long tgId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        f = new BenchFixture().services();
+        nextRespondent();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { f.close(); }
+
+    private void nextRespondent() throws Exception {
+        tgId++;
+        f.addUser(tgId);
+        f.surveyService.startSurvey(tgId, f.survey().getId());
+        f.db.setCurrentMessageId(tgId, 1);
+    }
+
+    @Benchmark
+    public String answer() throws Exception {
+        Question q = f.surveyService.currentQuestion(tgId);
+        if (q == null) { nextRespondent(); q = f.surveyService.currentQuestion(tgId); }
+        CompiledSurvey survey = f.surveyService.surveyFor(tgId);
+        Integer msgId = f.db.getCurrentMessageId(tgId);
+
+        String edited;
+        switch (q.getType()) {
+            case SINGLE -> {
+                String optId = q.getOptions().get(0).getId();
+                edited = MessageRenderer.answered(survey, q, survey.optionText(survey.ordinalOf(q.getId()), optId));
+                f.surveyService.handleCallback(tgId, "ans:" + q.getId() + ":s:" + optId);
+            }
+            case RATING_1_10 -> {
+                edited = MessageRenderer.answered(survey, q, "8");
+                f.surveyService.handleCallback(tgId, "ans:" + q.getId() + ":r:8");
+            }
+            case MULTI -> {
+                List<String> labels = List.of(q.getOptions().get(0).getText(), q.getOptions().get(1).getText());
+                edited = MessageRenderer.answeredMulti(survey, q, labels);
+                f.surveyService.commitMulti(tgId, q.getId(), labels);
+            }
+            default -> {
+                edited = MessageRenderer.answered(survey, q, "свободный ответ");
+                f.surveyService.acceptFreeText(tgId, "свободный ответ");
+            }
+        }
+
+        Question next = f.surveyService.currentQuestion(tgId);
+        if (next == null) return edited + msgId;
+        String text = MessageRenderer.question(survey, next, Set.of());
+        Keyboards.forQuestion(next, Set.of());
+        f.db.setCurrentMessageId(tgId, msgId == null ? 1 : msgId + 1);
+        return text;
+    }
+}
@@ -0,0 +1,135 @@
+package ru.phosagro.survey.bench;
+
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.service.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.List;
+
+/** Бот без Telegram: Db на временном SQLite-файле и сервисы, собранные как в Main. */
+final class BenchFixture {
+    final Path dir;
+    final String dbFile;
+    final Db db;
+    final SurveyRegistry registry;
+    StatsEngine stats;
+    FunnelTracker funnel;
+    CompletionSeries series;
+    SurveyService surveyService;
+    AdminService adminService;
+
+    BenchFixture() throws Exception {
+        dir = Files.createTempDirectory("fosagro_bench_");
+        dbFile = dir.resolve("bench.db").toString();
+        db = new Db(dbFile);
+        db.initSchema();
+        db.initPerformance();
+        registry = new SurveyRegistry(db, null, null);
+    }
+
+    /** Сервисы поверх текущего содержимого БД (после {@link #seedCompleted}). */
+    BenchFixture services() {
+        stats = new StatsEngine(db, registry);
+        stats.rebuild();
+        funnel = new FunnelTracker(db, registry);
+        funnel.rebuild();
+        series = new CompletionSeries(db, registry);
+        series.rebuild();
+        surveyService = new SurveyService(db, registry, stats, funnel, series);
+        adminService = new AdminService(db, registry, stats, funnel, series, new RawExporter(db, registry), surveyService);
+        return this;
+    }
+
+    CompiledSurvey survey() { return registry.current(); }
+
+    /** Пользователь без прав админа (Db.ensureUser требует объект Telegram). */
+    void addUser(long tgId) throws Exception {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+             PreparedStatement ps = c.prepareStatement("INSERT OR IGNORE INTO users(tg_id, created_at) VALUES(?, ?)")) {
+            ps.setLong(1, tgId);
+            ps.setString(2, Instant.now().toString());
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * {@code n} завершённых анкет одной транзакцией: ответы на все вопросы анкеты по типам,
+     * варианты и баллы — по кругу, тексты — из 50 шаблонов.
+     */
+    void seedCompleted(int n) throws Exception {
+        CompiledSurvey s = survey();
+        String now = Instant.now().toString();
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbFile)) {
+            c.setAutoCommit(false);
+            try (PreparedStatement user = c.prepareStatement("INSERT INTO users(tg_id, created_at) VALUES(?, ?)", Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement resp = c.prepareStatement("INSERT INTO responses(user_id, survey_id, status, started_at, completed_at, completed_seq) VALUES(?, ?, 'COMPLETED', ?, ?, (SELECT last FROM completion_seq WHERE id=1))", Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement seq = c.prepareStatement("UPDATE completion_seq SET last=last+1 WHERE id=1");
+                 PreparedStatement ans = c.prepareStatement("INSERT INTO answers(response_id, question_id, answer_text, option_ids_json, created_at, answer_int) VALUES(?,?,?,?,?,?)")) {
+                for (int i = 0; i < n; i++) {
+                    user.setLong(1, 1_000_000L + i);
+                    user.setString(2, now);
+                    user.executeUpdate();
+                    long userId = key(user);
+                    resp.setLong(1, userId);
+                    resp.setString(2, s.getId());
+                    resp.setString(3, now);
+                    resp.setString(4, now);
+                    seq.executeUpdate();
+                    resp.executeUpdate();
+                    long respId = key(resp);
+                    for (Question q : s.getQuestions()) {
+                        ans.setLong(1, respId);
+                        ans.setString(2, q.getId());
+                        ans.setString(5, now);
+                        ans.setNull(6, java.sql.Types.INTEGER);
+                        switch (q.getType()) {
+                            case SINGLE -> { ans.setString(3, plain(q, i).getText()); ans.setString(4, null); }
+                            case RATING_1_10 -> { ans.setString(3, String.valueOf(i % 10 + 1)); ans.setString(4, null); ans.setInt(6, i % 10 + 1); }
+                            case TEXT -> { ans.setString(3, "ответ номер " + (i % 50)); ans.setString(4, null); }
+                            case MULTI -> {
+                                ans.setString(3, null);
+                                ans.setString(4, "[\"" + plain(q, i).getText().replace("\"", "\\\"") + "\",\"" + plain(q, i + 1).getText().replace("\"", "\\\"") + "\"]");
+                            }
+                        }
+                        ans.addBatch();
+                    }
+                    if (i % 1000 == 999) ans.executeBatch();
+                }
+                ans.executeBatch();
+            }
+            c.commit();
+        }
+    }
+
+    private static Option plain(Question q, int i) {
+        List<Option> opts = q.getOptions().stream().filter(o -> !o.isOther()).toList();
+        return opts.get(Math.floorMod(i, opts.size()));
+    }
+
+    private static long key(PreparedStatement ps) throws Exception {
+        try (ResultSet rs = ps.getGeneratedKeys()) { rs.next(); return rs.getLong(1); }
+    }
+
+    /** Для LoadGenerator/ReplayTool: бот ещё работает в своих потоках — удалить файлы при выходе из JVM. */
+    void closeOnExit() {
+        dir.toFile().deleteOnExit(); // удаляется последним (обратный порядок регистрации)
+        for (String suffix : new String[]{"", "-wal", "-shm", "-journal"}) new File(dbFile + suffix).deleteOnExit();
+    }
+
+    void close() {
+        File[] files = dir.toFile().listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.toFile().delete();
+    }
+}
@@ -0,0 +1,31 @@
+package ru.phosagro.survey.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.phosagro.survey.UpdateDedup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Дедупликация update_id: поток новых id с ~10% повторов, окно 1000 (как в Bot). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DedupBenchmark {
+    private UpdateDedup dedup;
+    private int next;
+
+    @Setup
+    public void setup() {
+        dedup = new UpdateDedup(1000);
+        for (next = 0; next < 1000; next++) dedup.firstTime(next);
+    }
+
+    @Benchmark
+    public boolean firstTime() {
+        int id = next % 10 == 0 ? next - 7 : next;
+        next++;
+        return dedup.firstTime(id);
+    }
+}
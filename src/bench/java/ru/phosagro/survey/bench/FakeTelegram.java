@@ -0,0 +1,325 @@
+package ru.phosagro.survey.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Локальная замена Telegram Bot API для нагрузочного теста: getUpdates (с long polling по timeout),
+ * sendMessage, editMessageText, answerCallbackQuery, sendDocument; прочие методы отвечают {@code true}.
+ * Бот подключается через TELEGRAM_API_URL = {@link #apiUrl()}.
+ *
+ * <p>На каждый вызов, кроме getUpdates, — задержка {@code latencyMs + [0, jitterMs)} и с вероятностью
+ * {@code p429} ответ 429 «Too Many Requests» (как у Telegram при превышении лимитов).
+ *
+ * <p>Апдейты кладёт {@link LoadGenerator}; сервер запоминает по чатам последнее доставленное сообщение
+ * (с клавиатурой) и события «бот закончил обработку»: отправку сообщения и ответ на callback.
+ */
+final class FakeTelegram implements AutoCloseable {
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final HttpServer server;
+    private final long latencyMs, jitterMs;
+    private final double p429;
+
+    private final ArrayDeque<Pending> updates = new ArrayDeque<>(); // под this
+    private int nextUpdateId = 1;
+    private int confirmed;                                           // offset последнего getUpdates
+    private volatile boolean polled;
+    private final AtomicInteger nextMessageId = new AtomicInteger(1);
+    private final Map<Long,Chat> chats = new ConcurrentHashMap<>();
+    private final Map<String,LongAdder> calls = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    FakeTelegram(int port, long latencyMs, long jitterMs, double p429) throws IOException {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.p429 = p429;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor()); // getUpdates висит до timeout
+        server.start();
+    }
+
+    String apiUrl() { return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot"; }
+
+    /** Бот хотя бы раз забрал апдейты (для внешнего бота — он подключился). */
+    boolean polled() { return polled; }
+
+    @Override public void close() { server.stop(0); }
+
+    /* ===== апдейты от «пользователей» ===== */
+
+    void pushText(long chatId, String text) {
+        ObjectNode msg = message(nextMessageId.getAndIncrement(), chatId);
+        msg.set("from", user(chatId));
+        msg.put("text", text);
+        push("message", msg);
+    }
+
+    void pushCallback(long chatId, int messageId, String callbackId, String data) {
+        ObjectNode cb = JSON.createObjectNode();
+        cb.put("id", callbackId);
+        cb.set("from", user(chatId));
+        cb.put("chat_instance", String.valueOf(chatId));
+        cb.put("data", data);
+        cb.set("message", message(messageId, chatId));
+        push("callback_query", cb);
+    }
+
+    private synchronized void push(String field, ObjectNode body) {
+        ObjectNode u = JSON.createObjectNode();
+        u.put("update_id", nextUpdateId);
+        u.set(field, body);
+        updates.add(new Pending(nextUpdateId++, u.toString()));
+        notifyAll();
+    }
+
+    /** Апдейт из записи как есть, со своим update_id (идут по возрастанию). */
+    synchronized void pushRaw(int updateId, String json) {
+        updates.add(new Pending(updateId, json));
+        nextUpdateId = Math.max(nextUpdateId, updateId + 1);
+        notifyAll();
+    }
+
+    /** Апдейты, ещё не подтверждённые ботом. */
+    synchronized int pending() { return updates.size(); }
+
+    /** Ждать, пока бот не подтвердит (offset следующего getUpdates) апдейт {@code updateId}. */
+    synchronized boolean awaitConfirmed(int updateId, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (confirmed <= updateId) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    private record Pending(int id, String json) {}
+
+    Chat chat(long chatId) { return chats.computeIfAbsent(chatId, k -> new Chat()); }
+
+    /** Что видит пользователь в чате и что бот успел сделать по его действиям. */
+    static final class Chat {
+        int messageId;       // последнее отправленное ботом сообщение
+        String text;
+        JsonNode markup;     // inline-клавиатура или null
+        long sends;          // вызовы sendMessage (в т.ч. отклонённые 429) — бот закончил ответ на текст
+        final Set<String> acked = new HashSet<>(); // callback id, на которые бот вызвал answerCallbackQuery
+
+        synchronized long sends() { return sends; }
+
+        /** Ждать, пока бот не вызовет sendMessage после {@code after}-го; false — по таймауту. */
+        synchronized boolean awaitSend(long after, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (sends <= after) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized boolean awaitAck(String callbackId, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!acked.remove(callbackId)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+    }
+
+    /** Счётчики вызовов по методам и число ответов 429. */
+    Map<String,Long> calls() {
+        Map<String,Long> out = new TreeMap<>();
+        calls.forEach((k, v) -> out.put(k, v.sum()));
+        return out;
+    }
+
+    long rejected() { return rejected.sum(); }
+
+    /* ===== HTTP ===== */
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            String path = ex.getRequestURI().getPath();         // /bot<token>/<method>
+            String method = path.substring(path.lastIndexOf('/') + 1);
+            calls.computeIfAbsent(method, k -> new LongAdder()).increment();
+            byte[] body = ex.getRequestBody().readAllBytes();
+            String ct = ex.getRequestHeaders().getFirst("Content-Type");
+            Map<String,String> p = ct != null && ct.startsWith("multipart/")
+                    ? multipart(body, ct) : form(new String(body, StandardCharsets.UTF_8));
+
+            if ("getUpdates".equals(method)) {
+                polled = true;
+                reply(ex, 200, "{\"ok\":true,\"result\":" + getUpdates(p) + "}");
+                return;
+            }
+
+            long delay = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs) : 0);
+            if (delay > 0) Thread.sleep(delay);
+            boolean reject = p429 > 0 && ThreadLocalRandom.current().nextDouble() < p429;
+            if (reject) rejected.increment();
+
+            String result = switch (method) {
+                case "sendMessage", "sendDocument" -> send(p, reject, "sendDocument".equals(method));
+                case "editMessageText" -> edit(p, reject);
+                case "answerCallbackQuery" -> ack(p);
+                default -> "true";
+            };
+            if (reject) reply(ex, 429, "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after 1\",\"parameters\":{\"retry_after\":1}}");
+            else reply(ex, 200, "{\"ok\":true,\"result\":" + result + "}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Подтверждение всего до offset, пачка до limit, ожидание до timeout секунд, если пусто. */
+    private synchronized String getUpdates(Map<String,String> p) throws InterruptedException {
+        int offset = intParam(p, "offset", 0), limit = intParam(p, "limit", 100), timeout = intParam(p, "timeout", 0);
+        while (!updates.isEmpty() && updates.peekFirst().id() < offset) updates.pollFirst();
+        if (offset > confirmed) { confirmed = offset; notifyAll(); }
+        long deadline = System.currentTimeMillis() + timeout * 1000L;
+        while (updates.isEmpty()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) break;
+            wait(left);
+        }
+        StringBuilder sb = new StringBuilder("[");
+        int n = 0;
+        for (Pending u : updates) {
+            if (n++ == Math.max(1, Math.min(limit, 100))) break;
+            if (n > 1) sb.append(',');
+            sb.append(u.json());
+        }
+        return sb.append(']').toString();
+    }
+
+    private String send(Map<String,String> p, boolean reject, boolean document) throws IOException {
+        long chatId = Long.parseLong(p.getOrDefault("chat_id", "0"));
+        int id = nextMessageId.getAndIncrement();
+        Chat c = chat(chatId);
+        synchronized (c) {
+            if (!reject && !document) {
+                c.messageId = id;
+                c.text = p.get("text");
+                c.markup = markup(p);
+            }
+            c.sends++;
+            c.notifyAll();
+        }
+        ObjectNode m = message(id, chatId);
+        if (document) m.putObject("document").put("file_id", "doc" + id).put("file_unique_id", "doc" + id);
+        else m.put("text", p.getOrDefault("text", ""));
+        return m.toString();
+    }
+
+    private String edit(Map<String,String> p, boolean reject) throws IOException {
+        long chatId = Long.parseLong(p.getOrDefault("chat_id", "0"));
+        int id = intParam(p, "message_id", 0);
+        Chat c = chat(chatId);
+        if (!reject) {
+            synchronized (c) {
+                if (c.messageId == id) { c.text = p.get("text"); c.markup = markup(p); }
+            }
+        }
+        ObjectNode m = message(id, chatId);
+        m.put("text", p.getOrDefault("text", ""));
+        return m.toString();
+    }
+
+    /** Вызов answerCallbackQuery — последний шаг обработки callback в боте; отмечаем и при 429. */
+    private String ack(Map<String,String> p) {
+        String id = p.get("callback_query_id");
+        if (id != null) {
+            int sep = id.indexOf(':');
+            Chat c = chat(sep > 0 ? Long.parseLong(id.substring(0, sep)) : 0);
+            synchronized (c) { c.acked.add(id); c.notifyAll(); }
+        }
+        return "true";
+    }
+
+    /* ===== разбор запроса и JSON ===== */
+
+    private static JsonNode markup(Map<String,String> p) throws IOException {
+        String m = p.get("reply_markup");
+        return m == null ? null : JSON.readTree(m);
+    }
+
+    private static Map<String,String> form(String body) {
+        Map<String,String> out = new HashMap<>();
+        for (String pair : body.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String k = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            out.put(k, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    /** Только текстовые поля multipart (chat_id и т.п.); содержимое файла не нужно. */
+    private static Map<String,String> multipart(byte[] body, String contentType) {
+        Map<String,String> out = new HashMap<>();
+        String boundary = "--" + contentType.substring(contentType.indexOf("boundary=") + 9).replace("\"", "");
+        String s = new String(body, StandardCharsets.ISO_8859_1);
+        for (String part : s.split(java.util.regex.Pattern.quote(boundary))) {
+            int head = part.indexOf("\r\n\r\n");
+            if (head < 0 || part.substring(0, head).contains("filename=")) continue;
+            int n = part.indexOf("name=\"");
+            if (n < 0 || n > head) continue;
+            String name = part.substring(n + 6, part.indexOf('"', n + 6));
+            String value = part.substring(head + 4);
+            if (value.endsWith("\r\n")) value = value.substring(0, value.length() - 2);
+            out.put(name, new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    private static int intParam(Map<String,String> p, String name, int def) {
+        String v = p.get(name);
+        return v == null || v.isEmpty() ? def : Integer.parseInt(v);
+    }
+
+    private static ObjectNode message(int id, long chatId) {
+        ObjectNode m = JSON.createObjectNode();
+        m.put("message_id", id);
+        m.put("date", System.currentTimeMillis() / 1000);
+        m.putObject("chat").put("id", chatId).put("type", "private");
+        return m;
+    }
+
+    private static ObjectNode user(long id) {
+        ObjectNode u = JSON.createObjectNode();
+        u.put("id", id);
+        u.put("is_bot", false);
+        u.put("first_name", "Load");
+        u.put("username", "load_" + id);
+        return u;
+    }
+
+    private static void reply(HttpExchange ex, int status, String json) throws IOException {
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, b.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(b); }
+    }
+}
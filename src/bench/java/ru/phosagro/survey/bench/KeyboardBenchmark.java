@@ -0,0 +1,61 @@
+package ru.phosagro.survey.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+import org.openjdk.jmh.annotations.*;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.model.QuestionType;
+import ru.phosagro.survey.model.Survey;
+import ru.phosagro.survey.util.Html;
+import ru.phosagro.survey.util.Keyboards;
+import ru.phosagro.survey.util.MessageRenderer;
+
+import java.io.InputStream;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Клавиатуры вопросов, текст вопроса (то, что Bot.buildQuestionText отдаёт в sendMessage) и HTML-экранирование. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyboardBenchmark {
+    private CompiledSurvey survey;
+    private Question single, multi, rating;
+    private Set<String> selected;
+    private String plainText, specialText;
+
+    @Setup
+    public void setup() throws Exception {
+        Survey s;
+        try (InputStream in = KeyboardBenchmark.class.getResourceAsStream("/survey.json")) {
+            s = new ObjectMapper().readValue(in, Survey.class);
+        }
+        survey = new CompiledSurvey(s);
+        single = first(s, QuestionType.SINGLE);
+        multi = first(s, QuestionType.MULTI);
+        rating = first(s, QuestionType.RATING_1_10);
+        selected = new LinkedHashSet<>(List.of(multi.getOptions().get(0).getId(), multi.getOptions().get(1).getId()));
+        plainText = multi.getText();
+        specialText = "Другое: <b>свой</b> вариант & ещё " + plainText;
+    }
+
+    private static Question first(Survey s, QuestionType t) {
+        return s.getQuestions().stream().filter(q -> q.getType() == t).findFirst().orElseThrow();
+    }
+
+    @Benchmark public InlineKeyboardMarkup keyboardSingle() { return Keyboards.forQuestion(single, Set.of()); }
+    @Benchmark public InlineKeyboardMarkup keyboardMulti() { return Keyboards.forQuestion(multi, selected); }
+    @Benchmark public InlineKeyboardMarkup keyboardRating() { return Keyboards.forQuestion(rating, Set.of()); }
+
+    @Benchmark public String questionTextSingle() { return MessageRenderer.question(survey, single, null); }
+    @Benchmark public String questionTextMulti() { return MessageRenderer.question(survey, multi, selected); }
+
+    @Benchmark public String escapePlain() { return Html.escape(plainText); }
+    @Benchmark public String escapeSpecial() { return Html.escape(specialText); }
+}
@@ -0,0 +1,213 @@
+package ru.phosagro.survey.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import ru.phosagro.survey.Bot;
+import ru.phosagro.survey.UpdateRecorder;
+import ru.phosagro.survey.metrics.Metrics;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Нагрузочный тест «от апдейта до ответа»: N одновременных респондентов проходят анкету через
+ * {@link FakeTelegram} — /start, кнопка старта, ответы на вопросы по клавиатурам (случайный вариант,
+ * для MULTI — отметки до максимума, для TEXT — текстом). Задержка шага — от постановки апдейта в
+ * очередь getUpdates до момента, когда бот закончил его обработку (answerCallbackQuery для кнопок,
+ * sendMessage для текста).
+ *
+ * <pre>
+ * mvn -Pbench package
+ * java -cp target/FosAgroAnket_bot.jar ru.phosagro.survey.bench.LoadGenerator --users 200 --rounds 3 --latency 30 --jitter 20 --p429 0.01
+ * </pre>
+ * По умолчанию бот поднимается в этом же процессе на временной БД. С {@code --external --port 8081}
+ * поднимается только сервер, а бот запускается отдельно с TELEGRAM_API_URL=http://127.0.0.1:8081/bot.
+ * {@code --record <каталог>} — записать апдейты прогона для {@link ReplayTool}.
+ */
+public final class LoadGenerator {
+    private static final long SHED_PAUSE_MS = 1000;
+
+    private final FakeTelegram tg;
+    private final long thinkMs, timeoutMs;
+    private final Samples all = new Samples(), starts = new Samples(), clicks = new Samples(), texts = new Samples();
+    private final AtomicInteger completed = new AtomicInteger(), abandoned = new AtomicInteger(), stuck = new AtomicInteger();
+
+    private LoadGenerator(FakeTelegram tg, long thinkMs, long timeoutMs) {
+        this.tg = tg;
+        this.thinkMs = thinkMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> a = args(args);
+        int users = Integer.parseInt(a.getOrDefault("users", "50"));
+        int rounds = Integer.parseInt(a.getOrDefault("rounds", "1"));
+        boolean external = a.containsKey("external");
+
+        try (FakeTelegram tg = new FakeTelegram(Integer.parseInt(a.getOrDefault("port", "0")),
+                Long.parseLong(a.getOrDefault("latency", "0")), Long.parseLong(a.getOrDefault("jitter", "0")),
+                Double.parseDouble(a.getOrDefault("p429", "0")))) {
+            BenchFixture f = null;
+            if (external) {
+                System.out.println("Fake Bot API: TELEGRAM_API_URL=" + tg.apiUrl() + " — ждём подключения бота...");
+                while (!tg.polled()) Thread.sleep(200);
+            } else {
+                f = new BenchFixture().services();
+                new Bot("load", "load_bot", tg.apiUrl(), f.db, f.registry, f.surveyService, f.adminService,
+                        a.containsKey("record") ? new UpdateRecorder(Path.of(a.get("record")), 100L << 20, 1000) : null).start();
+            }
+
+            LoadGenerator gen = new LoadGenerator(tg, Long.parseLong(a.getOrDefault("think", "0")), Long.parseLong(a.getOrDefault("timeout", "10000")));
+            System.out.printf("Респондентов: %d × %d, задержка API %s+%s мс, 429: %s%n", users, rounds,
+                    a.getOrDefault("latency", "0"), a.getOrDefault("jitter", "0"), a.getOrDefault("p429", "0"));
+            long t0 = System.nanoTime();
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int u = 0; u < users; u++) {
+                    int vu = u;
+                    pool.submit(() -> {
+                        for (int r = 0; r < rounds; r++) gen.respondent(5_000_000_000L + (long) r * users + vu);
+                        return null;
+                    });
+                }
+            }
+            gen.report((System.nanoTime() - t0) / 1e9);
+            if (f != null) f.closeOnExit();
+            System.exit(0); // потоки бота не демоны; сервер не закрываем раньше — бот ещё опрашивает его
+        }
+    }
+
+    /** Один респондент от /start до финального сообщения (или до отказа после повторных зависаний). */
+    private void respondent(long chatId) throws InterruptedException {
+        FakeTelegram.Chat chat = tg.chat(chatId);
+        int seq = 0, failures = 0, before = 0;
+        String lastText = "/start";
+        boolean ok = text(chat, chatId, lastText, starts);
+        while (failures < 3) {
+            int msgId;
+            JsonNode markup;
+            String shown;
+            synchronized (chat) { msgId = chat.messageId; markup = chat.markup; shown = chat.text; }
+            if (ok && Bot.SHED_TEXT.equals(shown)) {
+                // бот перегружен и отказал в приёме текста — пауза и тот же текст ещё раз (на кнопки отказ — тост, нажимаем снова)
+                Thread.sleep(SHED_PAUSE_MS);
+                ok = text(chat, chatId, lastText, lastText.startsWith("/") ? starts : texts);
+                continue;
+            }
+            List<String> data = callbacks(markup);
+            if (ok && data.isEmpty() && msgId != before) { completed.incrementAndGet(); return; } // финальное сообщение без кнопок
+            if (!ok || data.isEmpty()) {
+                // бот не ответил или новое сообщение не дошло (429) — как живой пользователь: /restart
+                stuck.incrementAndGet();
+                failures++;
+                before = msgId;
+                ok = text(chat, chatId, lastText = "/restart", starts);
+                continue;
+            }
+            if (thinkMs > 0) Thread.sleep(thinkMs);
+
+            before = msgId;
+            String first = data.get(0);
+            if (first.equals("noop")) {
+                ok = text(chat, chatId, lastText = "Ответ нагрузочного теста " + chatId, texts);
+            } else {
+                String pick = first.startsWith("start") ? first : data.get(ThreadLocalRandom.current().nextInt(data.size()));
+                ok = click(chat, chatId, msgId, chatId + ":" + (++seq), pick);
+            }
+        }
+        abandoned.incrementAndGet();
+    }
+
+    /** callback_data кнопок сообщения; для MULTI — только ещё не отмеченные (без ✅). */
+    private static List<String> callbacks(JsonNode markup) {
+        List<String> out = new ArrayList<>();
+        if (markup == null || !markup.has("inline_keyboard")) return out;
+        for (JsonNode row : markup.get("inline_keyboard")) {
+            for (JsonNode b : row) {
+                String d = b.path("callback_data").asText("");
+                if (d.isEmpty() || d.contains(":m:") && b.path("text").asText("").startsWith("✅")) continue;
+                out.add(d);
+            }
+        }
+        return out;
+    }
+
+    private boolean click(FakeTelegram.Chat chat, long chatId, int msgId, String cbId, String data) throws InterruptedException {
+        long t0 = System.nanoTime();
+        tg.pushCallback(chatId, msgId, cbId, data);
+        boolean ok = chat.awaitAck(cbId, timeoutMs);
+        if (ok) record(clicks, t0);
+        return ok;
+    }
+
+    private boolean text(FakeTelegram.Chat chat, long chatId, String text, Samples kind) throws InterruptedException {
+        long before = chat.sends(), t0 = System.nanoTime();
+        tg.pushText(chatId, text);
+        boolean ok = chat.awaitSend(before, timeoutMs);
+        if (ok) record(kind, t0);
+        return ok;
+    }
+
+    private void record(Samples kind, long t0) {
+        long ns = System.nanoTime() - t0;
+        kind.add(ns);
+        all.add(ns);
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%nВремя: %.1f с; завершили анкету: %d, бросили: %d, зависаний: %d%n", seconds, completed.get(), abandoned.get(), stuck.get());
+        System.out.printf("Пропускная способность: %.1f шагов/с, %.2f анкет/с%n", all.size() / seconds, completed.get() / seconds);
+        System.out.println("Задержка шага, мс        n      p50      p90      p95      p99      max");
+        line("все шаги", all);
+        line("текст (/start и др.)", starts);
+        line("кнопки", clicks);
+        line("свободный ответ", texts);
+        System.out.println("Вызовы Bot API: " + tg.calls() + ", отклонено 429: " + tg.rejected());
+        System.out.printf("Отброшено при допуске (бот в этом процессе): ответы %d, /start %d, прочее %d, дорожка %d%n",
+                Metrics.SHED.get("answer"), Metrics.SHED.get("start"), Metrics.SHED.get("other"), Metrics.SHED.get("lane"));
+        System.out.printf("Сверх лимита частоты: сообщения %d, кнопки %d%n", Metrics.RATE_LIMITED.get("message"), Metrics.RATE_LIMITED.get("callback"));
+    }
+
+    private static void line(String name, Samples s) {
+        long[] v = s.sorted();
+        if (v.length == 0) { System.out.printf("%-20s %8d%n", name, 0); return; }
+        System.out.printf("%-20s %8d %8.1f %8.1f %8.1f %8.1f %8.1f%n", name, v.length,
+                pct(v, 0.50), pct(v, 0.90), pct(v, 0.95), pct(v, 0.99), v[v.length - 1] / 1e6);
+    }
+
+    private static double pct(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1)] / 1e6;
+    }
+
+    /** --key value / --flag */
+    private static Map<String,String> args(String[] args) {
+        Map<String,String> out = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) continue;
+            String k = args[i].substring(2);
+            out.put(k, i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "");
+        }
+        return out;
+    }
+
+    /** Длительности в наносекундах; массив растёт удвоением. */
+    private static final class Samples {
+        private long[] v = new long[1024];
+        private int n;
+
+        synchronized void add(long ns) {
+            if (n == v.length) v = Arrays.copyOf(v, n * 2);
+            v[n++] = ns;
+        }
+
+        synchronized int size() { return n; }
+
+        synchronized long[] sorted() {
+            long[] out = Arrays.copyOf(v, n);
+            Arrays.sort(out);
+            return out;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ru.phosagro.survey.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.model.QuestionType;
+import ru.phosagro.survey.model.Survey;
+import ru.phosagro.survey.util.MessageRenderer;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/** Сравнение MessageRenderer с прежней сборкой текста (replace-цепочка + стримы). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderBenchmark {
+    private CompiledSurvey survey;
+    private Question multi;
+    private Question single;
+    private Set<String> selected;
+    private List<String> labels;
+    private String answer;
+
+    @Setup
+    public void setup() throws Exception {
+        Survey s;
+        try (InputStream in = RenderBenchmark.class.getResourceAsStream("/survey.json")) {
+            s = new ObjectMapper().readValue(in, Survey.class);
+        }
+        survey = new CompiledSurvey(s);
+        multi = s.getQuestions().stream().filter(q -> q.getType() == QuestionType.MULTI).findFirst().orElseThrow();
+        single = s.getQuestions().stream().filter(q -> q.getType() == QuestionType.SINGLE).findFirst().orElseThrow();
+        selected = new LinkedHashSet<>(List.of(multi.getOptions().get(0).getId(), "Другое: <свой> & вариант"));
+        labels = List.of(multi.getOptions().get(0).getText(), multi.getOptions().get(1).getText(), "Другое: a<b");
+        answer = single.getOptions().get(0).getText();
+    }
+
+    @Benchmark public String legacyQuestionMulti() { return legacyQuestionText(multi, selected); }
+    @Benchmark public String rendererQuestionMulti() { return MessageRenderer.question(survey, multi, selected); }
+
+    @Benchmark public String legacyAnswered() { return legacyEscape(single.getText()) + "\n\n<b>Ваш ответ:</b> <b>" + legacyEscape(answer) + "</b>"; }
+    @Benchmark public String rendererAnswered() { return MessageRenderer.answered(survey, single, answer); }
+
+    @Benchmark public String legacyAnsweredMulti() { return legacyEscape(multi.getText()) + "\n\n<b>Ваши ответы:</b> " + legacyBoldJoin(labels); }
+    @Benchmark public String rendererAnsweredMulti() { return MessageRenderer.answeredMulti(survey, multi, labels); }
+
+    /* ===== прежняя реализация из Bot/SurveyService ===== */
+
+    private static String legacyQuestionText(Question q, Set<String> selected) {
+        StringBuilder sb = new StringBuilder(legacyEscape(q.getText()));
+        boolean hasOther = q.getOptions() != null && q.getOptions().stream().anyMatch(Option::isOther);
+        if (hasOther) sb.append("\n\nМожете написать свой вариант ответа в чат.");
+        if (q.getType() == QuestionType.MULTI) {
+            sb.append("\n\nВыбрано: ").append(selected.size()).append(" / ").append(q.getMax());
+            Map<String,String> dict = q.getOptions().stream().collect(Collectors.toMap(Option::getId, Option::getText));
+            List<String> l = new ArrayList<>();
+            for (String id : selected) l.add(id.startsWith("Другое: ") ? id : dict.getOrDefault(id, id));
+            sb.append("\n").append("Ответы: " + String.join(", ", l));
+        }
+        return sb.toString();
+    }
+
+    private static String legacyEscape(String s) {
+        if (s == null) return "";
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String legacyBoldJoin(List<String> items) {
+        return items.stream().map(RenderBenchmark::legacyEscape).map(t -> "<b>" + t + "</b>").collect(Collectors.joining(", "));
+    }
+}
@@ -0,0 +1,150 @@
+package ru.phosagro.survey.bench;
+
+import ru.phosagro.survey.Bot;
+import ru.phosagro.survey.UpdateRecorder;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.metrics.Rolling;
+
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Воспроизведение записи {@link UpdateRecorder} на чистой БД: бот работает в этом процессе против
+ * {@link FakeTelegram} без задержек, апдейты подаются как есть (с исходными update_id — дедупликация
+ * ведёт себя как в проде). Отчёт: пропускная способность, время обработки апдейта по метрикам бота
+ * и расхождения итоговой БД с эталоном (строки без автоинкрементных id, времени и message_id).
+ *
+ * <pre>
+ * java -cp target/FosAgroAnket_bot.jar ru.phosagro.survey.bench.ReplayTool --in data/recordings
+ *      [--timing original] [--speed 10] [--admin 726773708] [--compare survey.db] [--save replay.db]
+ * </pre>
+ * {@code --compare} — копия боевой БД (если запись начата с пустой базы) или результат прошлого прогона,
+ * сохранённый через {@code --save}: так сравниваются сборки на одной и той же нагрузке.
+ */
+public final class ReplayTool {
+    /** Очередь неподтверждённых апдейтов в режиме «как можно быстрее» — чтобы не читать всю запись в память. */
+    private static final int MAX_PENDING = 2000;
+
+    /** Содержимое таблиц, сравниваемое между БД: ключи — пользователи по tg_id, без служебных полей. */
+    private static final Map<String,String> TABLES = new LinkedHashMap<>();
+    static {
+        TABLES.put("users", "SELECT tg_id, is_admin FROM users");
+        TABLES.put("responses", "SELECT u.tg_id, r.survey_id, r.status FROM responses r JOIN users u ON u.id = r.user_id");
+        TABLES.put("answers", """
+                SELECT u.tg_id, r.survey_id, a.question_id, a.answer_text, a.option_ids_json, a.answer_int
+                FROM answers a JOIN responses r ON r.id = a.response_id JOIN users u ON u.id = r.user_id""");
+        TABLES.put("user_progress", """
+                SELECT u.tg_id, p.survey_id, p.current_q_index, p.awaiting_other_question_id, p.awaiting_other_option_id, p.multi_selection_json
+                FROM user_progress p JOIN users u ON u.id = p.user_id""");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> a = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) a.put(args[i].substring(2), i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "");
+        }
+        if (!a.containsKey("in")) {
+            System.err.println("Использование: ReplayTool --in <каталог или файл записи> [--timing original] [--speed N] [--admin tg_id] [--compare db] [--save db]");
+            System.exit(2);
+        }
+        boolean original = "original".equals(a.get("timing"));
+        double speed = Double.parseDouble(a.getOrDefault("speed", "1"));
+
+        BenchFixture f = new BenchFixture().services();
+        if (a.containsKey("admin")) f.db.ensureAdmin(Long.parseLong(a.get("admin")));
+        FakeTelegram tg = new FakeTelegram(0, 0, 0, 0); // не закрываем: бот опрашивает его до выхода
+        try {
+            new Bot("replay", "replay_bot", tg.apiUrl(), f.db, f.registry, f.surveyService, f.adminService, null).start();
+
+            AtomicInteger count = new AtomicInteger(), lastId = new AtomicInteger(-1);
+            AtomicLong firstAt = new AtomicLong(-1);
+            long t0 = System.nanoTime();
+            UpdateRecorder.read(Path.of(a.get("in")), e -> {
+                try {
+                    if (original) {
+                        // исходные интервалы между апдейтами (с ускорением --speed)
+                        if (firstAt.get() < 0) firstAt.set(e.atMillis());
+                        long due = (long) ((e.atMillis() - firstAt.get()) / speed) - (System.nanoTime() - t0) / 1_000_000;
+                        if (due > 0) Thread.sleep(due);
+                    } else {
+                        while (tg.pending() > MAX_PENDING) Thread.sleep(5);
+                    }
+                    int id = e.update().updateId();
+                    tg.pushRaw(id, e.json());
+                    lastId.set(Math.max(lastId.get(), id));
+                    count.incrementAndGet();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            if (lastId.get() >= 0 && !tg.awaitConfirmed(lastId.get(), 120_000)) System.err.println("Бот не подтвердил последние апдейты за 2 мин");
+            while (!f.db.journalPending().isEmpty()) Thread.sleep(20); // подтверждены = в журнале; ждём обработку
+            double sec = (System.nanoTime() - t0) / 1e9;
+
+            System.out.printf("Апдейтов: %d за %.1f с (%s) — %.1f апдейтов/с%n", count.get(), sec,
+                    original ? "исходный темп ×" + speed : "как можно быстрее", count.get() / sec);
+            Rolling.Window w = Metrics.UPDATE.window().window(5 * 60_000);
+            System.out.printf("Обработка апдейта (последние 5 мин), мс: p50 %.1f, p95 %.1f, p99 %.1f%n",
+                    w.percentileMs(0.5), w.percentileMs(0.95), w.percentileMs(0.99));
+            System.out.println("Вызовы Bot API: " + tg.calls() + ", ошибок обработки: " + Metrics.ERRORS.get("update"));
+
+            if (a.containsKey("save")) {
+                try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + f.dbFile); Statement s = c.createStatement()) {
+                    s.execute("VACUUM INTO '" + a.get("save").replace("'", "''") + "'");
+                }
+                System.out.println("БД воспроизведения сохранена: " + a.get("save"));
+            }
+            if (a.containsKey("compare")) compare(f.dbFile, a.get("compare"));
+        } finally {
+            f.closeOnExit();
+        }
+        System.exit(0); // потоки бота не демоны
+    }
+
+    /** Расхождения по таблицам: мультимножества строк, по 5 примеров с каждой стороны. */
+    private static void compare(String replayDb, String referenceDb) throws SQLException {
+        System.out.println("\nСравнение с " + referenceDb + ":");
+        boolean same = true;
+        for (var t : TABLES.entrySet()) {
+            Map<String,Integer> replay = rows(replayDb, t.getValue()), ref = rows(referenceDb, t.getValue());
+            List<String> onlyReplay = minus(replay, ref), onlyRef = minus(ref, replay);
+            int nReplay = replay.values().stream().mapToInt(Integer::intValue).sum();
+            int nRef = ref.values().stream().mapToInt(Integer::intValue).sum();
+            if (onlyReplay.isEmpty() && onlyRef.isEmpty()) {
+                System.out.printf("  %-14s совпадает (%d строк)%n", t.getKey(), nReplay);
+                continue;
+            }
+            same = false;
+            System.out.printf("  %-14s воспроизведение %d, эталон %d; только в воспроизведении %d, только в эталоне %d%n",
+                    t.getKey(), nReplay, nRef, onlyReplay.size(), onlyRef.size());
+            onlyReplay.stream().limit(5).forEach(r -> System.out.println("      + " + r));
+            onlyRef.stream().limit(5).forEach(r -> System.out.println("      - " + r));
+        }
+        System.out.println(same ? "Итог: расхождений нет" : "Итог: есть расхождения");
+    }
+
+    private static Map<String,Integer> rows(String dbFile, String sql) throws SQLException {
+        Map<String,Integer> out = new TreeMap<>();
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+             Statement s = c.createStatement(); ResultSet rs = s.executeQuery(sql)) {
+            int cols = rs.getMetaData().getColumnCount();
+            StringBuilder sb = new StringBuilder();
+            while (rs.next()) {
+                sb.setLength(0);
+                for (int i = 1; i <= cols; i++) sb.append(i > 1 ? " | " : "").append(rs.getString(i));
+                out.merge(sb.toString(), 1, Integer::sum);
+            }
+        }
+        return out;
+    }
+
+    /** Строки a, которых нет в b (с учётом кратности). */
+    private static List<String> minus(Map<String,Integer> a, Map<String,Integer> b) {
+        List<String> out = new ArrayList<>();
+        a.forEach((row, n) -> { for (int i = b.getOrDefault(row, 0); i < n; i++) out.add(row); });
+        return out;
+    }
+}
@@ -0,0 +1,54 @@
+package ru.phosagro.survey.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Админка на 1k / 10k / 100k завершённых анкет: страница статистики из среза в памяти
+ * и полная Excel-выгрузка. База наполняется один раз на параметр.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class StatsBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int respondents;
+
+    private BenchFixture f;
+    private String surveyId;
+    private int pages, page;
+    private Path xlsx;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        f = new BenchFixture();
+        f.seedCompleted(respondents);
+        f.services();
+        surveyId = f.survey().getId();
+        pages = f.adminService.statsTotalPages(surveyId);
+        xlsx = f.dir.resolve("stats.xlsx");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { f.close(); }
+
+    /** Листание страниц по кругу (0 — сводка, дальше вопросы). */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public String statsPage() {
+        page = (page + 1) % pages;
+        return f.adminService.buildStatsPage(surveyId, page);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public boolean exportStatsXlsx() {
+        return f.adminService.exportStatsXlsx(surveyId, xlsx);
+    }
+}
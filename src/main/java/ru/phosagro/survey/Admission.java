@@ -0,0 +1,193 @@
+package ru.phosagro.survey;
+
+import com.pengrad.telegrambot.model.Update;
+import ru.phosagro.survey.metrics.Histogram;
+import ru.phosagro.survey.metrics.Metrics;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Допуск апдейтов к обработчикам: очереди по приоритетам с пределами и дорожки по пользователям.
+ * Апдейты одного пользователя идут строго по порядку (дорожка в работе у одного потока), разные
+ * пользователи — параллельно на {@code workers} потоках. Свободный поток берёт дорожку, у которой
+ * первый апдейт самого высокого приоритета: ответы идущей анкеты раньше /start, /start раньше админки.
+ * Чтобы поток ответов не держал новых пользователей бесконечно, дорожка низшего приоритета, ждущая дольше
+ * {@value #MAX_STARVE_MS} мс, берётся вне очереди.
+ *
+ * <p>Переполнение очереди приоритета или дорожки пользователя — апдейт не принимается
+ * ({@link #submit} → false), вызывающий отвечает дешёвым «попробуйте через минуту».
+ * Пределы и число потоков — ADMISSION_QUEUE_ANSWER/START/OTHER, ADMISSION_LANE, UPDATE_WORKERS.
+ *
+ * <p>При остановке {@link #drain} дорабатывает принятое до дедлайна; что не успели — остаётся незакрытым
+ * в журнале апдейтов и обработается после запуска.
+ */
+public class Admission {
+    /** Порядок — приоритет. */
+    public enum Priority {
+        ANSWER("answer", 1000), START("start", 200), OTHER("other", 100);
+
+        final String label;
+        final int defaultCapacity;
+        Priority(String label, int defaultCapacity) { this.label = label; this.defaultCapacity = defaultCapacity; }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final long MAX_STARVE_MS = 1000;
+    private static final Histogram WAIT = Metrics.histogram("admission_wait_seconds", "Ожидание апдейта в очереди до обработки", "priority");
+
+    private final Consumer<Update> worker;
+    private final int[] capacity = new int[PRIORITIES.length];
+    private final int laneCapacity;
+
+    // всё ниже — под this
+    private final int[] queued = new int[PRIORITIES.length];
+    private final Map<Long,Lane> lanes = new HashMap<>();
+    private int inFlight;
+    private boolean stopping;
+    private long deadlineNanos; // при stopping: после него потоки больше ничего не берут
+    private final List<ArrayDeque<Lane>> ready = new ArrayList<>(PRIORITIES.length); // дорожки, ждущие поток, по приоритету первого апдейта
+
+    public Admission(Consumer<Update> worker) {
+        this.worker = worker;
+        for (Priority p : PRIORITIES) {
+            capacity[p.ordinal()] = env("ADMISSION_QUEUE_" + p.name(), p.defaultCapacity);
+            ready.add(new ArrayDeque<>()); // индекс = p.ordinal()
+            Metrics.gauge("admission_queued_" + p.label, "Апдейты в очереди: " + p.label, () -> { synchronized (this) { return queued[p.ordinal()]; } });
+        }
+        laneCapacity = env("ADMISSION_LANE", 20);
+        Metrics.gauge("admission_lanes", "Пользователи с апдейтами в очереди или в работе", () -> { synchronized (this) { return lanes.size(); } });
+        int workers = Math.max(1, env("UPDATE_WORKERS", 4));
+        for (int i = 0; i < workers; i++) new Thread(this::workLoop, "worker-" + i).start();
+    }
+
+    private static int env(String name, int def) {
+        String v = System.getenv().getOrDefault(name, "");
+        return v.isBlank() ? def : Integer.parseInt(v.trim());
+    }
+
+    /** Поставить в очередь; false — перегрузка, апдейт отброшен (счётчик updates_shed_total). */
+    public boolean submit(Update u) {
+        Priority p = classify(u);
+        long user = userOf(u);
+        synchronized (this) {
+            Lane lane = lanes.get(user);
+            if (queued[p.ordinal()] >= capacity[p.ordinal()] || lane != null && lane.items.size() >= laneCapacity) {
+                Metrics.SHED.inc(lane != null && lane.items.size() >= laneCapacity ? "lane" : p.label);
+                return false;
+            }
+            if (lane == null) lanes.put(user, lane = new Lane(user));
+            lane.items.add(new Item(u, p, System.nanoTime()));
+            queued[p.ordinal()]++;
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                ready.get(p.ordinal()).add(lane);
+                notify();
+            }
+        }
+        return true;
+    }
+
+    private void workLoop() {
+        while (true) {
+            Lane lane;
+            Item item;
+            synchronized (this) {
+                if (stopping && System.nanoTime() - deadlineNanos > 0) return;
+                while ((lane = nextReady()) == null) {
+                    if (stopping) return;
+                    try { wait(); } catch (InterruptedException e) { return; }
+                }
+                item = lane.items.poll();
+                queued[item.priority.ordinal()]--;
+                inFlight++;
+            }
+            WAIT.observeSince(item.priority.label, item.enqueuedNanos);
+            try {
+                worker.accept(item.update);
+            } catch (Exception e) {
+                Metrics.ERRORS.inc("worker");
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                inFlight--;
+                if (stopping) notifyAll(); // drain ждёт опустения
+                if (lane.items.isEmpty()) {
+                    lane.scheduled = false;
+                    lanes.remove(lane.user);
+                } else {
+                    ready.get(lane.items.peek().priority.ordinal()).add(lane);
+                    notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * Остановка: ждать, пока потоки доработают очереди, но не дольше {@code deadlineNanos} (System.nanoTime()).
+     * Новых апдейтов к этому моменту быть не должно (опрос остановлен). Возвращает, сколько не успели:
+     * в очередях и ещё в работе.
+     */
+    public synchronized int drain(long deadlineNanos) throws InterruptedException {
+        stopping = true;
+        this.deadlineNanos = deadlineNanos;
+        notifyAll();
+        while (inFlight + queuedTotal() > 0) {
+            long left = deadlineNanos - System.nanoTime();
+            if (left <= 0) break;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return inFlight + queuedTotal();
+    }
+
+    private int queuedTotal() {
+        int n = 0;
+        for (int q : queued) n += q;
+        return n;
+    }
+
+    private Lane nextReady() {
+        long starved = System.nanoTime() - MAX_STARVE_MS * 1_000_000;
+        for (int i = ready.size() - 1; i > 0; i--) {
+            Lane l = ready.get(i).peek(); // очереди FIFO: первая дорожка ждёт дольше всех
+            if (l != null && l.items.peek().enqueuedNanos - starved < 0) return ready.get(i).poll();
+        }
+        for (ArrayDeque<Lane> q : ready) if (!q.isEmpty()) return q.poll();
+        return null;
+    }
+
+    /** Ответы на вопросы (кнопки ans:*, свободный текст, /restart) — выше /start, /start — выше админки и прочего. */
+    static Priority classify(Update u) {
+        if (u.callbackQuery() != null) {
+            String d = u.callbackQuery().data();
+            if (d == null) return Priority.OTHER;
+            if (d.startsWith("ans:")) return Priority.ANSWER;
+            if (d.startsWith("start")) return Priority.START;
+            return Priority.OTHER;
+        }
+        if (u.message() != null) {
+            String t = u.message().text();
+            if (t == null || !t.startsWith("/")) return Priority.ANSWER;
+            if (t.regionMatches(true, 0, "/restart", 0, 8)) return Priority.ANSWER;
+            if (t.regionMatches(true, 0, "/start", 0, 6)) return Priority.START;
+        }
+        return Priority.OTHER;
+    }
+
+    static long userOf(Update u) {
+        if (u.callbackQuery() != null && u.callbackQuery().from() != null) return u.callbackQuery().from().id();
+        if (u.message() != null && u.message().from() != null) return u.message().from().id();
+        return 0;
+    }
+
+    private static final class Lane {
+        final long user;
+        final ArrayDeque<Item> items = new ArrayDeque<>();
+        boolean scheduled; // стоит в ready или в работе у потока
+
+        Lane(long user) { this.user = user; }
+    }
+
+    private record Item(Update update, Priority priority, long enqueuedNanos) {}
+}
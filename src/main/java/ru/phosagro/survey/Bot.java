@@ -1,79 +1,171 @@
 package ru.phosagro.survey;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.pengrad.telegrambot.TelegramBot;
-import com.pengrad.telegrambot.UpdatesListener;
 import com.pengrad.telegrambot.model.*;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import com.pengrad.telegrambot.model.request.InputFile;
 import com.pengrad.telegrambot.model.request.ParseMode;
 import com.pengrad.telegrambot.request.*;
 import ru.phosagro.survey.db.Db;
-import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.metrics.Trace;
+import ru.phosagro.survey.model.CompiledSurvey;
 import ru.phosagro.survey.model.Question;
 import ru.phosagro.survey.model.QuestionType;
-import ru.phosagro.survey.model.Survey;
 import ru.phosagro.survey.service.AdminService;
+import ru.phosagro.survey.service.SurveyRegistry;
 import ru.phosagro.survey.service.SurveyService;
 import ru.phosagro.survey.util.Keyboards;
+import ru.phosagro.survey.util.MessageRenderer;
 
 import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
 
 public class Bot {
-    private final TelegramBot bot;
+    private final TelegramClient bot;
     private final Db db;
     private final SurveyService surveyService;
     private final AdminService adminService;
-    private final Survey survey;
+    private final SurveyRegistry registry;
+    private final ExportJobs exports;
+    private final UpdateRecorder recorder; // null — запись апдейтов выключена
+    private UpdatePoller poller;
+    private Admission admission;
+
+    public static final String SHED_TEXT = "Сейчас много обращений — попробуйте через минуту.";
+    // ответы на отброшенные апдейты: один поток, лишние при переполнении молча теряются
+    private final ThreadPoolExecutor shedReplies = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(100), r -> { Thread t = new Thread(r, "shed-replies"); t.setDaemon(true); return t; },
+            new ThreadPoolExecutor.DiscardPolicy());
 
     // защита от двойной установки listener
     private static final AtomicBoolean LISTENER_INSTALLED = new AtomicBoolean(false);
     // дедуп апдейтов
-    private final Set<Integer> seenUpdates = java.util.Collections.newSetFromMap(
-            new java.util.LinkedHashMap<Integer, Boolean>(1024, 0.75f, true) {
-                @Override protected boolean removeEldestEntry(java.util.Map.Entry<Integer, Boolean> eldest) { return size() > 1000; }
-            });
-
-    public Bot(String token, String username, Db db, SurveyService surveyService, AdminService adminService) throws Exception {
-        this.bot = new TelegramBot(token);
+    private final UpdateDedup seenUpdates = new UpdateDedup(1000);
+    // частота событий от одного пользователя (флуд текстом, дребезг кнопок MULTI)
+    private final RateLimiter rateLimiter = RateLimiter.fromEnv();
+    private static final String STALE_TEXT = "Этот вопрос уже пройден — отвечайте на последнее сообщение.";
+    private static final String RATE_TEXT = "Слишком часто — подождите пару секунд.";
+
+    public Bot(String token, String username, String apiUrl, Db db, SurveyRegistry registry, SurveyService surveyService, AdminService adminService, UpdateRecorder recorder) {
+        this.bot = TelegramClient.create(token, apiUrl);
         this.db = db;
         this.surveyService = surveyService;
         this.adminService = adminService;
-
-        try (InputStream in = getClass().getResourceAsStream("/survey.json")) {
-            this.survey = new ObjectMapper().readValue(in, Survey.class);
-        }
-        surveyService.setSurvey(this.survey);
-
-        try { this.db.initSchema(); } catch (Throwable ignored) {}
-        try { this.db.initPerformance(); } catch (Throwable ignored) {}
+        this.registry = registry;
+        this.exports = new ExportJobs(bot, adminService);
+        this.recorder = recorder;
+        Metrics.gauge("bot_seen_updates", "Размер окна дедупликации апдейтов", seenUpdates::size);
     }
 
     public void start() {
         if (!LISTENER_INSTALLED.compareAndSet(false, true)) return;
-        bot.setUpdatesListener(updates -> {
-            try {
-                for (Update u : updates) {
-                    Integer id = u.updateId();
-                    synchronized (seenUpdates) { if (seenUpdates.contains(id)) continue; seenUpdates.add(id); }
-                    if (u.message() != null) handleMessage(u.message());
-                    else if (u.callbackQuery() != null) handleCallback(u.callbackQuery());
-                }
-            } catch (Exception ex) { ex.printStackTrace(); }
-            return UpdatesListener.CONFIRMED_UPDATES_ALL;
+        // апдейты разных пользователей — параллельно, одного — по порядку; при перегрузке лишнее отбрасывается
+        admission = new Admission(u -> {
+            try { process(u); } finally { poller.finished(u); }
+        });
+        // свой long polling: следующая пачка запрашивается, пока обрабатывается текущая
+        poller = new UpdatePoller(bot, db, updates -> {
+            if (recorder != null) recorder.record(updates);
+            for (Update u : updates) {
+                if (!seenUpdates.firstTime(u.updateId())) { poller.finished(u); continue; }
+                if (!admission.submit(u)) { shed(u); poller.finished(u); }
+            }
+        });
+        poller.start();
+    }
+
+    /**
+     * Остановка по сигналу: не брать новых апдейтов, доработать принятые и выгрузки до {@code deadlineNanos}
+     * (System.nanoTime()). Не успевшие апдейты остаются в журнале и обработаются после запуска.
+     * Возвращает отчёт для лога.
+     */
+    public String shutdown(long deadlineNanos) throws InterruptedException {
+        if (poller == null) return "бот не запущен";
+        int undispatched = poller.stop();
+        int unfinished = admission.drain(deadlineNanos);
+        poller.syncJournal();
+        int exportsCut = exports.shutdown(deadlineNanos);
+        shedReplies.shutdown();
+        if (recorder != null) recorder.close();
+        return "не доработано апдейтов " + unfinished + ", не роздано " + undispatched + " (остались в журнале)"
+                + "; выгрузок прервано " + exportsCut;
+    }
+
+    private void process(Update u) {
+        long t0 = System.nanoTime();
+        String route = route(u);
+        Trace.begin(u.updateId(), route);
+        try {
+            if (u.message() != null) { Metrics.UPDATES.inc("message"); handleMessage(u.message()); }
+            else if (u.callbackQuery() != null) { Metrics.UPDATES.inc("callback"); handleCallback(u.callbackQuery()); }
+            else Metrics.UPDATES.inc("other");
+        } catch (Exception ex) {
+            Metrics.ERRORS.inc("update");
+            ex.printStackTrace(); // сбой одного апдейта не должен ронять остальные
+        } finally {
+            Metrics.UPDATE.observeSince(route, t0);
+            Trace.end();
+        }
+    }
+
+    /** Отброшенный при перегрузке апдейт: тост на кнопку или короткое сообщение, в фоне и без гарантий. */
+    private void shed(Update u) {
+        shedReplies.execute(() -> {
+            if (u.callbackQuery() != null) bot.execute(new AnswerCallbackQuery(u.callbackQuery().id()).text(SHED_TEXT));
+            else if (u.message() != null) bot.execute(new SendMessage(u.message().chat().id(), SHED_TEXT));
         });
     }
 
+    /** Маршрут апдейта для метрик: команда / вид ответа / раздел админки (фиксированный набор строк). */
+    static String route(Update u) {
+        if (u.message() != null) {
+            String t = u.message().text();
+            if (t == null || !t.startsWith("/")) return "message:text";
+            int sp = t.indexOf(' ');
+            return switch (sp < 0 ? t.toLowerCase(Locale.ROOT) : t.substring(0, sp).toLowerCase(Locale.ROOT)) {
+                case "/start" -> "cmd:start";
+                case "/restart" -> "cmd:restart";
+                case "/resetme" -> "cmd:resetme";
+                case "/admin" -> "cmd:admin";
+                case "/adminadd" -> "cmd:adminadd";
+                case "/find" -> "cmd:find";
+                case "/crosstab" -> "cmd:crosstab";
+                case "/user" -> "cmd:user";
+                case "/perf" -> "cmd:perf";
+                default -> "cmd:other";
+            };
+        }
+        if (u.callbackQuery() != null) {
+            String d = u.callbackQuery().data();
+            if (d == null) return "cb:empty";
+            if (d.startsWith("ans:")) {
+                int k = d.indexOf(':', 4);
+                char kind = k > 0 && k + 1 < d.length() ? d.charAt(k + 1) : '?';
+                return switch (kind) {
+                    case 's' -> "cb:answer_single";
+                    case 'r' -> "cb:answer_rating";
+                    case 'm' -> "cb:answer_multi";
+                    default -> "cb:answer_other";
+                };
+            }
+            if (d.startsWith("admin:")) return d.startsWith("admin:stats") ? "cb:admin_stats" : "cb:admin";
+            if (d.startsWith("start")) return "cb:start";
+            return "cb:other";
+        }
+        return "other";
+    }
+
     /* ========================= messages ========================= */
 
     private void handleMessage(Message msg) {
+        if (msg.from() != null && !rateLimiter.tryAcquire(msg.from().id())) { Metrics.RATE_LIMITED.inc("message"); return; } // молча, без БД
         long chatId = msg.chat().id();
         User tgUser = msg.from();
         String text = msg.text() != null ? msg.text().trim() : "";
@@ -91,33 +183,36 @@ public class Bot {
                 return;
             } else {
                 // TEXT или SINGLE с «Другое»: редактируем текущее сообщение → "Ваш ответ: …", затем следующий вопрос
-                editCurrentToAnswer(chatId, tgUser.id(), q, text);
+                CompiledSurvey survey = surveyService.surveyFor(tgUser.id());
+                editCurrentToAnswer(chatId, tgUser.id(), survey, q, text);
                 // сохранить ответ и перейти дальше
                 String resp = surveyService.acceptFreeText(tgUser.id(), text); // это продвинет индекс/завершит
                 Question next = surveyService.currentQuestion(tgUser.id());
                 if (next != null) sendNewQuestion(chatId, tgUser.id(), next);
-                else if (surveyService.isCompleted(tgUser.id())) bot.execute(new SendMessage(chatId, survey.getFinish()));
+                else if (surveyService.isCompleted(tgUser.id(), survey.getId())) bot.execute(new SendMessage(chatId, survey.getFinish()));
                 if (resp != null && !resp.isBlank()) bot.execute(new SendMessage(chatId, resp));
                 return;
             }
         }
 
         // команды
-        if ("/start".equalsIgnoreCase(text)) {
-            if (surveyService.userCompleted(tgUser.id())) { bot.execute(new SendMessage(chatId, "Вы уже проходили анкетирование. Спасибо!")); return; }
-            InlineKeyboardMarkup kb = Keyboards.startKeyboard(survey.getStartButton());
-            bot.execute(new SendMessage(chatId, survey.getWelcome()).replyMarkup(kb));
+        // /start или deep-link /start <survey_id>
+        if ("/start".equalsIgnoreCase(text) || text.regionMatches(true, 0, "/start ", 0, 7)) {
+            CompiledSurvey target = surveyByPayload(text.length() > 6 ? text.substring(6).trim() : "");
+            if (surveyService.userCompleted(tgUser.id(), target.getId())) { bot.execute(new SendMessage(chatId, "Вы уже проходили анкетирование. Спасибо!")); return; }
+            sendWelcome(chatId, target);
             return;
         }
 
         if ("/restart".equalsIgnoreCase(text)) {
-            if (surveyService.userCompleted(tgUser.id())) { bot.execute(new SendMessage(chatId, "Вы уже проходили анкетирование. Спасибо!")); return; }
             if (db.inDraft(tgUser.id())) {
                 Question q = surveyService.currentQuestion(tgUser.id());
                 if (q != null) resendCurrent(chatId, tgUser.id(), q);
-                else bot.execute(new SendMessage(chatId, survey.getWelcome()).replyMarkup(Keyboards.startKeyboard(survey.getStartButton())));
+                else sendWelcome(chatId, surveyService.surveyFor(tgUser.id()));
+            } else if (surveyService.userCompleted(tgUser.id(), registry.defaultId())) {
+                bot.execute(new SendMessage(chatId, "Вы уже проходили анкетирование. Спасибо!"));
             } else {
-                bot.execute(new SendMessage(chatId, survey.getWelcome()).replyMarkup(Keyboards.startKeyboard(survey.getStartButton())));
+                sendWelcome(chatId, survey());
             }
             return;
         }
@@ -126,10 +221,12 @@ public class Bot {
             if (!db.isAdmin(tgUser.id())) { bot.execute(new SendMessage(chatId, "Доступ запрещён.")); return; }
             try (Connection c = DriverManager.getConnection("jdbc:sqlite:data/survey.db")) {
                 c.setAutoCommit(false);
+                try (PreparedStatement ps = c.prepareStatement("DELETE FROM answers_fts WHERE rowid IN (SELECT a.id FROM answers a JOIN responses r ON r.id=a.response_id JOIN users u ON u.id=r.user_id WHERE u.tg_id=?)")) { ps.setLong(1, tgUser.id()); ps.executeUpdate(); }
                 try (PreparedStatement ps = c.prepareStatement("DELETE FROM answers WHERE response_id IN (SELECT r.id FROM responses r JOIN users u ON u.id=r.user_id WHERE u.tg_id=?)")) { ps.setLong(1, tgUser.id()); ps.executeUpdate(); }
                 try (PreparedStatement ps = c.prepareStatement("DELETE FROM responses WHERE user_id IN (SELECT id FROM users WHERE tg_id=?)")) { ps.setLong(1, tgUser.id()); ps.executeUpdate(); }
                 try (PreparedStatement ps = c.prepareStatement("DELETE FROM user_progress WHERE user_id IN (SELECT id FROM users WHERE tg_id=?)")) { ps.setLong(1, tgUser.id()); ps.executeUpdate(); }
                 c.commit();
+                adminService.userReset(tgUser.id());
                 bot.execute(new SendMessage(chatId, "Ваши ответы и прогресс очищены. Введите /start для нового прохождения."));
             } catch (Exception e) { e.printStackTrace(); bot.execute(new SendMessage(chatId, "Ошибка при очистке: " + e.getMessage())); }
             return;
@@ -145,7 +242,25 @@ public class Bot {
 
         if ("/admin".equalsIgnoreCase(text)) {
             String res = adminService.openAdminPanel(tgUser.id());
-            bot.execute(new SendMessage(chatId, res).replyMarkup(Keyboards.adminMenu()));
+            bot.execute(new SendMessage(chatId, res).replyMarkup(adminMenu(tgUser.id())));
+            return;
+        }
+
+        if ("/perf".equalsIgnoreCase(text)) {
+            bot.execute(new SendMessage(chatId, adminService.buildPerf(tgUser.id())).replyMarkup(adminMenu(tgUser.id())));
+            return;
+        }
+
+        if (text.startsWith("/find")) {
+            String query = text.length() > 5 ? text.substring(5).trim() : "";
+            sendFindPage(chatId, tgUser.id(), query.isEmpty() ? "" : query, 0);
+            return;
+        }
+
+        if (text.startsWith("/crosstab")) {
+            String[] parts = text.split("\\s+");
+            if (parts.length < 3) { bot.execute(new SendMessage(chatId, "Использование: /crosstab <id вопроса> <id вопроса>")); return; }
+            bot.execute(new SendMessage(chatId, adminService.buildCrosstab(tgUser.id(), parts[1], parts[2])));
             return;
         }
 
@@ -158,17 +273,22 @@ public class Bot {
         }
 
         // прочий текст
-        if (surveyService.userCompleted(tgUser.id())) { bot.execute(new SendMessage(chatId, "Опрос завершён. Спасибо!")); return; }
         if (db.inDraft(tgUser.id())) {
             Question q = surveyService.currentQuestion(tgUser.id());
             if (q != null) { resendCurrent(chatId, tgUser.id(), q); return; }
         }
+        if (surveyService.userCompleted(tgUser.id(), registry.defaultId())) { bot.execute(new SendMessage(chatId, "Опрос завершён. Спасибо!")); return; }
         bot.execute(new SendMessage(chatId, "Пожалуйста, используйте кнопки ниже. Если они исчезли — введите /restart."));
     }
 
     /* ========================= callbacks ========================= */
 
     private void handleCallback(CallbackQuery cb) {
+        if (!rateLimiter.tryAcquire(cb.from().id())) {
+            Metrics.RATE_LIMITED.inc("callback");
+            bot.execute(new AnswerCallbackQuery(cb.id()).text(RATE_TEXT)); // снять «часики» с кнопки, без БД
+            return;
+        }
         long chatId = cb.message().chat().id();
         long uid = cb.from().id();
         String data = cb.data();
@@ -178,13 +298,14 @@ public class Bot {
         }
 
         // ==== Старт анкеты ====
-        if ("start".equals(data)) {
-            if (surveyService.userCompleted(uid)) {
+        if ("start".equals(data) || data.startsWith("start:")) {
+            CompiledSurvey target = surveyByPayload(data.length() > 6 ? data.substring(6) : "");
+            if (surveyService.userCompleted(uid, target.getId())) {
                 bot.execute(new SendMessage(chatId, "Вы уже проходили анкетирование. Спасибо!"));
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
             }
-            surveyService.startSurvey(uid);
+            surveyService.startSurvey(uid, target.getId());
             Question q = surveyService.currentQuestion(uid);
             if (q != null) sendNewQuestion(chatId, uid, q);
             bot.execute(new AnswerCallbackQuery(cb.id()));
@@ -197,18 +318,29 @@ public class Bot {
             // Вернуться в админ-панель
             if ("admin:menu".equals(data)) {
                 String res = adminService.openAdminPanel(uid);
-                bot.execute(new SendMessage(chatId, res).replyMarkup(Keyboards.adminMenu()));
+                bot.execute(new SendMessage(chatId, res).replyMarkup(adminMenu(uid)));
+                bot.execute(new AnswerCallbackQuery(cb.id()));
+                return;
+            }
+
+            // Переключить анкету, с которой работает админ
+            if (data.startsWith("admin:survey:")) {
+                if (db.isAdmin(uid) && adminService.selectSurvey(uid, data.substring("admin:survey:".length()))) {
+                    String res = adminService.openAdminPanel(uid);
+                    bot.execute(new SendMessage(chatId, res).replyMarkup(adminMenu(uid)));
+                }
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
             }
 
             // Общая статистика (постранично: 0 — "Завершили опрос", дальше — вопросы)
             if ("admin:stats".equals(data)) {
-                int totalPages = adminService.statsTotalPages();
-                String page0 = adminService.buildStatsPage(0);
+                String surveyId = adminService.selectedSurvey(uid).getId();
+                int totalPages = adminService.statsTotalPages(surveyId);
+                String page0 = adminService.buildStatsPage(surveyId, 0);
                 bot.execute(new SendMessage(chatId, page0));
                 if (totalPages > 1) {
-                    String page1 = adminService.buildStatsPage(1);
+                    String page1 = adminService.buildStatsPage(surveyId, 1);
                     sendPagedStats(chatId, page1, 1, totalPages);
                 }
                 bot.execute(new AnswerCallbackQuery(cb.id()));
@@ -219,9 +351,10 @@ public class Bot {
             if (data.startsWith("admin:stats:next:")) {
                 try {
                     int pageIndex = Integer.parseInt(data.substring("admin:stats:next:".length()));
-                    int totalPages = adminService.statsTotalPages();
+                    String surveyId = adminService.selectedSurvey(uid).getId();
+                    int totalPages = adminService.statsTotalPages(surveyId);
                     if (pageIndex >= 1 && pageIndex < totalPages) {
-                        String page = adminService.buildStatsPage(pageIndex);
+                        String page = adminService.buildStatsPage(surveyId, pageIndex);
                         sendPagedStats(chatId, page, pageIndex, totalPages);
                     }
                 } catch (Exception ignored) {}
@@ -231,7 +364,7 @@ public class Bot {
 
             // Пользователи: страница 1
             if ("admin:users".equals(data)) {
-                sendUsersPage(chatId, 0);
+                sendUsersPage(chatId, uid, 0);
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
             }
@@ -240,7 +373,7 @@ public class Bot {
             if (data.startsWith("admin:users:page:")) {
                 try {
                     int idx = Integer.parseInt(data.substring("admin:users:page:".length()));
-                    sendUsersPage(chatId, idx);
+                    sendUsersPage(chatId, uid, idx);
                 } catch (Exception ignored) {}
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
@@ -252,29 +385,48 @@ public class Bot {
                     bot.execute(new AnswerCallbackQuery(cb.id()).text("Доступ запрещён."));
                     return;
                 }
-                byte[] xlsx = adminService.exportStatsXlsx();
-                if (xlsx == null || xlsx.length == 0) {
-                    bot.execute(new SendMessage(chatId, "Не удалось сформировать Excel."));
-                } else {
-                    java.io.File tmp = null;
-                    try {
-                        tmp = java.io.File.createTempFile("fosagro_stats_", ".xlsx");
-                        try (java.io.FileOutputStream fos = new java.io.FileOutputStream(tmp)) {
-                            fos.write(xlsx);
-                        }
-                        // Отправляем как файл
-                        SendDocument doc = new SendDocument(chatId, tmp);
-                        bot.execute(doc);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        bot.execute(new SendMessage(chatId, "Ошибка при отправке Excel: " + e.getMessage()));
-                    } finally {
-                        if (tmp != null) {
-                            // Пытаемся удалить временный файл
-                            try { if (!tmp.delete()) tmp.deleteOnExit(); } catch (Exception ignored) {}
-                        }
-                    }
+                // сборка и отправка — в фоне, чтобы не держать обработку ответов
+                exports.request(chatId, adminService.selectedSurvey(uid).getId());
+                bot.execute(new AnswerCallbackQuery(cb.id()));
+                return;
+            }
+
+            // Поиск: следующая страница последнего запроса
+            if (data.startsWith("admin:find:")) {
+                try { sendFindPage(chatId, uid, null, Integer.parseInt(data.substring("admin:find:".length()))); }
+                catch (NumberFormatException ignored) {}
+                bot.execute(new AnswerCallbackQuery(cb.id()));
+                return;
+            }
+
+            // Производительность: скользящие окна метрик процесса
+            if ("admin:perf".equals(data)) {
+                bot.execute(new SendMessage(chatId, adminService.buildPerf(uid)).replyMarkup(adminMenu(uid)));
+                bot.execute(new AnswerCallbackQuery(cb.id()));
+                return;
+            }
+
+            // Воронка незавершённых анкет
+            if ("admin:funnel".equals(data)) {
+                bot.execute(new SendMessage(chatId, adminService.buildFunnel(uid)).replyMarkup(adminMenu(uid)));
+                bot.execute(new AnswerCallbackQuery(cb.id()));
+                return;
+            }
+
+            // Кросс-таблицы, объявленные в анкете
+            if ("admin:crosstab".equals(data)) {
+                for (String part : adminService.buildCrosstabs(uid)) bot.execute(new SendMessage(chatId, part));
+                bot.execute(new AnswerCallbackQuery(cb.id()));
+                return;
+            }
+
+            // Сырые ответы: строка на респондента (CSV + колоночный файл в zip)
+            if ("admin:raw".equals(data)) {
+                if (!db.isAdmin(uid)) {
+                    bot.execute(new AnswerCallbackQuery(cb.id()).text("Доступ запрещён."));
+                    return;
                 }
+                exports.request(chatId, adminService.selectedSurvey(uid).getId(), ExportJobs.Kind.RAW);
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
             }
@@ -282,7 +434,7 @@ public class Bot {
             // Фоллбек для прочих admin:* (если есть)
             String res = adminService.handleAdminCallback(uid, data);
             if (res != null && !res.isBlank() && !"__MULTI__".equals(res) && !"__USERS__".equals(res)) {
-                bot.execute(new SendMessage(chatId, res).replyMarkup(Keyboards.adminMenu()));
+                bot.execute(new SendMessage(chatId, res).replyMarkup(adminMenu(uid)));
             }
             bot.execute(new AnswerCallbackQuery(cb.id()));
             return;
@@ -298,11 +450,17 @@ public class Bot {
             String qId = parts[1];
             String kind = parts[2];
 
-            Question q = findQuestionById(qId);
+            CompiledSurvey survey = surveyService.surveyFor(uid); // версия, на которой начата сессия
+            Question q = survey.findQuestion(qId);
             if (q == null) {
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
             }
+            // кнопка старого сообщения (или вопроса другой ветки): ответ ушёл бы не тому вопросу
+            if (!surveyService.isCurrentQuestion(uid, qId)) {
+                bot.execute(new AnswerCallbackQuery(cb.id()).text(STALE_TEXT));
+                return;
+            }
 
             // SINGLE или RATING: редактируем сообщение → "Ваш ответ: <b>...</b>", фиксируем, показываем следующий вопрос
             if ("s".equals(kind) || "r".equals(kind)) {
@@ -311,14 +469,11 @@ public class Bot {
                 if ("r".equals(kind)) {
                     chosen = parts[3];
                 } else {
-                    String optId = parts[3];
-                    Optional<Option> op = q.getOptions().stream().filter(o -> o.getId().equals(optId)).findFirst();
-                    chosen = op.map(Option::getText).orElse(optId);
+                    chosen = survey.optionText(survey.ordinalOf(q.getId()), parts[3]);
                 }
 
                 if (msgId != null) {
-                    String txt = escapeHtml(q.getText()) + "\n\n<b>Ваш ответ:</b> <b>" + escapeHtml(chosen) + "</b>";
-                    bot.execute(new EditMessageText(chatId, msgId, txt).parseMode(ParseMode.HTML));
+                    bot.execute(new EditMessageText(chatId, msgId, MessageRenderer.answered(survey, q, chosen)).parseMode(ParseMode.HTML));
                 }
 
                 // Бизнес-логика
@@ -327,7 +482,7 @@ public class Bot {
                 // Следующий вопрос (или завершение)
                 Question next = surveyService.currentQuestion(uid);
                 if (next != null) sendNewQuestion(chatId, uid, next);
-                else if (surveyService.isCompleted(uid)) bot.execute(new SendMessage(chatId, survey.getFinish()));
+                else if (surveyService.isCompleted(uid, survey.getId())) bot.execute(new SendMessage(chatId, survey.getFinish()));
 
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
@@ -357,10 +512,10 @@ public class Bot {
                 if (selected.size() < max) {
                     db.saveProgress(uid, (int)prog.get("current_q_index"), null, null, selected);
                     if (msgId != null) {
-                        String newText = buildQuestionText(q, uid); // уже HTML + "Ваши ответы:"
-                        EditMessageText emt = new EditMessageText(chatId, msgId, newText)
+                        Set<String> sel = new LinkedHashSet<>(selected);
+                        EditMessageText emt = new EditMessageText(chatId, msgId, MessageRenderer.question(survey, q, sel)) // уже HTML + "Ответы:"
                                 .parseMode(ParseMode.HTML)
-                                .replyMarkup(Keyboards.forQuestion(q, surveyService.getMultiSelected(uid, q.getId())));
+                                .replyMarkup(Keyboards.forQuestion(q, sel));
                         bot.execute(emt);
                     }
                     bot.execute(new AnswerCallbackQuery(cb.id()));
@@ -368,25 +523,19 @@ public class Bot {
                 }
 
                 // Достигли max: фиксируем ответы, двигаем индекс
-                List<String> labels = selected.stream().map(s -> {
-                    Optional<Option> op = q.getOptions().stream().filter(o -> o.getId().equals(s)).findFirst();
-                    return op.map(Option::getText).orElse(s);
-                }).collect(java.util.stream.Collectors.toList());
+                List<String> labels = optionLabels(survey, q, selected);
 
-                long respId = (long) prog.get("response_id");
-                db.insertAnswer(respId, q.getId(), null, labels);
-                db.saveProgress(uid, (int)prog.get("current_q_index")+1, null, null, null);
+                surveyService.commitMulti(uid, qId, labels); // следующий вопрос — по таблице переходов
 
                 // Перерисуем текущее сообщение финальным видом
                 if (msgId != null) {
-                    String finalText = escapeHtml(q.getText()) + "\n\n<b>Ваши ответы:</b> " + boldJoin(labels);
-                    bot.execute(new EditMessageText(chatId, msgId, finalText).parseMode(ParseMode.HTML));
+                    bot.execute(new EditMessageText(chatId, msgId, MessageRenderer.answeredMulti(survey, q, labels)).parseMode(ParseMode.HTML));
                 }
 
                 // Следующий вопрос (или конец)
                 Question next = surveyService.currentQuestion(uid);
                 if (next != null) sendNewQuestion(chatId, uid, next);
-                else if (surveyService.isCompleted(uid)) bot.execute(new SendMessage(chatId, survey.getFinish()));
+                else if (surveyService.isCompleted(uid, survey.getId())) bot.execute(new SendMessage(chatId, survey.getFinish()));
 
                 bot.execute(new AnswerCallbackQuery(cb.id()));
                 return;
@@ -401,8 +550,10 @@ public class Bot {
 
     private void resendCurrent(long chatId, long uid, Question q) {
         Integer msgId = db.getCurrentMessageId(uid);
+        long r0 = System.nanoTime();
         String text = buildQuestionText(q, uid);
         InlineKeyboardMarkup kb = Keyboards.forQuestion(q, surveyService.getMultiSelected(uid, q.getId()));
+        Trace.span(Trace.RENDER, "question", r0);
         if (msgId != null) {
             bot.execute(new EditMessageText(chatId, msgId, text).parseMode(ParseMode.HTML).replyMarkup(kb));
         } else {
@@ -413,26 +564,28 @@ public class Bot {
 
     /** Отправить новый вопрос и запомнить его message_id. */
     private void sendNewQuestion(long chatId, long uid, Question q) {
+        long r0 = System.nanoTime();
         String text = buildQuestionText(q, uid);
         InlineKeyboardMarkup kb = Keyboards.forQuestion(q, surveyService.getMultiSelected(uid, q.getId()));
+        Trace.span(Trace.RENDER, "question", r0);
         var res = bot.execute(new SendMessage(chatId, text).parseMode(ParseMode.HTML).replyMarkup(kb));
         if (res != null && res.message()!=null) db.setCurrentMessageId(uid, res.message().messageId());
     }
 
     /** Редактировать текущее сообщение в «Ваш ответ: …» (без клавиатуры). */
-    private void editCurrentToAnswer(long chatId, long uid, Question q, String answerText) {
+    private void editCurrentToAnswer(long chatId, long uid, CompiledSurvey survey, Question q, String answerText) {
         Integer msgId = db.getCurrentMessageId(uid);
         if (msgId == null) return;
-        String text = escapeHtml(q.getText()) + "\n\n<b>Ваш ответ:</b> <b>" + escapeHtml(answerText) + "</b>";
-        bot.execute(new EditMessageText(chatId, msgId, text).parseMode(ParseMode.HTML));
+        bot.execute(new EditMessageText(chatId, msgId, MessageRenderer.answered(survey, q, answerText)).parseMode(ParseMode.HTML));
     }
 
     /** Ветвь для текстового «своего варианта» на MULTI: добавить, перерисовать, либо финализировать при достижении max. */
     private void handleFreeTextForMulti(long chatId, long uid, Question q, String textInput) {
         Map<String,Object> prog = db.loadProgress(uid);
         if (prog == null) return;
+        CompiledSurvey survey = surveyService.surveyFor(uid);
         List<String> selected = new ArrayList<>(db.getMultiSelected(uid));
-        selected.add(textInput); // без префикса
+        selected.add("Другое: " + textInput); // как в SurveyService.acceptFreeText: по префиксу ответ попадает в FTS и в «Другое» статистики
         int max = q.getMax();
 
         Integer msgId = db.getCurrentMessageId(uid);
@@ -440,65 +593,64 @@ public class Bot {
         if (selected.size() < max) {
             db.saveProgress(uid, (int)prog.get("current_q_index"), null, null, selected);
             if (msgId != null) {
-                String newText = buildMultiText(q, uid);
-                bot.execute(new EditMessageText(chatId, msgId, newText)
+                Set<String> sel = new LinkedHashSet<>(selected);
+                bot.execute(new EditMessageText(chatId, msgId, MessageRenderer.question(survey, q, sel))
                         .parseMode(ParseMode.HTML)
-                        .replyMarkup(Keyboards.forQuestion(q, surveyService.getMultiSelected(uid, q.getId()))));
+                        .replyMarkup(Keyboards.forQuestion(q, sel)));
             }
             return;
         }
 
         // reached max
-        List<String> labels = selected.stream().map(s -> {
-            Optional<Option> op = q.getOptions().stream().filter(o -> o.getId().equals(s)).findFirst();
-            return op.map(Option::getText).orElse(s);
-        }).collect(Collectors.toList());
+        List<String> labels = optionLabels(survey, q, selected);
 
-        long respId = (long) prog.get("response_id");
-        db.insertAnswer(respId, q.getId(), null, labels);
-        db.saveProgress(uid, (int)prog.get("current_q_index")+1, null, null, null);
+        surveyService.commitMulti(uid, q.getId(), labels);
 
         if (msgId != null) {
-            String finalText = escapeHtml(q.getText()) + "\n\n<b>Ваши ответы:</b> " + boldJoin(labels);
-            bot.execute(new EditMessageText(chatId, msgId, finalText).parseMode(ParseMode.HTML));
+            bot.execute(new EditMessageText(chatId, msgId, MessageRenderer.answeredMulti(survey, q, labels)).parseMode(ParseMode.HTML));
         }
 
         Question next = surveyService.currentQuestion(uid);
         if (next != null) sendNewQuestion(chatId, uid, next);
-        else if (surveyService.isCompleted(uid)) bot.execute(new SendMessage(chatId, survey.getFinish()));
+        else if (surveyService.isCompleted(uid, survey.getId())) bot.execute(new SendMessage(chatId, survey.getFinish()));
     }
 
     /** Текст вопроса с подсказкой и счётчиком/списком для MULTI. */
     private String buildQuestionText(Question q, long uid) {
-        StringBuilder sb = new StringBuilder(escapeHtml(q.getText()));
-        boolean hasOther = q.getOptions()!=null && q.getOptions().stream().anyMatch(Option::isOther);
-        if (hasOther) sb.append("\n\nМожете написать свой вариант ответа в чат.");
-
-        if (q.getType() == QuestionType.MULTI) {
-            sb.append("\n\nВыбрано: ")
-                    .append(surveyService.getMultiSelected(uid, q.getId()).size())
-                    .append(" / ").append(q.getMax());
-            // HTML из renderSelectedList
-            String selectedHtml = SurveyService.renderSelectedList(q, surveyService.getMultiSelected(uid, q.getId()));
-            sb.append("\n").append(selectedHtml);
-        }
-        return sb.toString();
+        Set<String> selected = q.getType() == QuestionType.MULTI ? surveyService.getMultiSelected(uid, q.getId()) : null;
+        return MessageRenderer.question(surveyService.surveyFor(uid), q, selected);
     }
 
-    /** Только для MULTI: упрощённый билд текста с актуальным списком. */
-    private String buildMultiText(Question q, long uid) {
-        return buildQuestionText(q, uid);
+    /** id выбранных вариантов -> подписи (свои варианты остаются как есть). */
+    private static List<String> optionLabels(CompiledSurvey survey, Question q, List<String> selected) {
+        int ord = survey.ordinalOf(q.getId());
+        List<String> labels = new ArrayList<>(selected.size());
+        for (String s : selected) labels.add(survey.optionText(ord, s));
+        return labels;
+    }
+
+    /** Анкета по умолчанию — там, где сессии ещё нет. */
+    private CompiledSurvey survey() { return registry.current(); }
+
+    /** Анкета из deep-link /start &lt;id&gt;; неизвестный или пустой id — анкета по умолчанию. */
+    private CompiledSurvey surveyByPayload(String payload) {
+        CompiledSurvey s = payload == null || payload.isEmpty() ? null : registry.current(payload);
+        return s != null ? s : survey();
     }
 
-    private Question findQuestionById(String qId) {
-        for (Question q : survey.getQuestions()) if (q.getId().equals(qId)) return q;
-        return null;
+    private void sendWelcome(long chatId, CompiledSurvey survey) {
+        InlineKeyboardMarkup kb = Keyboards.startKeyboard(survey.getStartButton(), survey.getId());
+        bot.execute(new SendMessage(chatId, survey.getWelcome()).replyMarkup(kb));
+    }
+
+    private InlineKeyboardMarkup adminMenu(long uid) {
+        return Keyboards.adminMenu(registry.all(), adminService.selectedSurvey(uid).getId());
     }
 
     /* ===== admin ui helpers ===== */
 
-    private void sendUsersPage(long chatId, int pageIndex) {
-        List<Long> users = adminService.listUsersPage(pageIndex);
+    private void sendUsersPage(long chatId, long uid, int pageIndex) {
+        List<Long> users = adminService.listUsersPage(adminService.selectedSurvey(uid).getId(), pageIndex);
         if (users.isEmpty()) {
             bot.execute(new SendMessage(chatId, "Нет завершённых анкет."));
             return;
@@ -511,6 +663,12 @@ public class Bot {
             bot.execute(new SendMessage(chatId, sb.toString()));
     }
 
+    private void sendFindPage(long chatId, long uid, String query, int page) {
+        SendMessage msg = new SendMessage(chatId, adminService.find(uid, query, page));
+        if (adminService.findHasPage(uid, page + 1)) msg.replyMarkup(Keyboards.adminFindNext(page + 1));
+        bot.execute(msg);
+    }
+
     private void sendPagedStats(long chatId, String fullText, int pageIndex, int totalPages) {
         List<String> chunks = splitBySize(fullText, 3800);
         for (int i = 0; i < chunks.size(); i++) {
@@ -534,20 +692,4 @@ public class Bot {
         if (cur.length() > 0) out.add(cur.toString());
         return out;
     }
-
-    /* ====== small HTML helpers ====== */
-
-    private static String escapeHtml(String s) {
-        if (s == null) return "";
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;");
-    }
-
-    private static String boldJoin(java.util.List<String> items) {
-        return items.stream()
-                .map(Bot::escapeHtml)
-                .map(t -> "<b>" + t + "</b>")
-                .collect(java.util.stream.Collectors.joining(", "));
-    }
 }
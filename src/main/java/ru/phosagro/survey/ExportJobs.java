@@ -0,0 +1,252 @@
+package ru.phosagro.survey;
+
+import com.pengrad.telegrambot.request.EditMessageText;
+import com.pengrad.telegrambot.request.SendDocument;
+import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.SendResponse;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.service.AdminService;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Выгрузки (Excel-статистика, сырые данные) в фоне: обработка апдейтов не ждёт сборку файла и загрузку.
+ * Одинаковые запросы (тот же вид, та же анкета, та же версия статистики) присоединяются к уже идущей задаче;
+ * готовый файл (и его file_id в Telegram) переиспользуется, пока не появятся новые завершения.
+ */
+public class ExportJobs {
+    private static final int WORKERS = 1;
+    private static final int QUEUE = 4;
+    private static final long PROGRESS_EVERY_MS = 1500;
+    private static final long STOP_GRACE_MS = 1000; // после срока остановки: дать прерванным потокам прибрать за собой
+
+    private final TelegramClient bot;
+    private final AdminService adminService;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong seq = new AtomicLong();
+    private final Map<String,Job> running = new HashMap<>();            // ключ: анкета@версия; под synchronized(running)
+    private boolean stopped;                                            // срок остановки вышел; под synchronized(running)
+    private final Map<String,Cached> cache = new ConcurrentHashMap<>(); // по виду и анкете — последняя выгрузка
+
+    /** Вид выгрузки. */
+    public enum Kind {
+        STATS("fosagro_stats_", ".xlsx"),
+        RAW("fosagro_raw_", ".zip");
+
+        final String prefix, suffix;
+        Kind(String prefix, String suffix) { this.prefix = prefix; this.suffix = suffix; }
+    }
+
+    public ExportJobs(TelegramClient bot, AdminService adminService) {
+        this.bot = bot;
+        this.adminService = adminService;
+        this.executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE), r -> {
+                    Thread t = new Thread(r, "export-worker");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        Metrics.gauge("export_queue_depth", "Выгрузки в очереди", () -> executor.getQueue().size());
+        Metrics.gauge("export_jobs_active", "Выгрузки в работе или в очереди", () -> { synchronized (running) { return running.size(); } });
+        Metrics.gauge("export_cache_entries", "Готовые выгрузки в кэше", cache::size);
+    }
+
+    /** Запросить выгрузку: отвечает сразу, файл придёт отдельным сообщением. */
+    public void request(long chatId, String surveyId) { request(chatId, surveyId, Kind.STATS); }
+
+    public void request(long chatId, String surveyId, Kind kind) {
+        long version = adminService.statsVersion(surveyId);
+        String cacheKey = kind + ":" + surveyId;
+        Cached c = cache.get(cacheKey);
+        boolean hit = c != null && c.version == version && resend(chatId, c);
+        Metrics.EXPORT_CACHE.record(hit);
+        if (hit) return;
+
+        String key = cacheKey + "@" + version;
+        Job job;
+        boolean created = false;
+        synchronized (running) {
+            job = running.get(key);
+            if (job == null) {
+                job = new Job(seq.incrementAndGet(), kind, surveyId, version, key);
+                running.put(key, job);
+                created = true;
+            }
+        }
+        Integer msgId = ack(chatId, created
+                ? "⏳ Выгрузка #" + job.id + " готовится…"
+                : "⏳ Выгрузка #" + job.id + " уже готовится — файл придёт сюда же.");
+        if (!job.subscribe(chatId, msgId)) {
+            // задача успела завершиться между поиском и подпиской — берём её результат из кэша
+            Cached done = cache.get(cacheKey);
+            if (done == null || done.version != version || !resend(chatId, done)) bot.execute(new SendMessage(chatId, "Не удалось сформировать выгрузку."));
+            return;
+        }
+        if (!created) return;
+
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            synchronized (running) { running.remove(key); }
+            job.editAll("Слишком много выгрузок одновременно, попробуйте через минуту.");
+        }
+    }
+
+    /**
+     * Остановка: новые выгрузки не берутся, начатые доделываются до {@code deadlineNanos} (System.nanoTime()).
+     * Потом: не начатые снимаются здесь, а идущие прерываются и снимают себя сами — не кладут файл в кэш,
+     * удаляют свой временный файл и пишут подписчикам «запросите снова». Кэш готовых (он в памяти и после
+     * рестарта не нужен) удаляется только когда потоков выгрузки больше нет. Возвращает число снятых выгрузок.
+     */
+    public int shutdown(long deadlineNanos) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        int cut;
+        synchronized (running) { stopped = true; cut = running.size(); }
+        for (Runnable r : executor.shutdownNow()) ((Job) r).cancel(); // из очереди: файла у них ещё нет
+        if (!executor.awaitTermination(STOP_GRACE_MS, TimeUnit.MILLISECONDS)) {
+            System.err.println("Export worker did not stop in time; temp files are left in place");
+            return cut;
+        }
+        for (Cached c : cache.values()) c.file.delete();
+        cache.clear();
+        return cut;
+    }
+
+    private boolean isStopped() {
+        synchronized (running) { return stopped; }
+    }
+
+    /** Повторная отправка готового файла: по file_id без загрузки, иначе — с диска. */
+    private boolean resend(long chatId, Cached c) {
+        if (c.fileId != null) {
+            SendResponse r = bot.execute(new SendDocument(chatId, c.fileId));
+            if (r != null && r.isOk()) return true;
+        }
+        if (c.file.exists()) {
+            SendResponse r = bot.execute(new SendDocument(chatId, c.file));
+            return r != null && r.isOk();
+        }
+        return false;
+    }
+
+    private Integer ack(long chatId, String text) {
+        SendResponse r = bot.execute(new SendMessage(chatId, text));
+        return r != null && r.isOk() && r.message() != null ? r.message().messageId() : null;
+    }
+
+    private final class Job implements Runnable {
+        final long id;
+        final Kind kind;
+        final String surveyId;
+        final long version;
+        final String key;
+        final List<long[]> subscribers = new ArrayList<>(); // {chatId, msgId|0}
+        long lastProgress;
+        boolean closed;
+
+        Job(long id, Kind kind, String surveyId, long version, String key) {
+            this.id = id;
+            this.kind = kind;
+            this.surveyId = surveyId;
+            this.version = version;
+            this.key = key;
+        }
+
+        synchronized boolean subscribe(long chatId, Integer msgId) {
+            if (closed) return false;
+            subscribers.add(new long[]{chatId, msgId == null ? 0 : msgId});
+            return true;
+        }
+
+        synchronized List<long[]> subscribers() { return new ArrayList<>(subscribers); }
+
+        void editAll(String text) {
+            for (long[] s : subscribers()) {
+                if (s[1] != 0) bot.execute(new EditMessageText(s[0], (int) s[1], text));
+            }
+        }
+
+        @Override public void run() {
+            boolean cached = false;
+            File tmp = null;
+            try {
+                tmp = File.createTempFile(kind.prefix, kind.suffix);
+                boolean ok;
+                if (kind == Kind.RAW) {
+                    int total = adminService.completedCount(surveyId);
+                    ok = adminService.exportRaw(surveyId, tmp.toPath(), done -> progress("респонденты " + done + " из " + total));
+                } else {
+                    int total = adminService.statsTotalPages(surveyId) - 1;
+                    ok = adminService.exportStatsXlsx(surveyId, tmp.toPath(), done -> progress("вопрос " + done + " из " + total));
+                }
+                if (!ok) { finish(); editAll(isStopped() ? stoppedText() : "Не удалось сформировать выгрузку."); return; }
+                if (isStopped()) { cancel(); return; }
+
+                // первому подписчику — загрузкой файла, остальным — по полученному file_id (или снова с диска)
+                Cached c = new Cached(version, tmp, null);
+                long[] first = subscribers().get(0);
+                SendResponse r = bot.execute(new SendDocument(first[0], tmp));
+                boolean firstOk = r != null && r.isOk();
+                if (firstOk && r.message() != null && r.message().document() != null) {
+                    c = new Cached(version, tmp, r.message().document().fileId());
+                }
+                synchronized (running) { // после остановки кэш уже никто не почистит — файл удалит finally
+                    if (!stopped) {
+                        Cached old = cache.put(kind + ":" + surveyId, c);
+                        if (old != null && old.file != tmp) old.file.delete();
+                        cached = true;
+                    }
+                }
+
+                // «готово» — только тем, кому файл действительно ушёл
+                List<long[]> all = finish();
+                for (int i = 0; i < all.size(); i++) {
+                    boolean sent = i == 0 ? firstOk : resend(all.get(i)[0], c);
+                    status(all.get(i), sent ? "✅ Выгрузка #" + id + " готова." : "⚠️ Выгрузка #" + id + ": ошибка при отправке файла.");
+                }
+            } catch (Exception e) {
+                if (isStopped()) { cancel(); return; } // прервано остановкой (shutdownNow)
+                Metrics.ERRORS.inc("export");
+                e.printStackTrace();
+                finish();
+                editAll("Ошибка при отправке файла: " + e.getMessage());
+            } finally {
+                if (tmp != null && !cached) tmp.delete();
+            }
+        }
+
+        /** Снять при остановке бота: из очереди (файла ещё нет) или своим же потоком (файл удалит finally в run). */
+        void cancel() {
+            finish();
+            editAll(stoppedText());
+        }
+
+        private String stoppedText() { return "⚠️ Выгрузка #" + id + " прервана перезапуском бота — запросите её снова."; }
+
+        /** Итог одному подписчику: правкой его сообщения о ходе, а если его нет — новым сообщением. */
+        private void status(long[] s, String text) {
+            if (s[1] != 0) bot.execute(new EditMessageText(s[0], (int) s[1], text));
+            else bot.execute(new SendMessage(s[0], text));
+        }
+
+        private void progress(String what) {
+            long now = System.currentTimeMillis();
+            if (now - lastProgress < PROGRESS_EVERY_MS) return;
+            lastProgress = now;
+            editAll("⏳ Выгрузка #" + id + ": " + what + "…");
+        }
+
+        /** Снять задачу из идущих; новые запросы теперь пойдут в кэш или в новую задачу. */
+        private List<long[]> finish() {
+            synchronized (running) { running.remove(key); }
+            synchronized (this) { closed = true; }
+            return subscribers();
+        }
+    }
+
+    private record Cached(long version, File file, String fileId) {}
+}
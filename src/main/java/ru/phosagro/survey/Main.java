@@ -1,15 +1,26 @@
 package ru.phosagro.survey;
 
 import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.metrics.MetricsServer;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.model.QuestionType;
 import ru.phosagro.survey.service.AdminService;
+import ru.phosagro.survey.service.CompletionSeries;
+import ru.phosagro.survey.service.FunnelTracker;
+import ru.phosagro.survey.service.RawExporter;
+import ru.phosagro.survey.service.StatsEngine;
+import ru.phosagro.survey.service.SurveyRegistry;
 import ru.phosagro.survey.service.SurveyService;
 
+import java.nio.file.Path;
+
 public class Main {
     public static void main(String[] args) throws Exception {
         // читаем из окружения (compose/.env), при отсутствии можно подставить дефолты
         String token = System.getenv().getOrDefault("BOT_TOKEN",
                 "");
         String username = System.getenv().getOrDefault("BOT_USERNAME", "FosAgroAnket_bot");
+        String apiUrl = System.getenv().getOrDefault("TELEGRAM_API_URL", ""); // пусто — api.telegram.org; для нагрузочного теста — локальный сервер
         long bootstrapAdmin = Long.parseLong(
                 System.getenv().getOrDefault("ADMIN_BOOTSTRAP", "726773708")
         );
@@ -20,10 +31,60 @@ public class Main {
         db.initPerformance();  // WAL/индексы/таймауты
         db.ensureAdmin(bootstrapAdmin);
 
+        // Анкеты: внешний файл или каталог *.json (SURVEY_PATH) с горячей перезагрузкой, иначе встроенный survey.json
+        String surveyPath = System.getenv().getOrDefault("SURVEY_PATH", "");
+        String defaultSurvey = System.getenv().getOrDefault("SURVEY_DEFAULT", "");
+        SurveyRegistry registry = new SurveyRegistry(db, surveyPath.isBlank() ? null : Path.of(surveyPath), defaultSurvey);
+        db.backfillSurveyId(registry.defaultId()); // ответы, собранные до поддержки нескольких анкет
+        registry.watch();
+        db.backfillFts(registry.all().stream()              // полнотекстовый индекс для ответов, сохранённых раньше
+                .flatMap(sv -> sv.getQuestions().stream())
+                .filter(q -> q.getType() == QuestionType.TEXT)
+                .map(Question::getId).toList());
+        db.backfillAnswerInt(registry.all().stream()         // баллы числом для ответов, сохранённых раньше
+                .flatMap(sv -> sv.getQuestions().stream())
+                .filter(q -> q.getType() == QuestionType.RATING_1_10)
+                .map(Question::getId).toList());
+
+        // Статистика в памяти: один проход по БД при старте, дальше — инкрементально
+        StatsEngine stats = new StatsEngine(db, registry);
+        stats.rebuild();
+        FunnelTracker funnel = new FunnelTracker(db, registry); // воронка: сессии из user_progress, время на вопрос — снимок + догонка
+        funnel.rebuild();
+        CompletionSeries series = new CompletionSeries(db, registry); // динамика завершений: снимок из БД + догонка
+        series.rebuild();
+
         // Сервисы и бот
-        SurveyService surveyService = new SurveyService(db);
-        AdminService adminService = new AdminService(db, surveyService); // если требуется конструктор с surveyService
-        Bot bot = new Bot(token, username, db, surveyService, adminService);
+        SurveyService surveyService = new SurveyService(db, registry, stats, funnel, series);
+        AdminService adminService = new AdminService(db, registry, stats, funnel, series, new RawExporter(db, registry), surveyService);
+        UpdateRecorder recorder = UpdateRecorder.fromEnv(); // UPDATE_RECORD_DIR: запись апдейтов для воспроизведения
+        if (recorder != null) System.out.println("Recording updates to " + System.getenv("UPDATE_RECORD_DIR"));
+        Bot bot = new Bot(token, username, apiUrl, db, registry, surveyService, adminService, recorder);
+
+        // Метрики для Prometheus: METRICS_PORT=9400 → http://<host>:9400/metrics; пусто — не поднимаем
+        String metricsPort = System.getenv().getOrDefault("METRICS_PORT", "");
+        if (!metricsPort.isBlank()) {
+            MetricsServer.start(Integer.parseInt(metricsPort.trim()));
+            System.out.println("Metrics on :" + metricsPort.trim() + "/metrics");
+        }
+
+        // Остановка (docker stop → SIGTERM): доработать принятое за SHUTDOWN_TIMEOUT_SEC, сохранить снимки, свернуть WAL
+        long shutdownSec = Long.parseLong(System.getenv().getOrDefault("SHUTDOWN_TIMEOUT_SEC", "8").trim());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long t0 = System.nanoTime();
+            System.out.println("Stopping: draining up to " + shutdownSec + " s");
+            String report;
+            try {
+                report = bot.shutdown(t0 + shutdownSec * 1_000_000_000L);
+            } catch (InterruptedException e) {
+                report = "прервано";
+            }
+            series.persistAll();
+            funnel.persistAll();
+            boolean wal = db.checkpoint();
+            System.out.printf("Stopped in %d ms: %s; series and funnel saved; WAL checkpoint %s%n",
+                    (System.nanoTime() - t0) / 1_000_000, report, wal ? "ok" : "failed");
+        }, "shutdown"));
 
         System.out.println("Bot starting as @" + username);
         bot.start(); // long-polling
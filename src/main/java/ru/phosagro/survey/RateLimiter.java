@@ -0,0 +1,106 @@
+package ru.phosagro.survey;
+
+import ru.phosagro.survey.metrics.Metrics;
+
+/**
+ * Token bucket на пользователя: до {@code burst} событий подряд, дальше {@code perSecond} в секунду.
+ * Проверяется в самом начале обработки апдейта — лишнее отбрасывается до ensureUser и любых запросов к БД.
+ *
+ * <p>Вёдра — открытая адресация на примитивных массивах (tg_id → токены, время пополнения): без Long
+ * и объекта на пользователя. Ведро, простоявшее столько, что успело бы наполниться, ничем не отличается от
+ * отсутствующего — такие выбрасываются при пересборке таблицы: когда она заполнится наполовину и не чаще
+ * раза за время наполнения ведра (так после наплыва таблица снова сжимается).
+ * RATE_BURST (20), RATE_PER_SEC (5) — из окружения; RATE_PER_SEC=0 — без ограничения.
+ */
+public class RateLimiter {
+    private static final long EMPTY = 0; // tg_id не бывает 0
+    private static final int MIN_CAPACITY = 64;
+
+    private final float burst;
+    private final double perNano;
+    private final long fullAfterNanos; // простой, после которого ведро полное
+
+    // всё ниже — под this
+    private long[] keys;
+    private float[] tokens;
+    private long[] stamps;
+    private int size;
+    private long sweptAt;
+
+    public RateLimiter(double burst, double perSecond) {
+        this.burst = (float) Math.max(1, burst);
+        this.perNano = perSecond / 1e9;
+        this.fullAfterNanos = perSecond > 0 ? (long) Math.ceil(this.burst / perNano) : Long.MAX_VALUE;
+        alloc(MIN_CAPACITY);
+        sweptAt = System.nanoTime();
+        Metrics.gauge("rate_limiter_buckets", "Пользователи с неполным ведром (и ещё не вычищенные)", this::size);
+    }
+
+    public static RateLimiter fromEnv() {
+        return new RateLimiter(Double.parseDouble(System.getenv().getOrDefault("RATE_BURST", "20").trim()),
+                Double.parseDouble(System.getenv().getOrDefault("RATE_PER_SEC", "5").trim()));
+    }
+
+    /** true — событие пропускаем (токен списан), false — сверх лимита. */
+    public boolean tryAcquire(long userId) { return tryAcquire(userId, System.nanoTime()); }
+
+    synchronized boolean tryAcquire(long userId, long now) {
+        if (perNano <= 0) return true;
+        if (size > 0 && now - sweptAt > fullAfterNanos) rebuild(now);
+        int i = slot(userId);
+        if (keys[i] == EMPTY) {
+            if (size + 1 > keys.length / 2) { rebuild(now); i = slot(userId); }
+            keys[i] = userId;
+            tokens[i] = burst - 1;
+            stamps[i] = now;
+            size++;
+            return true;
+        }
+        float t = (float) Math.min(burst, tokens[i] + (now - stamps[i]) * perNano);
+        stamps[i] = now;
+        if (t < 1) { tokens[i] = t; return false; }
+        tokens[i] = t - 1;
+        return true;
+    }
+
+    public synchronized int size() { return size; }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = (int) mix(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        return x ^ x >>> 33;
+    }
+
+    private void alloc(int capacity) {
+        keys = new long[capacity];
+        tokens = new float[capacity];
+        stamps = new long[capacity];
+    }
+
+    /** Пересборка без полных вёдер; размер — чтобы живые занимали не больше четверти (до следующей пересборки далеко). */
+    private void rebuild(long now) {
+        long[] k = keys, s = stamps;
+        float[] t = tokens;
+        int live = 0;
+        for (int j = 0; j < k.length; j++) if (k[j] != EMPTY && now - s[j] < fullAfterNanos) live++;
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 < live + 1) capacity *= 2;
+        alloc(capacity);
+        for (int j = 0; j < k.length; j++) {
+            if (k[j] == EMPTY || now - s[j] >= fullAfterNanos) continue;
+            int i = slot(k[j]);
+            keys[i] = k[j];
+            tokens[i] = t[j];
+            stamps[i] = s[j];
+        }
+        size = live;
+        sweptAt = now;
+    }
+}
@@ -0,0 +1,48 @@
+package ru.phosagro.survey;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.request.GetUpdates;
+import com.pengrad.telegrambot.response.BaseResponse;
+import com.pengrad.telegrambot.response.GetUpdatesResponse;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.metrics.Trace;
+
+/** TelegramBot с замером каждого запроса к Bot API (гистограмма и спан трассы по имени метода API). */
+public class TelegramClient {
+    private final TelegramBot bot;
+
+    public TelegramClient(TelegramBot bot) { this.bot = bot; }
+
+    /** {@code apiUrl} — база Bot API вместо https://api.telegram.org/bot (тестовый сервер: http://127.0.0.1:8081/bot); пусто — настоящий Telegram. */
+    public static TelegramClient create(String token, String apiUrl) {
+        TelegramBot.Builder b = new TelegramBot.Builder(token);
+        if (apiUrl != null && !apiUrl.isBlank()) b.apiUrl(apiUrl.trim());
+        return new TelegramClient(b.build());
+    }
+
+    public <T extends BaseRequest<T, R>, R extends BaseResponse> R execute(BaseRequest<T, R> request) {
+        long t0 = System.nanoTime();
+        try {
+            R r = bot.execute(request);
+            if (r == null || !r.isOk()) Metrics.ERRORS.inc("telegram_api");
+            return r;
+        } catch (RuntimeException e) {
+            Metrics.ERRORS.inc("telegram");
+            throw e;
+        } finally {
+            Metrics.TELEGRAM.observeSince(request.getMethod(), t0);
+            Trace.span(Trace.TELEGRAM, request.getMethod(), t0);
+        }
+    }
+
+    /** getUpdates без гистограммы запросов: long polling висит до timeout и исказил бы перцентили Bot API. */
+    public GetUpdatesResponse poll(GetUpdates request) {
+        try {
+            return bot.execute(request);
+        } catch (RuntimeException e) {
+            Metrics.ERRORS.inc("telegram");
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ru.phosagro.survey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Последние {@code capacity} update_id: Telegram может прислать апдейт повторно (ретрай long-polling). */
+public class UpdateDedup {
+    private final Map<Integer,Boolean> seen;
+
+    public UpdateDedup(int capacity) {
+        this.seen = new LinkedHashMap<>(1024, 0.75f, false) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer,Boolean> eldest) { return size() > capacity; }
+        };
+    }
+
+    /** true — апдейт встретился впервые (и запомнен), false — дубль. */
+    public synchronized boolean firstTime(int updateId) {
+        return seen.putIfAbsent(updateId, Boolean.TRUE) == null;
+    }
+
+    public synchronized int size() { return seen.size(); }
+}
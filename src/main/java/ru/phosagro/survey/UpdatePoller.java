@@ -0,0 +1,171 @@
+package ru.phosagro.survey;
+
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.request.GetUpdates;
+import com.pengrad.telegrambot.response.GetUpdatesResponse;
+import com.pengrad.telegrambot.utility.BotUtils;
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.metrics.Metrics;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Свой long polling вместо setUpdatesListener: поток «poller» забирает следующую пачку getUpdates,
+ * пока поток «dispatcher» обрабатывает текущую (очередь на {@code prefetch} пачек).
+ *
+ * <p>Запрос со следующим offset подтверждает Telegram предыдущую пачку, поэтому offset двигается только
+ * после того, как пачка записана в журнал БД (update_journal) — это и есть «надёжно принято». Обработанные
+ * пачки отмечаются в журнале; после рестарта необработанное из журнала идёт первым, а повторно
+ * доставленные Telegram апдейты, уже известные журналу, отбрасываются.
+ *
+ * <p>Обработчик может завершать апдейты позже и в другом порядке (очереди {@link Admission}): каждый
+ * отданный апдейт закрывается вызовом {@link #finished}, а в журнале «обработано» отмечается всё ниже
+ * самого раннего незакрытого — не реже раза в {@value #MARK_EVERY_MS} мс.
+ *
+ * <p>{@link #stop} прекращает опрос и раздачу: полученное, но не отданное остаётся в журнале до следующего запуска.
+ *
+ * <p>limit подстраивается под очередь на стороне Telegram: полная пачка — удвоить (до POLL_LIMIT),
+ * пачка меньше четверти — уменьшить вдвое (не ниже {@value #MIN_LIMIT}).
+ * POLL_LIMIT (100), POLL_TIMEOUT (25 с), POLL_PREFETCH (2) — из окружения.
+ */
+public class UpdatePoller {
+    private static final int MIN_LIMIT = 10;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final long MARK_EVERY_MS = 200;
+
+    private final TelegramClient bot;
+    private final Db db;
+    private final Consumer<List<Update>> handler;
+    private final int maxLimit, timeoutSec;
+    private final BlockingQueue<List<Update>> batches;
+    private volatile int limit;
+    private int offset; // только поток poller
+    private final ConcurrentSkipListSet<Integer> open = new ConcurrentSkipListSet<>(); // отданы обработчику, не закрыты
+    private volatile int maxDispatched = -1;
+    private int marked = -1; // только поток dispatcher (после остановки — тот, кто вызвал stop)
+    private volatile boolean stopping;
+    private Thread poller, dispatcher;
+
+    public UpdatePoller(TelegramClient bot, Db db, Consumer<List<Update>> handler) {
+        this.bot = bot;
+        this.db = db;
+        this.handler = handler;
+        this.maxLimit = Math.max(1, Math.min(100, env("POLL_LIMIT", 100)));
+        this.timeoutSec = Math.max(0, env("POLL_TIMEOUT", 25));
+        this.batches = new ArrayBlockingQueue<>(Math.max(1, env("POLL_PREFETCH", 2)));
+        this.limit = maxLimit;
+        Metrics.gauge("poll_limit", "Текущий limit getUpdates", () -> limit);
+        Metrics.gauge("poll_prefetched_batches", "Полученные пачки в очереди на обработку", batches::size);
+    }
+
+    private static int env(String name, int def) {
+        String v = System.getenv().getOrDefault(name, "");
+        return v.isBlank() ? def : Integer.parseInt(v.trim());
+    }
+
+    public void start() {
+        // сначала то, что было принято, но не обработано до остановки
+        List<Update> pending = new ArrayList<>();
+        for (String json : db.journalPending()) pending.add(BotUtils.parseUpdate(json));
+        if (!pending.isEmpty()) {
+            System.out.println("UpdatePoller: из журнала " + pending.size() + " необработанных апдейтов");
+            batches.add(pending); // offset с нуля: Telegram пришлёт неподтверждённое, журнал отсечёт известное
+        }
+        poller = new Thread(this::pollLoop, "poller");
+        dispatcher = new Thread(this::dispatchLoop, "dispatcher");
+        poller.start();
+        dispatcher.start();
+    }
+
+    private void pollLoop() {
+        long backoff = 1000;
+        while (!stopping) {
+            try {
+                GetUpdatesResponse r = bot.poll(new GetUpdates().offset(offset).limit(limit).timeout(timeoutSec));
+                if (r == null || !r.isOk()) throw new IllegalStateException(r == null ? "нет ответа" : r.errorCode() + " " + r.description());
+                List<Update> got = r.updates() == null ? List.of() : r.updates();
+                backoff = 1000;
+                adapt(got.size());
+                if (got.isEmpty()) continue;
+
+                Map<Integer,String> json = new LinkedHashMap<>();
+                for (Update u : got) json.put(u.updateId(), BotUtils.toJson(u));
+                Set<Integer> fresh = db.journalAppend(json);
+                if (fresh == null) throw new IllegalStateException("журнал недоступен"); // offset не двигаем — Telegram пришлёт снова
+                offset = got.get(got.size() - 1).updateId() + 1;
+
+                List<Update> batch = new ArrayList<>(fresh.size());
+                for (Update u : got) if (fresh.contains(u.updateId())) batch.add(u);
+                if (!batch.isEmpty()) batches.put(batch); // очередь полна — ждём, новые апдейты копятся у Telegram
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (stopping) return; // прерванный запрос при остановке — не ошибка
+                Metrics.ERRORS.inc("poll");
+                System.err.println("getUpdates: " + e + " — повтор через " + backoff + " мс");
+                try { Thread.sleep(backoff); } catch (InterruptedException ie) { return; }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        while (!stopping) {
+            List<Update> batch;
+            try { batch = batches.poll(MARK_EVERY_MS, TimeUnit.MILLISECONDS); } catch (InterruptedException e) { return; }
+            if (batch != null) {
+                for (Update u : batch) open.add(u.updateId());
+                maxDispatched = Math.max(maxDispatched, batch.get(batch.size() - 1).updateId());
+                try {
+                    handler.accept(batch);
+                } catch (Exception e) {
+                    Metrics.ERRORS.inc("dispatch");
+                    e.printStackTrace();
+                    for (Update u : batch) finished(u); // пачку считаем обработанной
+                }
+            }
+            markDone();
+        }
+    }
+
+    /**
+     * Не опрашивать и не раздавать дальше; ждёт выхода dispatcher (текущая пачка отдаётся обработчику целиком).
+     * Поток poller может висеть в long polling — его не ждём: пришедшее успеет лечь только в журнал.
+     * Возвращает число апдейтов, оставшихся в журнале неотданными.
+     */
+    public int stop() throws InterruptedException {
+        stopping = true;
+        if (poller == null) return 0;
+        poller.interrupt();
+        dispatcher.join();
+        int left = 0;
+        for (List<Update> b : batches) left += b.size();
+        return left;
+    }
+
+    /** После stop и остановки обработчиков — отметить в журнале всё закрытое. */
+    public void syncJournal() { markDone(); }
+
+    /** Апдейт обработан (или отброшен) — его можно не повторять после рестарта. */
+    public void finished(Update u) { open.remove(u.updateId()); }
+
+    private void markDone() {
+        Integer first = open.ceiling(Integer.MIN_VALUE);
+        int upTo = first == null ? maxDispatched : first - 1;
+        if (upTo > marked) {
+            db.journalDone(upTo);
+            marked = upTo;
+        }
+    }
+
+    /** Полная пачка — у Telegram есть ещё: берём больше за запрос; почти пустые — возвращаемся к малым. */
+    private void adapt(int got) {
+        if (got >= limit) limit = Math.min(maxLimit, limit * 2);
+        else if (got < limit / 4) limit = Math.max(Math.min(MIN_LIMIT, maxLimit), limit / 2);
+    }
+}
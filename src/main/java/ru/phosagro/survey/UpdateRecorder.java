@@ -0,0 +1,130 @@
+package ru.phosagro.survey;
+
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.utility.BotUtils;
+import ru.phosagro.survey.metrics.Metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Запись входящих апдейтов как есть (до дедупликации) для воспроизведения нагрузки: строка
+ * {@code <epoch ms>\t<JSON апдейта>} в файлах updates-yyyyMMdd-HHmmss.jsonl.gz. Файл сменяется,
+ * когда несжатый объём превысит предел; старые файлы сверх {@code keep} удаляются.
+ * После каждой пачки — sync flush gzip: при падении процесса записанное читается (без хвоста gzip).
+ *
+ * <p>Включается UPDATE_RECORD_DIR; UPDATE_RECORD_MAX_MB (100) и UPDATE_RECORD_KEEP (48) — ротация.
+ */
+public class UpdateRecorder implements Closeable {
+    private static final DateTimeFormatter FILE_TS = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String PREFIX = "updates-", SUFFIX = ".jsonl.gz";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int keep;
+    private Writer out;   // под this
+    private long written; // несжатый объём текущего файла в символах (оценка для ротации)
+
+    public UpdateRecorder(Path dir, long maxBytes, int keep) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+    }
+
+    /** Из окружения; null — запись выключена. */
+    public static UpdateRecorder fromEnv() {
+        String dir = System.getenv().getOrDefault("UPDATE_RECORD_DIR", "");
+        if (dir.isBlank()) return null;
+        long mb = Long.parseLong(System.getenv().getOrDefault("UPDATE_RECORD_MAX_MB", "100").trim());
+        int keep = Integer.parseInt(System.getenv().getOrDefault("UPDATE_RECORD_KEEP", "48").trim());
+        return new UpdateRecorder(Path.of(dir.trim()), mb * 1024 * 1024, keep);
+    }
+
+    /** Пачка апдейтов из getUpdates; ошибки записи не мешают обработке. */
+    public synchronized void record(List<Update> updates) {
+        try {
+            if (out == null || written >= maxBytes) rotate();
+            long now = System.currentTimeMillis();
+            for (Update u : updates) {
+                String line = now + "\t" + BotUtils.toJson(u) + "\n";
+                out.write(line);
+                written += line.length();
+            }
+            out.flush();
+        } catch (Exception e) {
+            Metrics.ERRORS.inc("recorder");
+            System.err.println("UpdateRecorder: " + e);
+            closeQuietly();
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeQuietly();
+        Files.createDirectories(dir);
+        Path file = dir.resolve(PREFIX + LocalDateTime.now().format(FILE_TS) + SUFFIX);
+        for (int i = 1; Files.exists(file); i++) file = dir.resolve(PREFIX + LocalDateTime.now().format(FILE_TS) + "-" + i + SUFFIX);
+        out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), 64 * 1024, true), StandardCharsets.UTF_8));
+        written = 0;
+        List<Path> files = files(dir);
+        for (int i = 0; i < files.size() - keep; i++) Files.deleteIfExists(files.get(i));
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try { out.close(); } catch (IOException ignored) {}
+        out = null;
+    }
+
+    @Override public synchronized void close() { closeQuietly(); }
+
+    /* ===== чтение записей (инструмент воспроизведения) ===== */
+
+    /** Апдейт из записи: время получения и JSON как от Bot API. */
+    public record Entry(long atMillis, String json) {
+        public Update update() { return BotUtils.parseUpdate(json); }
+    }
+
+    /** Файлы записи в каталоге по времени создания (имя содержит метку) или сам файл. */
+    public static List<Path> files(Path dirOrFile) throws IOException {
+        if (!Files.isDirectory(dirOrFile)) return List.of(dirOrFile);
+        try (Stream<Path> s = Files.list(dirOrFile)) {
+            return s.filter(p -> {
+                String n = p.getFileName().toString();
+                return n.startsWith(PREFIX) && n.endsWith(SUFFIX);
+            }).sorted(Comparator.comparing((Path p) -> p.getFileName().toString().replace(SUFFIX, ""))).toList();
+        }
+    }
+
+    /** Все записи по порядку; у файла без хвоста gzip (процесс упал до закрытия) читается всё, что успело сброситься. */
+    public static void read(Path dirOrFile, Consumer<Entry> sink) throws IOException {
+        for (Path f : files(dirOrFile)) {
+            boolean[] truncated = {false};
+            // обрыв — конец потока на уровне байтов, иначе Reader потеряет уже прочитанный, но не отданный буфер
+            InputStream in = new GZIPInputStream(Files.newInputStream(f), 64 * 1024) {
+                @Override public int read(byte[] b, int off, int len) throws IOException {
+                    try { return super.read(b, off, len); }
+                    catch (EOFException e) { truncated[0] = true; return -1; }
+                }
+            };
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0 || !line.endsWith("}")) continue; // недописанная последняя строка
+                    sink.accept(new Entry(Long.parseLong(line.substring(0, tab)), line.substring(tab + 1)));
+                }
+            }
+            if (truncated[0]) System.err.println("UpdateRecorder: " + f.getFileName() + " без завершения gzip, прочитано до обрыва");
+        }
+    }
+}
@@ -3,6 +3,9 @@ package ru.phosagro.survey.db;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.pengrad.telegrambot.model.User;
+import org.sqlite.SQLiteConfig;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.metrics.Trace;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -14,22 +17,42 @@ import java.util.*;
 
 public class Db {
     private final String url;
+    private final Properties props;
 
     public Db(String path) {
         try { Files.createDirectories(Path.of("data")); } catch (Exception ignored) {}
         this.url = "jdbc:sqlite:" + path; // обычно "data/survey.db"
+        // Апдейты обрабатываются параллельно: транзакция, которая сначала читает, а потом пишет, при DEFERRED
+        // получает SQLITE_BUSY без ожидания, если другой писатель успел закоммитить. IMMEDIATE берёт блокировку
+        // записи сразу и ждёт её busy_timeout; busy_timeout — свойство соединения, поэтому задаётся здесь.
+        SQLiteConfig cfg = new SQLiteConfig();
+        cfg.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
+        cfg.setBusyTimeout(5000);
+        cfg.enforceForeignKeys(true);
+        this.props = cfg.toProperties();
     }
 
     private Connection connect() throws SQLException {
-        Connection c = DriverManager.getConnection(url);
-        try (Statement s = c.createStatement()) { s.execute("PRAGMA foreign_keys=ON;"); }
-        return c;
+        return DriverManager.getConnection(url, props);
+    }
+
+    /**
+     * Замер вызова Db для метрик и трассы апдейта: первым ресурсом в try, перед соединением, —
+     * закрывается последним, поэтому время считается до закрытия соединения включительно.
+     */
+    private static Timed time(String op) { return new Timed(op, System.nanoTime()); }
+
+    private record Timed(String op, long t0) implements AutoCloseable {
+        @Override public void close() {
+            Metrics.DB.child(op).observeSince(t0);
+            Trace.span(Trace.DB, op, t0);
+        }
     }
 
     /* =================== schema & perf =================== */
 
     public void initSchema() {
-        try (Connection c = connect(); Statement s = c.createStatement()) {
+        try (Timed t = time("initSchema"); Connection c = connect(); Statement s = c.createStatement()) {
             s.execute("PRAGMA foreign_keys=ON;");
 
             // --- tables ---
@@ -84,17 +107,30 @@ public class Db {
             );
         """);
 
+            // версии определения анкеты (для сессий, начатых до перезагрузки survey.json)
+            s.execute("""
+            CREATE TABLE IF NOT EXISTS survey_versions (
+              id INTEGER PRIMARY KEY AUTOINCREMENT,
+              sha256 TEXT UNIQUE NOT NULL,
+              json TEXT NOT NULL,
+              created_at TEXT
+            );
+        """);
+
             // --- add missing columns (idempotent) ---
             ensureColumn(c, "users", "is_admin", "INTEGER DEFAULT 0");
             ensureColumn(c, "users", "created_at", "TEXT");
 
             ensureColumn(c, "responses", "started_at", "TEXT");
             ensureColumn(c, "responses", "completed_at", "TEXT");
+            ensureColumn(c, "responses", "survey_id", "TEXT");
+            ensureColumn(c, "responses", "completed_seq", "INTEGER"); // номер завершения по порядку фиксации — отметка для догонки рядов
 
             ensureColumn(c, "answers", "question_id", "TEXT");
             ensureColumn(c, "answers", "answer_text", "TEXT");
             ensureColumn(c, "answers", "option_ids_json", "TEXT");
             ensureColumn(c, "answers", "created_at", "TEXT");
+            ensureColumn(c, "answers", "answer_int", "INTEGER"); // балл RATING_1_10 числом
 
             ensureColumn(c, "user_progress", "current_q_index", "INTEGER");
             ensureColumn(c, "user_progress", "current_msg_id", "INTEGER");
@@ -102,6 +138,9 @@ public class Db {
             ensureColumn(c, "user_progress", "awaiting_other_option_id", "TEXT");
             ensureColumn(c, "user_progress", "multi_selection_json", "TEXT");
             ensureColumn(c, "user_progress", "updated_at", "TEXT");
+            ensureColumn(c, "user_progress", "survey_version", "INTEGER");
+            ensureColumn(c, "user_progress", "survey_id", "TEXT");
+            ensureColumn(c, "survey_versions", "survey_id", "TEXT");
 
             // --- обычные индексы ---
             s.execute("CREATE INDEX IF NOT EXISTS idx_users_tg_id          ON users(tg_id);");
@@ -109,6 +148,12 @@ public class Db {
             s.execute("CREATE INDEX IF NOT EXISTS idx_answers_resp         ON answers(response_id);");
             s.execute("CREATE INDEX IF NOT EXISTS idx_answers_qid          ON answers(question_id);");
             s.execute("CREATE INDEX IF NOT EXISTS idx_progress_user        ON user_progress(user_id);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_resp_survey_status   ON responses(survey_id, status);");
+            s.execute("CREATE INDEX IF NOT EXISTS idx_resp_completed_seq   ON responses(completed_seq);");
+            // счётчик completed_seq: номера не переиспользуются, даже если завершение с последним номером удалено (/resetme)
+            s.execute("CREATE TABLE IF NOT EXISTS completion_seq (id INTEGER PRIMARY KEY CHECK(id=1), last INTEGER NOT NULL);");
+            s.execute("INSERT OR IGNORE INTO completion_seq(id, last) SELECT 1, COALESCE(MAX(completed_seq),0) FROM responses;");
+            backfillCompletedSeq(c);
 
             // --- ДЕДУП перед созданием UNIQUE индекса на user_progress(user_id) ---
             // Оставляем по одному (с минимальным id) на каждого user_id:
@@ -126,13 +171,60 @@ public class Db {
             // --- Уникальный индекс для корректной работы ON CONFLICT(user_id) ---
             s.execute("CREATE UNIQUE INDEX IF NOT EXISTS ux_progress_user ON user_progress(user_id);");
 
+            // --- полнотекстовый индекс по свободным ответам (TEXT и «Другое: ...»); rowid = answers.id ---
+            s.execute("CREATE VIRTUAL TABLE IF NOT EXISTS answers_fts USING fts5(body, question_id UNINDEXED, tokenize='unicode61 remove_diacritics 2');");
+
+            // --- снимки рядов завершений (CompletionSeries): состояние колец + последний учтённый completed_seq ---
+            s.execute("""
+            CREATE TABLE IF NOT EXISTS series_snapshots (
+              survey_id TEXT PRIMARY KEY,
+              data BLOB NOT NULL,
+              watermark TEXT,
+              saved_at TEXT NOT NULL
+            );
+            """);
+
+            // --- снимки гистограмм времени на вопрос (FunnelTracker) + последний учтённый answers.id ---
+            s.execute("""
+            CREATE TABLE IF NOT EXISTS funnel_snapshots (
+              survey_id TEXT PRIMARY KEY,
+              data BLOB NOT NULL,
+              watermark INTEGER NOT NULL,
+              saved_at TEXT NOT NULL
+            );
+            """);
+
+            // --- журнал апдейтов (UpdatePoller): полученные от Telegram и ещё не обработанные; done=1 — хвост для отсечения повторов ---
+            s.execute("""
+            CREATE TABLE IF NOT EXISTS update_journal (
+              update_id INTEGER PRIMARY KEY,
+              json TEXT NOT NULL,
+              received_at TEXT NOT NULL,
+              done INTEGER NOT NULL DEFAULT 0
+            );
+            """);
+
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Перенести WAL в основной файл и обнулить его (при остановке): следующий запуск не читает длинный WAL,
+     * а в volume остаётся один самодостаточный файл. false — не вышло (занято другим соединением или ошибка).
+     */
+    public boolean checkpoint() {
+        try (Timed t = time("checkpoint"); Connection c = connect(); Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA wal_checkpoint(TRUNCATE);")) {
+            return rs.next() && rs.getInt(1) == 0; // busy, log, checkpointed
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public void initPerformance() {
-        try (Connection c = connect(); Statement s = c.createStatement()) {
+        try (Timed t = time("initPerformance"); Connection c = connect(); Statement s = c.createStatement()) {
             s.execute("PRAGMA journal_mode=WAL;");
             s.execute("PRAGMA synchronous=NORMAL;");
             s.execute("PRAGMA foreign_keys=ON;");
@@ -146,6 +238,40 @@ public class Db {
         } catch (Exception e) { e.printStackTrace(); }
     }
 
+    private static PreparedStatement bind(PreparedStatement ps, String surveyId) throws SQLException {
+        ps.setString(1, surveyId);
+        return ps;
+    }
+
+    private static Integer intOrNull(ResultSet rs, int col) throws SQLException {
+        int v = rs.getInt(col);
+        return rs.wasNull() ? null : v;
+    }
+
+    /** completed_seq для завершений, записанных до появления колонки: по completed_at, номера — из счётчика. */
+    private static void backfillCompletedSeq(Connection c) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        long seq;
+        try (Statement st = c.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT id FROM responses WHERE status='COMPLETED' AND completed_seq IS NULL ORDER BY completed_at, id")) {
+                while (rs.next()) ids.add(rs.getLong(1));
+            }
+            if (ids.isEmpty()) return;
+        }
+        c.setAutoCommit(false);
+        try (Statement st = c.createStatement(); PreparedStatement ps = c.prepareStatement("UPDATE responses SET completed_seq=? WHERE id=?")) {
+            try (ResultSet rs = st.executeQuery("SELECT last FROM completion_seq WHERE id=1")) { seq = rs.next() ? rs.getLong(1) : 0; }
+            for (long id : ids) {
+                ps.setLong(1, ++seq);
+                ps.setLong(2, id);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            st.executeUpdate("UPDATE completion_seq SET last=" + seq + " WHERE id=1");
+            c.commit();
+        } finally { c.setAutoCommit(true); }
+    }
+
     private static void ensureColumn(Connection c, String table, String column, String declType) throws Exception {
         boolean exists = false;
         try (PreparedStatement ps = c.prepareStatement("PRAGMA table_info(" + table + ")"); ResultSet rs = ps.executeQuery()) {
@@ -160,7 +286,7 @@ public class Db {
         String sql = "INSERT INTO users(tg_id, first_name, last_name, username, created_at) " +
                 "VALUES(?,?,?,?,?) ON CONFLICT(tg_id) DO UPDATE SET " +
                 "first_name=excluded.first_name, last_name=excluded.last_name, username=excluded.username";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("ensureUser"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, u.id());
             ps.setString(2, u.firstName());
             ps.setString(3, u.lastName());
@@ -173,7 +299,7 @@ public class Db {
     public void ensureAdmin(long tgId) {
         String sql = "INSERT INTO users(tg_id, created_at, is_admin) VALUES(?, ?, 1) " +
                 "ON CONFLICT(tg_id) DO UPDATE SET is_admin=1";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("ensureAdmin"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             ps.setString(2, Instant.now().toString());
             ps.executeUpdate();
@@ -182,7 +308,7 @@ public class Db {
 
     public boolean isAdmin(long tgId) {
         String sql = "SELECT is_admin FROM users WHERE tg_id=?";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("isAdmin"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) { return rs.next() && rs.getInt(1) == 1; }
         } catch (SQLException e) { e.printStackTrace(); }
@@ -193,7 +319,7 @@ public class Db {
         if (!isAdmin(actorTgId)) return "Доступ запрещён (только админ может добавлять админов).";
         String sql = "INSERT INTO users(tg_id, created_at, is_admin) VALUES(?,?,1) " +
                 "ON CONFLICT(tg_id) DO UPDATE SET is_admin=1";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("addAdmin"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, targetTgId);
             ps.setString(2, Instant.now().toString());
             ps.executeUpdate();
@@ -203,31 +329,42 @@ public class Db {
 
     /* =================== survey progress =================== */
 
-    public boolean hasCompleted(long tgId) {
-        String sql = "SELECT COUNT(*) FROM responses r JOIN users u ON u.id=r.user_id WHERE u.tg_id=? AND r.status='COMPLETED'";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+    /** Анкеты, начатые до появления survey_id, относятся к анкете по умолчанию. */
+    public void backfillSurveyId(String surveyId) {
+        try (Timed t = time("backfillSurveyId"); Connection c = connect()) {
+            try (PreparedStatement ps = c.prepareStatement("UPDATE responses SET survey_id=? WHERE survey_id IS NULL")) { ps.setString(1, surveyId); ps.executeUpdate(); }
+            try (PreparedStatement ps = c.prepareStatement("UPDATE user_progress SET survey_id=? WHERE survey_id IS NULL")) { ps.setString(1, surveyId); ps.executeUpdate(); }
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    public boolean hasCompleted(long tgId, String surveyId) {
+        String sql = "SELECT COUNT(*) FROM responses r JOIN users u ON u.id=r.user_id WHERE u.tg_id=? AND r.survey_id=? AND r.status='COMPLETED'";
+        try (Timed t = time("hasCompleted"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
+            ps.setString(2, surveyId);
             try (ResultSet rs = ps.executeQuery()) { return rs.next() && rs.getInt(1) > 0; }
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
-    public long startResponse(long tgId) {
+    public long startResponse(long tgId, String surveyId, int surveyVersion) {
         String sqlUser = "SELECT id FROM users WHERE tg_id=?";
-        String sqlResp = "INSERT INTO responses(user_id,status,started_at) VALUES(?, 'DRAFT', ?)";
+        String sqlResp = "INSERT INTO responses(user_id,survey_id,status,started_at) VALUES(?, ?, 'DRAFT', ?)";
         String sqlProgress = """
-            INSERT INTO user_progress(user_id,response_id,current_q_index,current_msg_id,updated_at)
-            VALUES(?,?,0,NULL,?)
+            INSERT INTO user_progress(user_id,response_id,current_q_index,current_msg_id,survey_id,survey_version,updated_at)
+            VALUES(?,?,0,NULL,?,?,?)
             ON CONFLICT(user_id) DO UPDATE SET
               response_id=excluded.response_id,
               current_q_index=0,
+              survey_id=excluded.survey_id,
+              survey_version=excluded.survey_version,
               current_msg_id=NULL,
               awaiting_other_question_id=NULL,
               awaiting_other_option_id=NULL,
               multi_selection_json=NULL,
               updated_at=?;
         """;
-        try (Connection c = connect()) {
+        try (Timed t = time("startResponse"); Connection c = connect()) {
             c.setAutoCommit(false);
 
             long userId;
@@ -239,7 +376,8 @@ public class Db {
             long respId;
             try (PreparedStatement ps = c.prepareStatement(sqlResp, Statement.RETURN_GENERATED_KEYS)) {
                 ps.setLong(1, userId);
-                ps.setString(2, Instant.now().toString());
+                ps.setString(2, surveyId);
+                ps.setString(3, Instant.now().toString());
                 ps.executeUpdate();
                 try (ResultSet rs = ps.getGeneratedKeys()) { rs.next(); respId = rs.getLong(1); }
             }
@@ -248,8 +386,10 @@ public class Db {
                 String now = Instant.now().toString();
                 ps.setLong(1, userId);
                 ps.setLong(2, respId);
-                ps.setString(3, now);
-                ps.setString(4, now);
+                ps.setString(3, surveyId);
+                ps.setInt(4, surveyVersion);
+                ps.setString(5, now);
+                ps.setString(6, now);
                 ps.executeUpdate();
             }
 
@@ -259,11 +399,11 @@ public class Db {
         return -1;
     }
 
-    /** keys: current_q_index, current_msg_id, awaiting_other_q, awaiting_other_o, multi_selection_json, response_id */
+    /** keys: current_q_index, current_msg_id, awaiting_other_q, awaiting_other_o, multi_selection_json, response_id, survey_id, survey_version */
     public Map<String,Object> loadProgress(long tgId) {
-        String sql = "SELECT p.current_q_index, p.current_msg_id, p.awaiting_other_question_id, p.awaiting_other_option_id, p.multi_selection_json, p.response_id " +
+        String sql = "SELECT p.current_q_index, p.current_msg_id, p.awaiting_other_question_id, p.awaiting_other_option_id, p.multi_selection_json, p.response_id, p.survey_version, p.survey_id " +
                 "FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("loadProgress"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (!rs.next()) return null;
@@ -274,6 +414,8 @@ public class Db {
                 map.put("awaiting_other_o", rs.getString(4));
                 map.put("multi_selection_json", rs.getString(5));
                 map.put("response_id", rs.getLong(6));
+                map.put("survey_version", rs.getInt(7));
+                map.put("survey_id", rs.getString(8));
                 return map;
             }
         } catch (SQLException e) { e.printStackTrace(); }
@@ -282,7 +424,7 @@ public class Db {
 
     public void saveProgress(long tgId, int currentIndex, String awaitingQ, String awaitingO, List<String> multi) {
         String sql = "UPDATE user_progress SET current_q_index=?, awaiting_other_question_id=?, awaiting_other_option_id=?, multi_selection_json=?, updated_at=? WHERE user_id=(SELECT id FROM users WHERE tg_id=?)";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("saveProgress"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setInt(1, currentIndex);
             ps.setString(2, awaitingQ);
             ps.setString(3, awaitingO);
@@ -297,7 +439,7 @@ public class Db {
 
     public void setCurrentMessageId(long tgId, Integer msgId) {
         String sql = "UPDATE user_progress SET current_msg_id=?, updated_at=? WHERE user_id=(SELECT id FROM users WHERE tg_id=?)";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("setCurrentMessageId"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             if (msgId == null) ps.setNull(1, Types.INTEGER); else ps.setInt(1, msgId);
             ps.setString(2, Instant.now().toString());
             ps.setLong(3, tgId);
@@ -307,7 +449,7 @@ public class Db {
 
     public Integer getCurrentMessageId(long tgId) {
         String sql = "SELECT current_msg_id FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("getCurrentMessageId"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) { if (rs.next()) return (Integer) rs.getObject(1); }
         } catch (SQLException e) { e.printStackTrace(); }
@@ -316,7 +458,7 @@ public class Db {
 
     public List<String> getMultiSelected(long tgId) {
         String sql = "SELECT multi_selection_json FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("getMultiSelected"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (!rs.next()) return new ArrayList<>();
@@ -330,110 +472,311 @@ public class Db {
 
     public long getCurrentResponseId(long tgId) {
         String sql = "SELECT p.response_id FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("getCurrentResponseId"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) { if (rs.next()) return rs.getLong(1); }
         } catch (SQLException e) { e.printStackTrace(); }
         return -1;
     }
 
-    public void insertAnswer(long responseId, String questionId, String answerText, List<String> multiOptions) {
-        String sql = "INSERT INTO answers(response_id,question_id,answer_text,option_ids_json,created_at) VALUES(?,?,?,?,?)";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setLong(1, responseId);
-            ps.setString(2, questionId);
-            ps.setString(3, answerText);
-            String json = null;
-            if (multiOptions != null) json = new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(multiOptions);
-            ps.setString(4, json);
-            ps.setString(5, Instant.now().toString());
-            ps.executeUpdate();
+    public long insertAnswer(long responseId, String questionId, String answerText, List<String> multiOptions) {
+        return insertAnswer(responseId, questionId, answerText, multiOptions, false);
+    }
+
+    /**
+     * Сохранить ответ; свободный текст (ответ на TEXT-вопрос — {@code textQuestion},
+     * либо «Другое: ...») попадает ещё и в answers_fts — в той же транзакции. Возвращает answers.id или -1.
+     */
+    public long insertAnswer(long responseId, String questionId, String answerText, List<String> multiOptions, boolean textQuestion) {
+        return insertAnswer(responseId, questionId, answerText, multiOptions, textQuestion, null);
+    }
+
+    /** Балл RATING_1_10: и текстом (как раньше), и числом в answer_int. */
+    public long insertRating(long responseId, String questionId, int value) {
+        return insertAnswer(responseId, questionId, String.valueOf(value), null, false, value);
+    }
+
+    private long insertAnswer(long responseId, String questionId, String answerText, List<String> multiOptions, boolean textQuestion, Integer answerInt) {
+        String sql = "INSERT INTO answers(response_id,question_id,answer_text,option_ids_json,created_at,answer_int) VALUES(?,?,?,?,?,?)";
+        String fts = "INSERT INTO answers_fts(rowid, body, question_id) VALUES(?,?,?)";
+        try (Timed t = time("insertAnswer"); Connection c = connect()) {
+            c.setAutoCommit(false);
+            long id;
+            try (PreparedStatement ps = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                ps.setLong(1, responseId);
+                ps.setString(2, questionId);
+                ps.setString(3, answerText);
+                String json = null;
+                if (multiOptions != null) json = new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(multiOptions);
+                ps.setString(4, json);
+                ps.setString(5, Instant.now().toString());
+                if (answerInt != null) ps.setInt(6, answerInt); else ps.setNull(6, Types.INTEGER);
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) { rs.next(); id = rs.getLong(1); }
+            }
+            String body = freeText(answerText, multiOptions, textQuestion);
+            if (body != null) {
+                try (PreparedStatement ps = c.prepareStatement(fts)) {
+                    ps.setLong(1, id);
+                    ps.setString(2, body);
+                    ps.setString(3, questionId);
+                    ps.executeUpdate();
+                }
+            }
+            c.commit();
+            Metrics.ANSWERS.inc();
+            return id;
         } catch (Exception e) { e.printStackTrace(); }
+        return -1;
     }
 
-    public void finishAndCommit(long tgId) {
-        String sql = """
-            UPDATE responses SET status='COMPLETED', completed_at=? 
-            WHERE id=(SELECT response_id FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?);
+    private static final String OTHER_PREFIX = "Другое: ";
+
+    /** Свободный текст ответа для индекса или null. */
+    private static String freeText(String answerText, List<String> multiOptions, boolean textQuestion) {
+        if (answerText != null && !answerText.isBlank()) {
+            if (textQuestion) return answerText;
+            if (answerText.startsWith(OTHER_PREFIX)) return answerText.substring(OTHER_PREFIX.length());
+        }
+        if (multiOptions == null) return null;
+        StringBuilder sb = new StringBuilder();
+        for (String o : multiOptions) {
+            if (o == null || !o.startsWith(OTHER_PREFIX)) continue;
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(o, OTHER_PREFIX.length(), o.length());
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /** Доиндексировать ответы, сохранённые до появления answers_fts (идемпотентно). */
+    public void backfillFts(Collection<String> textQuestionIds) {
+        String other = """
+            INSERT INTO answers_fts(rowid, body, question_id)
+            SELECT a.id, substr(a.answer_text, 9), a.question_id FROM answers a
+            WHERE a.answer_text LIKE 'Другое: %' AND a.id NOT IN (SELECT rowid FROM answers_fts)
             """;
+        String multi = """
+            INSERT INTO answers_fts(rowid, body, question_id)
+            SELECT a.id, group_concat(substr(j.value, 9), char(10)), a.question_id
+            FROM answers a, json_each(a.option_ids_json) j
+            WHERE a.option_ids_json IS NOT NULL AND j.value LIKE 'Другое: %' AND a.id NOT IN (SELECT rowid FROM answers_fts)
+            GROUP BY a.id
+            """;
+        String text = """
+            INSERT INTO answers_fts(rowid, body, question_id)
+            SELECT a.id, a.answer_text, a.question_id FROM answers a
+            WHERE a.question_id=? AND a.answer_text IS NOT NULL AND a.id NOT IN (SELECT rowid FROM answers_fts)
+            """;
+        try (Timed t = time("backfillFts"); Connection c = connect()) {
+            c.setAutoCommit(false);
+            try (Statement s = c.createStatement()) {
+                s.executeUpdate(other);
+                s.executeUpdate(multi);
+            }
+            try (PreparedStatement ps = c.prepareStatement(text)) {
+                for (String q : textQuestionIds) { ps.setString(1, q); ps.executeUpdate(); }
+            }
+            // ответы, удалённые напрямую (/resetme), из индекса тоже убираем
+            try (Statement s = c.createStatement()) { s.executeUpdate("DELETE FROM answers_fts WHERE rowid NOT IN (SELECT id FROM answers)"); }
+            c.commit();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    /** answer_int для баллов, сохранённых до появления колонки. */
+    public void backfillAnswerInt(Collection<String> ratingQuestionIds) {
+        String sql = "UPDATE answers SET answer_int=CAST(answer_text AS INTEGER) WHERE question_id=? AND answer_int IS NULL AND answer_text GLOB '[0-9]*'";
+        try (Timed t = time("backfillAnswerInt"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            c.setAutoCommit(false);
+            for (String q : ratingQuestionIds) { ps.setString(1, q); ps.executeUpdate(); }
+            c.commit();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    /** Запрос FTS5 из пользовательского ввода: каждое слово — в кавычках и с поиском по префиксу. */
+    public static String ftsQuery(String input) {
+        StringBuilder sb = new StringBuilder();
+        for (String w : input.trim().split("\\s+")) {
+            String t = w.replace("\"", "");
+            if (t.isEmpty()) continue;
+            if (sb.length() > 0) sb.append(' ');
+            sb.append('"').append(t).append("\"*");
+        }
+        return sb.toString();
+    }
+
+    /** Поиск по свободным ответам завершённых анкет, по релевантности (bm25). keys: q, tgId, snippet */
+    public List<Map<String,Object>> findAnswers(String surveyId, String ftsQuery, int limit, int offset) {
+        String sql = """
+          SELECT a.question_id, u.tg_id, snippet(answers_fts, 0, '«', '»', '…', 16)
+          FROM answers_fts
+          JOIN answers a ON a.id=answers_fts.rowid
+          JOIN responses r ON r.id=a.response_id
+          JOIN users u ON u.id=r.user_id
+          WHERE answers_fts MATCH ? AND r.survey_id=? AND r.status='COMPLETED'
+          ORDER BY rank
+          LIMIT ? OFFSET ?
+        """;
+        List<Map<String,Object>> out = new ArrayList<>();
+        try (Timed t = time("findAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, ftsQuery);
+            ps.setString(2, surveyId);
+            ps.setInt(3, limit);
+            ps.setInt(4, offset);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Map<String,Object> row = new HashMap<>();
+                    row.put("q", rs.getString(1));
+                    row.put("tgId", rs.getLong(2));
+                    row.put("snippet", rs.getString(3));
+                    out.add(row);
+                }
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return out;
+    }
+
+    public int countFindAnswers(String surveyId, String ftsQuery) {
+        String sql = """
+          SELECT COUNT(*) FROM answers_fts
+          JOIN answers a ON a.id=answers_fts.rowid
+          JOIN responses r ON r.id=a.response_id
+          WHERE answers_fts MATCH ? AND r.survey_id=? AND r.status='COMPLETED'
+        """;
+        try (Timed t = time("countFindAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, ftsQuery);
+            ps.setString(2, surveyId);
+            try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return 0;
+    }
+
+    /** Завершает текущую анкету пользователя; возвращает id завершённого ответа или -1. */
+    public long finishAndCommit(long tgId) {
+        String cur = "SELECT p.response_id FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?";
+        // completed_seq — из счётчика под той же IMMEDIATE-транзакцией, поэтому растёт строго в порядке фиксации
+        String sql = "UPDATE responses SET status='COMPLETED', completed_at=?, completed_seq=(SELECT last+1 FROM completion_seq WHERE id=1) WHERE id=? AND status='DRAFT'";
+        String bump = "UPDATE completion_seq SET last=last+1 WHERE id=1";
         String del = "DELETE FROM user_progress WHERE user_id=(SELECT id FROM users WHERE tg_id=?)";
-        try (Connection c = connect()) {
+        try (Timed t = time("finishAndCommit"); Connection c = connect()) {
             c.setAutoCommit(false);
+            long respId;
+            try (PreparedStatement ps = c.prepareStatement(cur)) {
+                ps.setLong(1, tgId);
+                try (ResultSet rs = ps.executeQuery()) { if (!rs.next()) { c.rollback(); return -1; } respId = rs.getLong(1); }
+            }
+            int updated;
             try (PreparedStatement ps = c.prepareStatement(sql)) {
                 ps.setString(1, Instant.now().toString());
-                ps.setLong(2, tgId);
-                ps.executeUpdate();
+                ps.setLong(2, respId);
+                updated = ps.executeUpdate();
             }
+            if (updated > 0) try (Statement st = c.createStatement()) { st.executeUpdate(bump); }
             try (PreparedStatement ps = c.prepareStatement(del)) {
                 ps.setLong(1, tgId);
                 ps.executeUpdate();
             }
             c.commit();
+            return updated > 0 ? respId : -1;
         } catch (SQLException e) { e.printStackTrace(); }
+        return -1;
     }
 
     public boolean inDraft(long tgId) {
         String sql = "SELECT COUNT(*) FROM user_progress p JOIN users u ON u.id=p.user_id WHERE u.tg_id=?";
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("inDraft"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) { return rs.next() && rs.getInt(1)>0; }
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
+    /* =================== survey versions =================== */
+
+    /** Регистрирует определение анкеты; одинаковое содержимое получает тот же номер версии. */
+    public int saveSurveyVersion(String surveyId, String sha256, String json) {
+        String ins = "INSERT INTO survey_versions(sha256, json, survey_id, created_at) VALUES(?,?,?,?) ON CONFLICT(sha256) DO NOTHING";
+        String sel = "SELECT id FROM survey_versions WHERE sha256=?";
+        try (Timed t = time("saveSurveyVersion"); Connection c = connect()) {
+            try (PreparedStatement ps = c.prepareStatement(ins)) {
+                ps.setString(1, sha256);
+                ps.setString(2, json);
+                ps.setString(3, surveyId);
+                ps.setString(4, Instant.now().toString());
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = c.prepareStatement(sel)) {
+                ps.setString(1, sha256);
+                try (ResultSet rs = ps.executeQuery()) { if (rs.next()) return rs.getInt(1); }
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return 0;
+    }
+
+    public String loadSurveyVersion(int version) {
+        String sql = "SELECT json FROM survey_versions WHERE id=?";
+        try (Timed t = time("loadSurveyVersion"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setInt(1, version);
+            try (ResultSet rs = ps.executeQuery()) { if (rs.next()) return rs.getString(1); }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return null;
+    }
+
     /* =================== admin helpers =================== */
 
-    public int countCompleted() {
-        String sql = "SELECT COUNT(*) FROM responses WHERE status='COMPLETED';";
-        try (Connection c = connect(); Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
-            return rs.next() ? rs.getInt(1) : 0;
+    public int countCompleted(String surveyId) {
+        String sql = "SELECT COUNT(*) FROM responses WHERE survey_id=? AND status='COMPLETED';";
+        try (Timed t = time("countCompleted"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, surveyId);
+            try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
         } catch (Exception e) { e.printStackTrace(); return 0; }
     }
 
-    public List<Long> listCompletedUserTgIdsPaged(int limit, int offset) {
+    public List<Long> listCompletedUserTgIdsPaged(String surveyId, int limit, int offset) {
         List<Long> out = new ArrayList<>();
         String sql = """
             SELECT DISTINCT u.tg_id
             FROM responses r
             JOIN users u ON u.id = r.user_id
-            WHERE r.status = 'COMPLETED'
+            WHERE r.survey_id = ? AND r.status = 'COMPLETED'
             ORDER BY r.completed_at DESC
             LIMIT ? OFFSET ?;
         """;
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setInt(1, limit);
-            ps.setInt(2, offset);
+        try (Timed t = time("listCompletedUserTgIdsPaged"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, surveyId);
+            ps.setInt(2, limit);
+            ps.setInt(3, offset);
             try (ResultSet rs = ps.executeQuery()) { while (rs.next()) out.add(rs.getLong(1)); }
         } catch (Exception e) { e.printStackTrace(); }
         return out;
     }
 
-    public List<Long> listCompletedUserTgIds() {
+    public List<Long> listCompletedUserTgIds(String surveyId) {
         String sql = """
             SELECT DISTINCT u.tg_id
             FROM responses r JOIN users u ON u.id=r.user_id
-            WHERE r.status='COMPLETED'
+            WHERE r.survey_id=? AND r.status='COMPLETED'
             ORDER BY r.completed_at DESC
         """;
         List<Long> out = new ArrayList<>();
-        try (Connection c = connect(); Statement s = c.createStatement(); ResultSet rs = s.executeQuery(sql)) {
+        try (Timed t = time("listCompletedUserTgIds"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql); ResultSet rs = bind(ps, surveyId).executeQuery()) {
             while (rs.next()) out.add(rs.getLong(1));
         } catch (SQLException e) { e.printStackTrace(); }
         return out;
     }
 
-    public Map<String,List<String>> getUserAnswers(long tgId) {
+    public Map<String,List<String>> getUserAnswers(long tgId, String surveyId) {
         String sql = """
           SELECT a.question_id, COALESCE(a.answer_text, a.option_ids_json)
           FROM answers a
           JOIN responses r ON r.id=a.response_id
           JOIN users u ON u.id=r.user_id
-          WHERE u.tg_id=? AND r.status='COMPLETED'
+          WHERE u.tg_id=? AND r.survey_id=? AND r.status='COMPLETED'
           ORDER BY a.id
         """;
         Map<String, List<String>> map = new LinkedHashMap<>();
-        try (Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+        try (Timed t = time("getUserAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setLong(1, tgId);
+            ps.setString(2, surveyId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     String q = rs.getString(1);
@@ -445,25 +788,291 @@ public class Db {
         return map;
     }
 
-    public List<Map<String, Object>> getAllCompletedAnswers() {
+    /** Ответы одной анкеты (ключи как у getAllCompletedAnswers, без tgId). */
+    public List<Map<String, Object>> getResponseAnswers(long responseId) {
+        String sql = "SELECT question_id, answer_text, option_ids_json, answer_int FROM answers WHERE response_id=? ORDER BY id";
+        List<Map<String, Object>> out = new ArrayList<>();
+        try (Timed t = time("getResponseAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setLong(1, responseId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("q", rs.getString(1));
+                    row.put("text", rs.getString(2));
+                    row.put("json", rs.getString(3));
+                    row.put("int", intOrNull(rs, 4));
+                    out.add(row);
+                }
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return out;
+    }
+
+    /** Строка курсора по ответам: одна на ответ, ответы одного респондента идут подряд. */
+    public interface AnswerCursor {
+        void row(long responseId, long tgId, String completedAt, String questionId, String answerText, String optionsJson) throws Exception;
+    }
+
+    /** Потоковый проход по ответам завершённых анкет (по response_id) — без загрузки в память. */
+    public void streamCompletedAnswers(String surveyId, AnswerCursor cursor) throws Exception {
+        String sql = """
+          SELECT r.id, u.tg_id, r.completed_at, a.question_id, a.answer_text, a.option_ids_json
+          FROM responses r
+          JOIN users u ON u.id=r.user_id
+          JOIN answers a ON a.response_id=r.id
+          WHERE r.survey_id=? AND r.status='COMPLETED'
+          ORDER BY r.id, a.id
+        """;
+        try (Timed t = time("streamCompletedAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            try (ResultSet rs = bind(ps, surveyId).executeQuery()) {
+                while (rs.next()) cursor.row(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getString(6));
+            }
+        }
+    }
+
+    /** Строка курсора по свободным ответам вопроса: текст и сколько раз он встретился. */
+    public interface TextCursor {
+        void row(String text, int count) throws Exception;
+    }
+
+    /** Ответы на TEXT-вопрос в завершённых анкетах, в порядке ответов (count = 1); пустые — «(без текста)». */
+    public void streamTextAnswers(String surveyId, String questionId, TextCursor cursor) throws Exception {
+        String sql = """
+          SELECT CASE WHEN TRIM(COALESCE(a.answer_text,''))='' THEN '(без текста)' ELSE a.answer_text END
+          FROM answers a JOIN responses r ON r.id=a.response_id
+          WHERE a.question_id=? AND r.survey_id=? AND r.status='COMPLETED'
+          ORDER BY a.id
+        """;
+        try (Timed t = time("streamTextAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            ps.setString(1, questionId);
+            ps.setString(2, surveyId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) cursor.row(rs.getString(1), 1);
+            }
+        }
+    }
+
+    /** «Свои» варианты вопроса в завершённых анкетах (без «Другое: ») с числом повторов — частые первыми. */
+    public void streamOtherAnswers(String surveyId, String questionId, TextCursor cursor) throws Exception {
+        String sql = """
+          SELECT CASE WHEN o='' THEN '(без текста)' ELSE o END AS v, COUNT(*) AS n FROM (
+            SELECT TRIM(SUBSTR(a.answer_text, 9)) AS o
+            FROM answers a JOIN responses r ON r.id=a.response_id
+            WHERE a.question_id=? AND r.survey_id=? AND r.status='COMPLETED' AND a.answer_text LIKE 'Другое: %'
+            UNION ALL
+            SELECT TRIM(SUBSTR(j.value, 9))
+            FROM answers a JOIN responses r ON r.id=a.response_id, json_each(a.option_ids_json) j
+            WHERE a.question_id=? AND r.survey_id=? AND r.status='COMPLETED' AND a.option_ids_json IS NOT NULL AND j.value LIKE 'Другое: %'
+          ) GROUP BY v ORDER BY n DESC, v
+        """;
+        try (Timed t = time("streamOtherAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, questionId);
+            ps.setString(2, surveyId);
+            ps.setString(3, questionId);
+            ps.setString(4, surveyId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) cursor.row(rs.getString(1), rs.getInt(2));
+            }
+        }
+    }
+
+    /** Незавершённые сессии. keys: tgId, survey_id, survey_version, current_q_index, updated_at */
+    public List<Map<String,Object>> listProgress() {
+        String sql = "SELECT u.tg_id, p.survey_id, p.survey_version, p.current_q_index, p.updated_at FROM user_progress p JOIN users u ON u.id=p.user_id";
+        List<Map<String,Object>> out = new ArrayList<>();
+        try (Timed t = time("listProgress"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                Map<String,Object> row = new HashMap<>();
+                row.put("tgId", rs.getLong(1));
+                row.put("survey_id", rs.getString(2));
+                row.put("survey_version", rs.getInt(3));
+                row.put("current_q_index", rs.getInt(4));
+                row.put("updated_at", rs.getString(5));
+                out.add(row);
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return out;
+    }
+
+    /** Строка курсора по времени ответов: с какого момента вопрос ждал ответа (предыдущий ответ или начало анкеты) и когда ответили. */
+    public interface TimingCursor {
+        void row(long answerId, String shownAt, String questionId, String answeredAt) throws Exception;
+    }
+
+    /** Ответы анкеты (и завершённых, и незавершённых) с answers.id больше {@code afterId} — для распределений времени на вопрос. */
+    public void streamAnswerTimings(String surveyId, long afterId, TimingCursor cursor) throws Exception {
+        String sql = """
+          SELECT a.id,
+                 COALESCE((SELECT p.created_at FROM answers p WHERE p.response_id=a.response_id AND p.id<a.id ORDER BY p.id DESC LIMIT 1), r.started_at),
+                 a.question_id, a.created_at
+          FROM answers a JOIN responses r ON r.id=a.response_id
+          WHERE r.survey_id=? AND a.id>?
+          ORDER BY a.id
+        """;
+        try (Timed t = time("streamAnswerTimings"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            ps.setString(1, surveyId);
+            ps.setLong(2, afterId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) cursor.row(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4));
+            }
+        }
+    }
+
+    public Map<String,Object> loadFunnelSnapshot(String surveyId) {
+        String sql = "SELECT data, watermark FROM funnel_snapshots WHERE survey_id=?";
+        try (Timed t = time("loadFunnelSnapshot"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, surveyId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                Map<String,Object> row = new HashMap<>();
+                row.put("data", rs.getBytes(1));
+                row.put("watermark", rs.getLong(2));
+                return row;
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return null;
+    }
+
+    public void saveFunnelSnapshot(String surveyId, byte[] data, long watermark) {
         String sql = """
-          SELECT u.tg_id, a.question_id, a.answer_text, a.option_ids_json
+          INSERT INTO funnel_snapshots(survey_id, data, watermark, saved_at) VALUES(?,?,?,?)
+          ON CONFLICT(survey_id) DO UPDATE SET data=excluded.data, watermark=excluded.watermark, saved_at=excluded.saved_at
+        """;
+        try (Timed t = time("saveFunnelSnapshot"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, surveyId);
+            ps.setBytes(2, data);
+            ps.setLong(3, watermark);
+            ps.setString(4, Instant.now().toString());
+            ps.executeUpdate();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    /** Строка курсора по завершениям: номер завершения, начало и конец прохождения. */
+    public interface CompletionCursor {
+        void row(long seq, String startedAt, String completedAt) throws Exception;
+    }
+
+    /** Завершения анкеты с completed_seq больше {@code afterSeq} (0 — все) в порядке фиксации. */
+    public void streamCompletionTimes(String surveyId, long afterSeq, CompletionCursor cursor) throws Exception {
+        String sql = "SELECT completed_seq, started_at, completed_at FROM responses WHERE completed_seq > ? AND survey_id=? AND status='COMPLETED' ORDER BY completed_seq";
+        try (Timed t = time("streamCompletionTimes"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            ps.setLong(1, afterSeq);
+            ps.setString(2, surveyId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) cursor.row(rs.getLong(1), rs.getString(2), rs.getString(3));
+            }
+        }
+    }
+
+    public Map<String,Object> loadSeriesSnapshot(String surveyId) {
+        String sql = "SELECT data, watermark FROM series_snapshots WHERE survey_id=?";
+        try (Timed t = time("loadSeriesSnapshot"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, surveyId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                Map<String,Object> row = new HashMap<>();
+                row.put("data", rs.getBytes(1));
+                row.put("watermark", rs.getLong(2));
+                return row;
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return null;
+    }
+
+    public void saveSeriesSnapshot(String surveyId, byte[] data, long watermark) {
+        String sql = """
+          INSERT INTO series_snapshots(survey_id, data, watermark, saved_at) VALUES(?,?,?,?)
+          ON CONFLICT(survey_id) DO UPDATE SET data=excluded.data, watermark=excluded.watermark, saved_at=excluded.saved_at
+        """;
+        try (Timed t = time("saveSeriesSnapshot"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, surveyId);
+            ps.setBytes(2, data);
+            ps.setLong(3, watermark);
+            ps.setString(4, Instant.now().toString());
+            ps.executeUpdate();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
+    public List<Map<String, Object>> getAllCompletedAnswers(String surveyId) {
+        String sql = """
+          SELECT u.tg_id, a.question_id, a.answer_text, a.option_ids_json, a.answer_int
           FROM answers a
           JOIN responses r ON r.id=a.response_id
           JOIN users u ON u.id=r.user_id
-          WHERE r.status='COMPLETED'
+          WHERE r.survey_id=? AND r.status='COMPLETED'
         """;
         List<Map<String, Object>> out = new ArrayList<>();
-        try (Connection c = connect(); Statement s = c.createStatement(); ResultSet rs = s.executeQuery(sql)) {
+        try (Timed t = time("getAllCompletedAnswers"); Connection c = connect(); PreparedStatement ps = c.prepareStatement(sql); ResultSet rs = bind(ps, surveyId).executeQuery()) {
             while (rs.next()) {
                 Map<String, Object> row = new HashMap<>();
                 row.put("tgId", rs.getLong(1));
                 row.put("q", rs.getString(2));
                 row.put("text", rs.getString(3));
                 row.put("json", rs.getString(4));
+                row.put("int", intOrNull(rs, 5));
                 out.add(row);
             }
         } catch (SQLException e) { e.printStackTrace(); }
         return out;
     }
-}
\ No newline at end of file
+
+    /* ===== журнал апдейтов (UpdatePoller) ===== */
+
+    /** Сколько обработанных апдейтов держать в журнале, чтобы узнать повтор после рестарта. */
+    private static final int JOURNAL_KEEP_DONE = 5000;
+
+    /**
+     * Пачка апдейтов (update_id → JSON) одной транзакцией. Возвращает id, записанные впервые
+     * (уже известные — повторная доставка), или null, если записать не удалось.
+     */
+    public Set<Integer> journalAppend(Map<Integer,String> updates) {
+        String sql = "INSERT OR IGNORE INTO update_journal(update_id, json, received_at) VALUES(?,?,?)";
+        try (Timed t = time("journalAppend"); Connection c = connect()) {
+            c.setAutoCommit(false);
+            Set<Integer> fresh = new LinkedHashSet<>();
+            String now = Instant.now().toString();
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                for (var e : updates.entrySet()) {
+                    ps.setInt(1, e.getKey());
+                    ps.setString(2, e.getValue());
+                    ps.setString(3, now);
+                    if (ps.executeUpdate() == 1) fresh.add(e.getKey());
+                }
+            }
+            c.commit();
+            return fresh;
+        } catch (SQLException e) { e.printStackTrace(); }
+        return null;
+    }
+
+    /** Записанные, но не обработанные апдейты (JSON) по возрастанию update_id. */
+    public List<String> journalPending() {
+        List<String> out = new ArrayList<>();
+        try (Timed t = time("journalPending"); Connection c = connect();
+             PreparedStatement ps = c.prepareStatement("SELECT json FROM update_journal WHERE done=0 ORDER BY update_id");
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) out.add(rs.getString(1));
+        } catch (SQLException e) { e.printStackTrace(); }
+        return out;
+    }
+
+    /** Апдейты до {@code maxId} включительно обработаны; старые обработанные сверх JOURNAL_KEEP_DONE удаляются. */
+    public void journalDone(int maxId) {
+        try (Timed t = time("journalDone"); Connection c = connect()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement("UPDATE update_journal SET done=1 WHERE update_id<=? AND done=0")) {
+                ps.setInt(1, maxId);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = c.prepareStatement("DELETE FROM update_journal WHERE done=1 AND update_id<=?")) {
+                ps.setInt(1, maxId - JOURNAL_KEEP_DONE);
+                ps.executeUpdate();
+            }
+            c.commit();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+}
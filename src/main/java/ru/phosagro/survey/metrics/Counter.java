@@ -0,0 +1,33 @@
+package ru.phosagro.survey.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Монотонный счётчик на LongAdder; семейство с одной меткой — как у {@link Histogram}. */
+public final class Counter {
+    final String name, help, label;
+    final Map<String,LongAdder> children = new ConcurrentHashMap<>();
+    private final LongAdder single;
+
+    Counter(String name, String help, String label) {
+        this.name = name;
+        this.help = help;
+        this.label = label;
+        this.single = label == null ? children.computeIfAbsent("", k -> new LongAdder()) : null;
+    }
+
+    public void inc() { single.increment(); }
+
+    public void inc(String value) {
+        LongAdder a = children.get(value);
+        (a != null ? a : children.computeIfAbsent(value, k -> new LongAdder())).increment();
+    }
+
+    public long get() { return single.sum(); }
+
+    public long get(String value) {
+        LongAdder a = children.get(value);
+        return a == null ? 0 : a.sum();
+    }
+}
@@ -0,0 +1,83 @@
+package ru.phosagro.survey.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей с фиксированными корзинами (секунды, как принято в Prometheus).
+ * Запись — поиск корзины по long[] и два LongAdder.increment/add: без аллокаций и блокировок.
+ * Семейство с одной меткой: {@code child("sendMessage")} создаётся один раз и дальше берётся из карты.
+ */
+public final class Histogram {
+    /** Границы корзин, секунды. */
+    static final double[] BOUNDS_SEC = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final long[] BOUNDS_NS = new long[BOUNDS_SEC.length];
+    static {
+        for (int i = 0; i < BOUNDS_SEC.length; i++) BOUNDS_NS[i] = (long) (BOUNDS_SEC[i] * 1e9);
+    }
+
+    final String name, help, label;
+    final Map<String,Child> children = new ConcurrentHashMap<>();
+    private final Child single;
+    private final Rolling window; // все метки вместе, для /perf; может быть null
+
+    Histogram(String name, String help, String label, boolean rolling) {
+        this.name = name;
+        this.help = help;
+        this.label = label;
+        this.window = rolling ? new Rolling() : null;
+        this.single = label == null ? children.computeIfAbsent("", k -> new Child(window)) : null;
+    }
+
+    public Child child(String value) {
+        Child c = children.get(value);
+        return c != null ? c : children.computeIfAbsent(value, k -> new Child(window));
+    }
+
+    /** Скользящее окно по всему семейству (если включено при регистрации). */
+    public Rolling window() { return window; }
+
+    /** Для семейства без метки. */
+    public void observeNanos(long nanos) { single.observeNanos(nanos); }
+
+    /** Записать время от {@code startNanos} (System.nanoTime()) до сейчас. */
+    public void observeSince(long startNanos) { single.observeNanos(System.nanoTime() - startNanos); }
+
+    public void observeSince(String value, long startNanos) { child(value).observeNanos(System.nanoTime() - startNanos); }
+
+    public static final class Child {
+        final LongAdder[] buckets = new LongAdder[BOUNDS_NS.length + 1]; // последняя — +Inf
+        final LongAdder sumNanos = new LongAdder();
+        private final Rolling window;
+
+        Child(Rolling window) {
+            this.window = window;
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void observeNanos(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NS.length && nanos > BOUNDS_NS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+            if (window != null) window.record(i, nanos);
+        }
+
+        public void observeSince(long startNanos) { observeNanos(System.nanoTime() - startNanos); }
+
+        /** Текущие счётчики по корзинам (не накопительно). */
+        public long[] counts() {
+            long[] out = new long[buckets.length];
+            for (int i = 0; i < out.length; i++) out[i] = buckets[i].sum();
+            return out;
+        }
+
+        public long sumNanos() { return sumNanos.sum(); }
+    }
+
+    /** Верхняя граница корзины {@code i}, секунды (для последней — бесконечность). */
+    public static double bound(int i) { return i < BOUNDS_SEC.length ? BOUNDS_SEC[i] : Double.POSITIVE_INFINITY; }
+
+    public static int bucketCount() { return BOUNDS_SEC.length + 1; }
+}
@@ -0,0 +1,151 @@
+package ru.phosagro.survey.metrics;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики процесса: один общий реестр на JVM (как default registry у клиента Prometheus),
+ * чтобы не протаскивать его через конструкторы Db/Bot/сервисов. Отдаётся в текстовом формате
+ * Prometheus через {@link MetricsServer}.
+ */
+public final class Metrics {
+    private Metrics() {}
+
+    private static final List<Object> REGISTERED = new CopyOnWriteArrayList<>(); // Counter | Histogram | Gauge
+
+    /* ===== общие метрики бота ===== */
+
+    public static final Histogram UPDATE = histogram("bot_update_seconds", "Обработка апдейта по маршруту", "route", true);
+    public static final Histogram DB = histogram("db_call_seconds", "Вызовы Db по методам (от открытия до закрытия соединения)", "method", true);
+    public static final Histogram TELEGRAM = histogram("telegram_request_seconds", "Запросы к Telegram Bot API по методам", "method", true);
+    public static final Histogram STATS_AGE = histogram("stats_snapshot_age_seconds", "Возраст среза статистики в момент выдачи (страницы, экспорт)", "survey", true);
+    public static final Histogram BUILD = histogram("admin_build_seconds", "Сборка статистики и выгрузок", "what", false);
+
+    public static final Counter UPDATES = counter("bot_updates_total", "Полученные апдейты", "type");
+    public static final Counter ANSWERS = counter("survey_answers_total", "Сохранённые ответы", null);
+    public static final Counter COMPLETIONS = counter("survey_completions_total", "Завершённые анкеты", null);
+    public static final Counter ERRORS = counter("errors_total", "Перехваченные исключения", "where");
+    public static final Counter SHED = counter("updates_shed_total", "Апдейты, отброшенные при перегрузке: по приоритету или lane — дорожка пользователя", "priority");
+    public static final Counter RATE_LIMITED = counter("rate_limited_total", "События сверх лимита пользователя (RATE_BURST/RATE_PER_SEC), отброшены до БД", "kind");
+    public static final Counter CACHE = counter("cache_lookups_total", "Обращения к кэшам: <кэш>_hit / <кэш>_miss", "result");
+
+    public static final Cache STATS_CACHE = new Cache("stats_snapshot");
+    public static final Cache EXPORT_CACHE = new Cache("export_file");
+
+    /** Попадания/промахи кэша: счётчик для Prometheus и скользящие окна для /perf. */
+    public static final class Cache {
+        private final String hitLabel, missLabel;
+        private final Rolling hits = new Rolling(), misses = new Rolling();
+
+        Cache(String name) { hitLabel = name + "_hit"; missLabel = name + "_miss"; }
+
+        public void record(boolean hit) {
+            CACHE.inc(hit ? hitLabel : missLabel);
+            (hit ? hits : misses).mark();
+        }
+
+        /** Доля попаданий за окно или -1, если обращений не было. */
+        public double hitRate(long windowMs) {
+            long h = hits.window(windowMs).count(), m = misses.window(windowMs).count();
+            return h + m == 0 ? -1 : (double) h / (h + m);
+        }
+    }
+
+    public static Histogram histogram(String name, String help, String label) { return histogram(name, help, label, false); }
+
+    /** {@code rolling} — вести ещё и скользящее окно (для /perf). */
+    public static Histogram histogram(String name, String help, String label, boolean rolling) {
+        Histogram h = new Histogram(name, help, label, rolling);
+        REGISTERED.add(h);
+        return h;
+    }
+
+    public static Counter counter(String name, String help, String label) {
+        Counter c = new Counter(name, help, label);
+        REGISTERED.add(c);
+        return c;
+    }
+
+    /** Мгновенное значение (очереди, кэши); при повторной регистрации имени заменяется. */
+    public static void gauge(String name, String help, LongSupplier value) {
+        REGISTERED.removeIf(o -> o instanceof Gauge g && g.name.equals(name));
+        REGISTERED.add(new Gauge(name, help, value));
+    }
+
+    /** Текущее значение gauge или -1, если такого нет. */
+    public static long gaugeValue(String name) {
+        for (Object o : REGISTERED) {
+            if (o instanceof Gauge g && g.name.equals(name)) {
+                try { return g.value.getAsLong(); } catch (Exception e) { return -1; }
+            }
+        }
+        return -1;
+    }
+
+    private record Gauge(String name, String help, LongSupplier value) {}
+
+    /* ===== текстовый формат Prometheus 0.0.4 ===== */
+
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+        for (Object o : REGISTERED) {
+            if (o instanceof Counter c) {
+                header(sb, c.name, c.help, "counter");
+                for (var e : sorted(c.children)) {
+                    sb.append(c.name);
+                    labels(sb, c.label, e.getKey(), null);
+                    sb.append(' ').append(e.getValue().sum()).append('\n');
+                }
+            } else if (o instanceof Histogram h) {
+                header(sb, h.name, h.help, "histogram");
+                for (var e : sorted(h.children)) {
+                    long[] counts = e.getValue().counts();
+                    long acc = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        acc += counts[i];
+                        sb.append(h.name).append("_bucket");
+                        double b = Histogram.bound(i);
+                        labels(sb, h.label, e.getKey(), Double.isInfinite(b) ? "+Inf" : String.valueOf(b));
+                        sb.append(' ').append(acc).append('\n');
+                    }
+                    sb.append(h.name).append("_sum");
+                    labels(sb, h.label, e.getKey(), null);
+                    sb.append(' ').append(e.getValue().sumNanos() / 1e9).append('\n');
+                    sb.append(h.name).append("_count");
+                    labels(sb, h.label, e.getKey(), null);
+                    sb.append(' ').append(acc).append('\n');
+                }
+            } else if (o instanceof Gauge g) {
+                header(sb, g.name, g.help, "gauge");
+                long v;
+                try { v = g.value.getAsLong(); } catch (Exception e) { continue; }
+                sb.append(g.name).append(' ').append(v).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static <V> List<Map.Entry<String,V>> sorted(Map<String,V> m) {
+        List<Map.Entry<String,V>> out = new ArrayList<>(m.entrySet());
+        out.sort(Map.Entry.comparingByKey());
+        return out;
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void labels(StringBuilder sb, String label, String value, String le) {
+        if (label == null && le == null) return;
+        sb.append('{');
+        if (label != null) sb.append(label).append("=\"").append(escape(value)).append('"');
+        if (le != null) sb.append(label != null ? "," : "").append("le=\"").append(le).append('"');
+        sb.append('}');
+    }
+
+    private static String escape(String v) {
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,85 @@
+package ru.phosagro.survey.metrics;
+
+/**
+ * Скользящее окно за последние {@value #SLOTS}×5 с: кольцо слотов по 5 секунд, в каждом — счётчики
+ * по корзинам {@link Histogram} и сумма. Слот переиспользуется, когда время уходит на круг, —
+ * массивы выделяются один раз. Для /perf: частота событий и перцентили за минуту / пять минут.
+ */
+public final class Rolling {
+    static final long SLOT_MS = 5_000;
+    static final int SLOTS = 61; // 5 минут + текущий неполный слот
+
+    private final Slot[] slots = new Slot[SLOTS];
+    private final long createdMs = System.currentTimeMillis();
+
+    public Rolling() {
+        for (int i = 0; i < SLOTS; i++) slots[i] = new Slot(Histogram.bucketCount());
+    }
+
+    /** Событие длительностью {@code nanos}, попавшее в корзину {@code bucket}. */
+    public void record(int bucket, long nanos) {
+        long epoch = System.currentTimeMillis() / SLOT_MS;
+        Slot s = slots[(int) (epoch % SLOTS)];
+        synchronized (s) {
+            if (s.epoch != epoch) { s.epoch = epoch; java.util.Arrays.fill(s.counts, 0); s.sumNanos = 0; }
+            s.counts[bucket]++;
+            s.sumNanos += nanos;
+        }
+    }
+
+    /** Событие без длительности (счётчик). */
+    public void mark() { record(0, 0); }
+
+    /** Сумма по слотам за последние {@code windowMs} (с точностью до слота). */
+    public Window window(long windowMs) {
+        long now = System.currentTimeMillis() / SLOT_MS;
+        long oldest = now - Math.max(1, Math.min(SLOTS - 1, windowMs / SLOT_MS)) + 1;
+        long[] counts = new long[Histogram.bucketCount()];
+        long sum = 0;
+        for (Slot s : slots) {
+            synchronized (s) {
+                if (s.epoch < oldest || s.epoch > now) continue;
+                for (int i = 0; i < counts.length; i++) counts[i] += s.counts[i];
+                sum += s.sumNanos;
+            }
+        }
+        // окно — полные слоты плюс прошедшая часть текущего, но не больше времени с запуска
+        long spanMs = Math.min((now - oldest) * SLOT_MS + System.currentTimeMillis() % SLOT_MS, System.currentTimeMillis() - createdMs);
+        return new Window(counts, sum, Math.max(spanMs, 1));
+    }
+
+    private static final class Slot {
+        long epoch = -1;
+        final long[] counts;
+        long sumNanos;
+        Slot(int buckets) { counts = new long[buckets]; }
+    }
+
+    /** Срез окна: счётчики по корзинам, сумма длительностей и фактическая длина окна. */
+    public record Window(long[] counts, long sumNanos, long spanMs) {
+        public long count() {
+            long n = 0;
+            for (long c : counts) n += c;
+            return n;
+        }
+
+        public double perSecond() { return count() * 1000.0 / spanMs; }
+
+        /** Перцентиль, мс: линейно внутри корзины; для последней (+Inf) — её нижняя граница. */
+        public double percentileMs(double q) {
+            long n = count();
+            if (n == 0) return 0;
+            double rank = q * n, acc = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) continue;
+                if (acc + counts[i] >= rank) {
+                    double lo = i == 0 ? 0 : Histogram.bound(i - 1), hi = Histogram.bound(i);
+                    if (Double.isInfinite(hi)) return lo * 1000;
+                    return (lo + (hi - lo) * (rank - acc) / counts[i]) * 1000;
+                }
+                acc += counts[i];
+            }
+            return Histogram.bound(counts.length - 2) * 1000;
+        }
+    }
+}
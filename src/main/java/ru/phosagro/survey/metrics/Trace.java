@@ -0,0 +1,128 @@
+package ru.phosagro.survey.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Трассировка одного апдейта: спаны (вызов Db, запрос к Telegram, сборка текста) пишутся в
+ * заранее выделенные массивы трассы текущего потока — без аллокаций на спан. По окончании апдейта
+ * трасса копируется в кольцо последних {@value #RING} трасс; если апдейт шёл дольше SLOW_UPDATE_MS
+ * (по умолчанию 1000 мс), полная раскладка по спанам печатается в System.err.
+ * Вне апдейта (фоновые выгрузки, старт) спаны не пишутся.
+ */
+public final class Trace {
+    public static final byte DB = 0, TELEGRAM = 1, RENDER = 2;
+    private static final String[] KIND = {"db", "tg", "render"};
+    static final int MAX_SPANS = 128;
+    static final int RING = 256;
+
+    private static final long SLOW_NANOS = slowThresholdMs() * 1_000_000L;
+    private static final ThreadLocal<Trace> CURRENT = ThreadLocal.withInitial(Trace::new);
+    private static final Trace[] RECENT = new Trace[RING];
+    private static long recorded; // под synchronized(RECENT)
+    static {
+        for (int i = 0; i < RING; i++) RECENT[i] = new Trace();
+    }
+
+    // одна трасса; у потока — своя, в кольце — копии
+    private long updateId;
+    private String route;
+    private long startNanos, totalNanos, wallStartMs;
+    private boolean active;
+    private int spans, dropped;
+    private final byte[] kinds = new byte[MAX_SPANS];
+    private final String[] names = new String[MAX_SPANS];
+    private final long[] offsets = new long[MAX_SPANS];   // от начала апдейта, нс
+    private final long[] durations = new long[MAX_SPANS];
+
+    private Trace() {}
+
+    private static long slowThresholdMs() {
+        try { return Long.parseLong(System.getenv().getOrDefault("SLOW_UPDATE_MS", "1000").trim()); }
+        catch (NumberFormatException e) { return 1000; }
+    }
+
+    /** Начать трассу апдейта в текущем потоке. */
+    public static void begin(long updateId, String route) {
+        Trace t = CURRENT.get();
+        t.updateId = updateId;
+        t.route = route;
+        t.startNanos = System.nanoTime();
+        t.wallStartMs = System.currentTimeMillis();
+        t.spans = 0;
+        t.dropped = 0;
+        t.active = true;
+    }
+
+    /** Спан от {@code startNanos} до сейчас; {@code name} — константа (метод Db/API, шаг сборки). */
+    public static void span(byte kind, String name, long startNanos) {
+        Trace t = CURRENT.get();
+        if (!t.active) return;
+        if (t.spans == MAX_SPANS) { t.dropped++; return; }
+        int i = t.spans++;
+        t.kinds[i] = kind;
+        t.names[i] = name;
+        t.offsets[i] = startNanos - t.startNanos;
+        t.durations[i] = System.nanoTime() - startNanos;
+    }
+
+    /** Закончить трассу: в кольцо, а медленную — ещё и в лог. */
+    public static void end() {
+        Trace t = CURRENT.get();
+        if (!t.active) return;
+        t.active = false;
+        t.totalNanos = System.nanoTime() - t.startNanos;
+        synchronized (RECENT) { t.copyTo(RECENT[(int) (recorded++ % RING)]); }
+        if (t.totalNanos >= SLOW_NANOS) System.err.println(t.describe());
+    }
+
+    private void copyTo(Trace o) {
+        o.updateId = updateId; o.route = route;
+        o.startNanos = startNanos; o.totalNanos = totalNanos; o.wallStartMs = wallStartMs;
+        o.spans = spans; o.dropped = dropped;
+        System.arraycopy(kinds, 0, o.kinds, 0, spans);
+        System.arraycopy(names, 0, o.names, 0, spans);
+        System.arraycopy(offsets, 0, o.offsets, 0, spans);
+        System.arraycopy(durations, 0, o.durations, 0, spans);
+    }
+
+    /** «SLOW update 123 cb:answer_single 1520.3 ms [db 12.1 · tg 1490.0 · render 0.4]: tg:editMessageText +0.2 1210.7 ms, …» */
+    private String describe() {
+        long[] byKind = new long[KIND.length];
+        for (int i = 0; i < spans; i++) byKind[kinds[i]] += durations[i];
+        StringBuilder sb = new StringBuilder(64 + spans * 48);
+        sb.append("SLOW update ").append(updateId).append(' ').append(route).append(' ').append(ms(totalNanos)).append(" ms [");
+        for (int k = 0; k < KIND.length; k++) sb.append(k > 0 ? " · " : "").append(KIND[k]).append(' ').append(ms(byKind[k]));
+        sb.append(']');
+        for (int i = 0; i < spans; i++) {
+            sb.append(i == 0 ? ": " : ", ").append(KIND[kinds[i]]).append(':').append(names[i])
+              .append(" +").append(ms(offsets[i])).append(' ').append(ms(durations[i])).append(" ms");
+        }
+        if (dropped > 0) sb.append(", …ещё ").append(dropped).append(" спанов");
+        return sb.toString();
+    }
+
+    private static String ms(long nanos) { return String.format(Locale.ROOT, "%.1f", nanos / 1e6); }
+
+    /** Последние трассы (новые первыми) — сводка по видам спанов. */
+    public static List<Summary> recent(int limit) {
+        List<Summary> out = new ArrayList<>(Math.min(limit, RING));
+        synchronized (RECENT) {
+            for (long k = recorded - 1; k >= 0 && k >= recorded - RING && out.size() < limit; k--) {
+                Trace t = RECENT[(int) (k % RING)];
+                long[] byKind = new long[KIND.length];
+                for (int i = 0; i < t.spans; i++) byKind[t.kinds[i]] += t.durations[i];
+                out.add(new Summary(t.updateId, t.route, t.wallStartMs, t.totalNanos, byKind[DB], byKind[TELEGRAM], byKind[RENDER], t.spans));
+            }
+        }
+        return out;
+    }
+
+    /** Порог медленного апдейта, мс. */
+    public static long slowThresholdMillis() { return SLOW_NANOS / 1_000_000L; }
+
+    /** Сводка трассы: общее время и сумма спанов по видам (вложенные спаны — например, Db внутри сборки — входят в оба). */
+    public record Summary(long updateId, String route, long startedAtMs, long totalNanos,
+                          long dbNanos, long telegramNanos, long renderNanos, int spans) {}
+}
@@ -0,0 +1,171 @@
+package ru.phosagro.survey.model;
+
+import ru.phosagro.survey.util.Html;
+
+import java.util.*;
+
+/**
+ * Анкета, подготовленная к работе: индексы вопросов и вариантов,
+ * заранее экранированные заголовки, чтобы не пересчитывать их на каждое сообщение,
+ * и таблица переходов (ветвления) вопрос × ответ -> следующий вопрос.
+ * Неизменяема: вопросы и варианты — замороженные копии исходного {@link Survey}, его дальнейшие правки сюда не доходят.
+ */
+public final class CompiledSurvey {
+    public static final String OTHER_HINT = "\n\nМожете написать свой вариант ответа в чат.";
+    public static final String END = "END";
+    public static final String ANY = "*";
+
+    private final String id, title, welcome, startButton, finish;
+    private final int version;
+    private final List<Question> questions;
+    private final Map<String,Integer> ordinals;
+    private final List<Map<String,String>> optionText; // по ordinal вопроса: optionId -> текст
+    private final List<Map<String,Integer>> optionOrdinal; // по ordinal вопроса: optionId -> порядковый номер
+    private final int[] otherOrdinal;    // номер варианта «Другое» или -1
+    private final int[][] next;          // [вопрос][ответ] -> следующий вопрос; последний столбец — «любой ответ»
+    private final boolean branching;
+    private final List<String[]> crosstabs; // {строки, столбцы}
+    private final boolean[] hasOther;
+    private final String[] escapedText;  // экранированный текст вопроса
+    private final String[] header;       // текст + подсказка про «свой вариант»
+
+    public CompiledSurvey(Survey source) { this(source, source.getId(), 0); }
+
+    public CompiledSurvey(Survey source, String id, int version) {
+        this.id = id;
+        this.title = source.getTitle();
+        this.welcome = source.getWelcome();
+        this.startButton = source.getStartButton();
+        this.finish = source.getFinish();
+        this.version = version;
+        this.questions = source.getQuestions().stream().map(Question::frozenCopy).toList();
+        int n = questions.size();
+        Map<String,Integer> ord = new HashMap<>(n * 2);
+        List<Map<String,String>> opts = new ArrayList<>(n);
+        List<Map<String,Integer>> optOrd = new ArrayList<>(n);
+        this.hasOther = new boolean[n];
+        this.otherOrdinal = new int[n];
+        this.escapedText = new String[n];
+        this.header = new String[n];
+        for (int i = 0; i < n; i++) {
+            Question q = questions.get(i);
+            ord.putIfAbsent(q.getId(), i);
+            Map<String,String> dict = new HashMap<>();
+            Map<String,Integer> oo = new HashMap<>();
+            otherOrdinal[i] = -1;
+            if (q.getOptions() != null) for (int j = 0; j < q.getOptions().size(); j++) {
+                Option o = q.getOptions().get(j);
+                dict.putIfAbsent(o.getId(), o.getText());
+                oo.putIfAbsent(o.getId(), j);
+                if (o.isOther()) { hasOther[i] = true; if (otherOrdinal[i] < 0) otherOrdinal[i] = j; }
+            }
+            opts.add(Collections.unmodifiableMap(dict));
+            optOrd.add(Collections.unmodifiableMap(oo));
+            escapedText[i] = Html.escape(q.getText());
+            header[i] = hasOther[i] ? escapedText[i] + OTHER_HINT : escapedText[i];
+        }
+        this.ordinals = Collections.unmodifiableMap(ord);
+        this.optionText = Collections.unmodifiableList(opts);
+        this.optionOrdinal = Collections.unmodifiableList(optOrd);
+
+        this.next = new int[n][];
+        boolean anyBranch = false;
+        for (int i = 0; i < n; i++) {
+            Question q = questions.get(i);
+            Map<String,String> rules = q.getNext() == null ? Map.of() : q.getNext();
+            anyBranch |= !rules.isEmpty();
+            int answers = answerCount(q);
+            int[] row = new int[answers + 1];
+            int dflt = target(rules.get(ANY), i + 1);
+            for (int a = 0; a < answers; a++) row[a] = target(rules.get(answerKey(q, a)), dflt);
+            row[answers] = dflt;
+            next[i] = row;
+        }
+        this.branching = anyBranch;
+
+        List<String[]> ct = new ArrayList<>();
+        if (source.getCrosstabs() != null) for (List<String> pair : source.getCrosstabs()) {
+            if (pair != null && pair.size() == 2) ct.add(new String[]{pair.get(0), pair.get(1)});
+        }
+        this.crosstabs = Collections.unmodifiableList(ct);
+    }
+
+    /** Сколько различимых ответов у вопроса для таблицы переходов (варианты / 10 баллов / 0). */
+    public static int answerCount(Question q) {
+        return switch (q.getType()) {
+            case SINGLE, MULTI -> q.getOptions() == null ? 0 : q.getOptions().size();
+            case RATING_1_10 -> 10;
+            case TEXT -> 0;
+        };
+    }
+
+    /** Ключ ответа в "next": id варианта или балл. */
+    private static String answerKey(Question q, int answer) {
+        return q.getType() == QuestionType.RATING_1_10 ? String.valueOf(answer + 1) : q.getOptions().get(answer).getId();
+    }
+
+    private int target(String qId, int fallback) {
+        if (qId == null) return fallback;
+        if (END.equals(qId)) return questions.size();
+        Integer t = ordinals.get(qId);
+        return t == null ? fallback : t;
+    }
+
+    /** Идентификатор анкеты (deep-link /start &lt;id&gt;). */
+    public String getId() { return id; }
+    /** Номер версии определения (0 — не версионировано). */
+    public int getVersion() { return version; }
+    public String getTitle() { return title; }
+    public String getWelcome() { return welcome; }
+    public String getStartButton() { return startButton; }
+    public String getFinish() { return finish; }
+    public List<Question> getQuestions() { return questions; }
+    public int size() { return questions.size(); }
+
+    public Question get(int ordinal) { return questions.get(ordinal); }
+
+    public Question findQuestion(String qId) {
+        Integer i = ordinals.get(qId);
+        return i == null ? null : questions.get(i);
+    }
+
+    /** Порядковый номер вопроса или -1. */
+    public int ordinalOf(String qId) {
+        Integer i = ordinals.get(qId);
+        return i == null ? -1 : i;
+    }
+
+    public boolean hasOther(int ordinal) { return hasOther[ordinal]; }
+    public String escapedText(int ordinal) { return escapedText[ordinal]; }
+    public String header(int ordinal) { return header[ordinal]; }
+
+    /** Порядковый номер варианта или -1. */
+    public int optionOrdinal(int ordinal, String optionId) {
+        Integer j = optionOrdinal.get(ordinal).get(optionId);
+        return j == null ? -1 : j;
+    }
+
+    /** Номер варианта «Другое» (свой ответ текстом) или -1. */
+    public int otherOrdinal(int ordinal) { return otherOrdinal[ordinal]; }
+
+    /**
+     * Следующий вопрос после ответа: O(1) по таблице переходов.
+     * @param answer номер варианта (SINGLE), балл-1 (RATING); -1 — «любой ответ» (MULTI, TEXT)
+     * @return номер вопроса; {@link #size()} — анкета завершена
+     */
+    public int next(int ordinal, int answer) {
+        int[] row = next[ordinal];
+        return answer < 0 || answer >= row.length - 1 ? row[row.length - 1] : row[answer];
+    }
+
+    /** Объявленные в анкете кросс-таблицы: {id вопроса-строк, id вопроса-столбцов}. */
+    public List<String[]> getCrosstabs() { return crosstabs; }
+
+    /** Есть ли в анкете переходы, отличные от «по порядку». */
+    public boolean hasBranching() { return branching; }
+
+    /** Текст варианта по id; для «своих» ответов (нет такого id) — сам id. */
+    public String optionText(int ordinal, String optionId) {
+        return optionText.get(ordinal).getOrDefault(optionId, optionId);
+    }
+}
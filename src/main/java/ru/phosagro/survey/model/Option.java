@@ -7,12 +7,27 @@ public class Option {
     private String id;
     private String text;
     private boolean other;
+    private boolean frozen; // копия внутри CompiledSurvey — только для чтения
 
     public String getId() { return id; }
     public String getText() { return text; }
     public boolean isOther() { return other; }
 
-    public void setId(String id) { this.id = id; }
-    public void setText(String text) { this.text = text; }
-    public void setOther(boolean other) { this.other = other; }
+    public void setId(String id) { mutable(); this.id = id; }
+    public void setText(String text) { mutable(); this.text = text; }
+    public void setOther(boolean other) { mutable(); this.other = other; }
+
+    /** Копия для опубликованной анкеты (см. {@link Question#frozenCopy()}). */
+    public Option frozenCopy() {
+        Option c = new Option();
+        c.id = id;
+        c.text = text;
+        c.other = other;
+        c.frozen = true;
+        return c;
+    }
+
+    private void mutable() {
+        if (frozen) throw new IllegalStateException("Вариант опубликованной анкеты менять нельзя: " + id);
+    }
 }
\ No newline at end of file
@@ -2,7 +2,10 @@ package ru.phosagro.survey.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Question {
@@ -11,16 +14,43 @@ public class Question {
     private String text;
     private List<Option> options;
     private Integer max; // for MULTI
+    /**
+     * Переходы (необязательно): ключ — id варианта (SINGLE), балл "1".."10" (RATING_1_10) или "*" (любой ответ;
+     * для MULTI и TEXT — единственный), значение — id следующего вопроса или "END". Например:
+     * {@code "next": {"a": "q5_why_stay", "d": "END", "*": "q3_problem_areas"}}.
+     * Без правила — следующий вопрос по порядку.
+     */
+    private Map<String,String> next;
+    private boolean frozen; // копия внутри CompiledSurvey — только для чтения
 
     public String getId() { return id; }
     public QuestionType getType() { return type; }
     public String getText() { return text; }
     public List<Option> getOptions() { return options; }
     public Integer getMax() { return max == null ? 0 : max; }
+    public Map<String,String> getNext() { return next; }
 
-    public void setId(String id) { this.id = id; }
-    public void setType(QuestionType type) { this.type = type; }
-    public void setText(String text) { this.text = text; }
-    public void setOptions(List<Option> options) { this.options = options; }
-    public void setMax(Integer max) { this.max = max; }
+    public void setId(String id) { mutable(); this.id = id; }
+    public void setType(QuestionType type) { mutable(); this.type = type; }
+    public void setText(String text) { mutable(); this.text = text; }
+    public void setOptions(List<Option> options) { mutable(); this.options = options; }
+    public void setMax(Integer max) { mutable(); this.max = max; }
+    public void setNext(Map<String,String> next) { mutable(); this.next = next; }
+
+    /** Копия для опубликованной анкеты: варианты и переходы неизменяемы, сеттеры бросают IllegalStateException. */
+    public Question frozenCopy() {
+        Question c = new Question();
+        c.id = id;
+        c.type = type;
+        c.text = text;
+        c.max = max;
+        c.options = options == null ? null : options.stream().map(Option::frozenCopy).toList();
+        c.next = next == null ? null : Collections.unmodifiableMap(new HashMap<>(next));
+        c.frozen = true;
+        return c;
+    }
+
+    private void mutable() {
+        if (frozen) throw new IllegalStateException("Вопрос опубликованной анкеты менять нельзя: " + id);
+    }
 }
\ No newline at end of file
@@ -6,21 +6,27 @@ import java.util.List;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Survey {
+    private String id;
     private String title;
     private String welcome;
     private String startButton;
     private List<Question> questions;
     private String finish;
+    private List<List<String>> crosstabs; // пары [вопрос-строки, вопрос-столбцы] для кросс-таблиц
 
+    public String getId() { return id; }
     public String getTitle() { return title; }
     public String getWelcome() { return welcome; }
     public String getStartButton() { return startButton; }
     public List<Question> getQuestions() { return questions; }
     public String getFinish() { return finish; }
+    public List<List<String>> getCrosstabs() { return crosstabs; }
 
+    public void setId(String id) { this.id = id; }
     public void setTitle(String title) { this.title = title; }
     public void setWelcome(String welcome) { this.welcome = welcome; }
     public void setStartButton(String startButton) { this.startButton = startButton; }
     public void setQuestions(List<Question> questions) { this.questions = questions; }
     public void setFinish(String finish) { this.finish = finish; }
+    public void setCrosstabs(List<List<String>> crosstabs) { this.crosstabs = crosstabs; }
 }
\ No newline at end of file
@@ -3,33 +3,92 @@ package ru.phosagro.survey.service;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import ru.phosagro.survey.db.Db;
-import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.metrics.Rolling;
+import ru.phosagro.survey.metrics.Trace;
+import ru.phosagro.survey.model.CompiledSurvey;
 import ru.phosagro.survey.model.Question;
 import ru.phosagro.survey.model.QuestionType;
-import ru.phosagro.survey.model.Survey;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xddf.usermodel.chart.*;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.*;
+
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 
 public class AdminService {
     private static final int USERS_PAGE_SIZE = 15;
+    private static final int EXPORT_ROW_WINDOW = 100;
     private final Db db;
     private final SurveyService surveyService;
-    private Survey survey;
-
-    public AdminService(Db db, SurveyService surveyService) {
+    private final SurveyRegistry registry;
+    private final StatsEngine stats;
+    private final RawExporter rawExporter;
+    private final FunnelTracker funnel;
+    private final CompletionSeries series;
+    // какую анкету смотрит админ (статистика/пользователи/экспорт)
+    private final Map<Long,String> selectedSurvey = new ConcurrentHashMap<>();
+
+    public AdminService(Db db, SurveyRegistry registry, StatsEngine stats, FunnelTracker funnel,
+                        CompletionSeries series, RawExporter rawExporter, SurveyService surveyService) {
         this.db = db;
+        this.registry = registry;
+        this.stats = stats;
+        this.funnel = funnel;
+        this.series = series;
+        this.rawExporter = rawExporter;
         this.surveyService = surveyService;
     }
 
+    /** Время сборки: в гистограмму и спаном в трассу апдейта. */
+    private static void built(String what, long t0) {
+        Metrics.BUILD.observeSince(what, t0);
+        Trace.span(Trace.RENDER, what, t0);
+    }
+
     public String addAdmin(long actor, long target) { return db.addAdmin(actor, target); }
 
+    /** Ответы и прогресс пользователя удалены напрямую в БД (/resetme) — статистику, воронку и ряды нужно поправить. */
+    public void userReset(long tgId) {
+        stats.invalidate();
+        funnel.forget(tgId);
+        series.recount();
+    }
+
     public String openAdminPanel(long actor) {
         if (!db.isAdmin(actor)) return "Доступ запрещён.";
-        int total = db.countCompleted();
-        return "Админ-панель:\n— Завершённых анкет: " + total + "\nВыберите действие ниже.";
+        CompiledSurvey survey = selectedSurvey(actor);
+        int total = stats.completed(survey.getId());
+        StringBuilder sb = new StringBuilder("Админ-панель:\n");
+        if (registry.all().size() > 1) sb.append("— Анкета: ").append(titleOf(survey)).append("\n");
+        return sb.append("— Завершённых анкет: ").append(total).append("\nВыберите действие ниже.").toString();
+    }
+
+    /** Анкета, выбранная админом; по умолчанию — анкета по умолчанию. */
+    public CompiledSurvey selectedSurvey(long actor) {
+        CompiledSurvey s = registry.current(selectedSurvey.get(actor));
+        return s != null ? s : registry.current();
+    }
+
+    public boolean selectSurvey(long actor, String surveyId) {
+        if (registry.current(surveyId) == null) return false;
+        selectedSurvey.put(actor, surveyId);
+        return true;
+    }
+
+    public static String titleOf(CompiledSurvey s) {
+        return (s.getTitle() == null || s.getTitle().isBlank() ? s.getId() : s.getTitle()) + " (" + s.getId() + ")";
     }
 
     public String handleAdminCallback(long actor, String data) {
@@ -42,12 +101,30 @@ public class AdminService {
         return null;
     }
 
-    public byte[] exportStatsXlsx() {
-        ensureSurvey();
-        int completed = db.countCompleted();
-        List<Map<String,Object>> rows = db.getAllCompletedAnswers();
+    /**
+     * Excel со статистикой — потоково (SXSSF, в памяти не больше {@link #EXPORT_ROW_WINDOW} строк)
+     * прямо в файл {@code out}. Ширины колонок считаем сами: autoSizeColumn требует AWT-шрифтов.
+     */
+    public boolean exportStatsXlsx(String surveyId, Path out) { return exportStatsXlsx(surveyId, out, done -> {}); }
+
+    /** То же, с прогрессом: {@code progress} получает число уже выгруженных вопросов. */
+    public boolean exportStatsXlsx(String surveyId, Path out, IntConsumer progress) {
+        long t0 = System.nanoTime();
+        try { return writeStatsXlsx(surveyId, out, progress); }
+        finally { built("stats_xlsx", t0); }
+    }
 
-        try (Workbook wb = new XSSFWorkbook()) {
+    private boolean writeStatsXlsx(String surveyId, Path out, IntConsumer progress) {
+        CompiledSurvey survey = registry.current(surveyId);
+        if (survey == null) return false;
+        StatsEngine.Snapshot snap = stats.snapshot(surveyId);
+        int completed = snap.completed();
+
+        // лист с графиками собираем заранее в обычной XSSF-книге: у SXSSF-листов нельзя создать диаграмму
+        XSSFWorkbook template = new XSSFWorkbook();
+        writeTimeline(template, series.view(surveyId));
+        SXSSFWorkbook wb = new SXSSFWorkbook(template, EXPORT_ROW_WINDOW);
+        try {
             // --- стили ---
             CellStyle header = wb.createCellStyle();
             Font bold = wb.createFont(); bold.setBold(true); header.setFont(bold);
@@ -61,18 +138,36 @@ public class AdminService {
             Cell c1 = r0.createCell(1); c1.setCellValue(completed);
             r0.getCell(0).setCellStyle(header);
             // Попытка автоподбора, защищаемся
-            try { summary.autoSizeColumn(0); summary.autoSizeColumn(1); } catch (Throwable ignore) { summary.setColumnWidth(0, 30*256); summary.setColumnWidth(1, 12*256); }
+            int summaryWidth = writeRatingSummary(summary, survey, snap, header);
+            summary.setColumnWidth(0, columnWidth(Math.max("Завершили опрос".length(), summaryWidth)));
+            summary.setColumnWidth(1, columnWidth(Math.max(String.valueOf(completed).length(), "Ответили".length())));
+            for (int i = 2; i < RATING_COLUMNS.length; i++) summary.setColumnWidth(i, columnWidth(RATING_COLUMNS[i].length()));
 
             // Один лист для всех вопросов
             Sheet sh = wb.createSheet("Survey");
             int rowIdx = 0;
+            int textWidth = "Вариант".length(); // самая длинная строка первой колонки
+            int done = 0;
 
             for (Question q : survey.getQuestions()) {
+                StatsEngine.QuestionStats st = snap.question(q);
                 // Заголовок вопроса
                 Row tq = sh.createRow(rowIdx++);
                 Cell tqc = tq.createCell(0);
                 tqc.setCellValue(q.getText());
                 tqc.setCellStyle(header);
+                textWidth = Math.max(textWidth, q.getText().length());
+
+                // проценты — от ответивших: вопрос могли законно пропустить по логике анкеты
+                int answered = st.answered();
+                if (answered != completed) {
+                    Row ra = sh.createRow(rowIdx++);
+                    ra.createCell(0).setCellValue("Ответили");
+                    ra.createCell(1).setCellValue(answered);
+                    Cell pa = ra.createCell(2);
+                    pa.setCellValue(completed == 0 ? 0.0 : (answered * 1.0 / completed));
+                    pa.setCellStyle(percent);
+                }
 
                 // Шапка таблицы для вариантов
                 Row h = sh.createRow(rowIdx++);
@@ -80,110 +175,231 @@ public class AdminService {
                 Cell h2 = h.createCell(1); h2.setCellValue("Кол-во"); h2.setCellStyle(header);
                 Cell h3 = h.createCell(2); h3.setCellValue("%"); h3.setCellStyle(header);
 
+                int[] at = {rowIdx, textWidth}; // строка и ширина — из курсоров ниже
                 if (q.getType() == QuestionType.TEXT) {
-                    // выводим текстовые ответы по строчно
-                    for (var m : rows) {
-                        if (!q.getId().equals((String)m.get("q"))) continue;
-                        String txt = (String)m.get("text");
-                        Row r = sh.createRow(rowIdx++);
-                        r.createCell(0).setCellValue(txt == null || txt.isBlank() ? "(без текста)" : txt);
-                    }
-                } else if (q.getType() == QuestionType.RATING_1_10) {
-                    Map<Integer,Integer> cnt = new LinkedHashMap<>();
-                    for (int v=1; v<=10; v++) cnt.put(v, 0);
-                    for (var m : rows) {
-                        if (!q.getId().equals((String)m.get("q"))) continue;
-                        try { int v = Integer.parseInt((String)m.get("text")); cnt.merge(v, 1, Integer::sum); }
-                        catch (Exception ignored) {}
-                    }
-                    for (int v=1; v<=10; v++) {
-                        int c = cnt.getOrDefault(v, 0);
+                    // выводим текстовые ответы построчно, прямо из БД: в памяти статистики их нет
+                    db.streamTextAnswers(surveyId, q.getId(), (txt, n) -> {
+                        sh.createRow(at[0]++).createCell(0).setCellValue(txt);
+                        at[1] = Math.max(at[1], txt.length());
+                    });
+                } else {
+                    // сначала варианты (для RATING — баллы 1..10), затем «другое»
+                    for (int i = 0; i < st.labels().size(); i++) {
+                        int c = st.counts()[i];
                         Row r = sh.createRow(rowIdx++);
-                        r.createCell(0).setCellValue(String.valueOf(v));
+                        r.createCell(0).setCellValue(st.labels().get(i));
+                        textWidth = Math.max(textWidth, st.labels().get(i).length());
                         r.createCell(1).setCellValue(c);
                         Cell pc = r.createCell(2);
-                        pc.setCellValue(completed == 0 ? 0.0 : (c * 1.0 / completed));
+                        pc.setCellValue(answered == 0 ? 0.0 : (c * 1.0 / answered));
                         pc.setCellStyle(percent);
                     }
-                } else { // SINGLE / MULTI
-                    Map<String,Integer> cnt = new LinkedHashMap<>();
-                    for (Option o : q.getOptions()) if (!o.isOther()) cnt.put(o.getText(), 0);
-                    Map<String,Integer> otherMap = new LinkedHashMap<>();
-
-                    if (q.getType() == QuestionType.SINGLE) {
-                        for (var m : rows) {
-                            if (!q.getId().equals((String)m.get("q"))) continue;
-                            String txt = (String)m.get("text");
-                            if (txt == null) txt = "(пусто)";
-                            if (txt.startsWith("Другое: ")) {
-                                String payload = txt.substring("Другое: ".length()).trim();
-                                if (payload.isEmpty()) payload="(без текста)";
-                                otherMap.merge(payload,1,Integer::sum);
-                            } else {
-                                cnt.merge(txt,1,Integer::sum);
-                            }
-                        }
-                    } else { // MULTI
-                        for (var m : rows) {
-                            if (!q.getId().equals((String)m.get("q"))) continue;
-                            String json = (String)m.get("json");
-                            if (json == null) continue;
-                            try {
-                                List<String> arr = new ObjectMapper().readValue(json, new TypeReference<List<String>>() {});
-                                for (String s : arr) {
-                                    if (s.startsWith("Другое: ")) {
-                                        String payload = s.substring("Другое: ".length()).trim();
-                                        if (payload.isEmpty()) payload="(без текста)";
-                                        otherMap.merge(payload,1,Integer::sum);
-                                    } else {
-                                        cnt.merge(s,1,Integer::sum);
-                                    }
-                                }
-                            } catch (Exception ignored) {}
-                        }
-                    }
-
-                    // выводим сначала известные варианты
-                    for (var e : cnt.entrySet()) {
-                        Row r = sh.createRow(rowIdx++);
-                        r.createCell(0).setCellValue(e.getKey());
-                        r.createCell(1).setCellValue(e.getValue());
-                        Cell pc = r.createCell(2);
-                        pc.setCellValue(completed == 0 ? 0.0 : (e.getValue() * 1.0 / completed));
-                        pc.setCellStyle(percent);
-                    }
-                    // затем «другое»
-                    for (var e : otherMap.entrySet()) {
-                        Row r = sh.createRow(rowIdx++);
-                        r.createCell(0).setCellValue("Другое: " + e.getKey());
-                        r.createCell(1).setCellValue(e.getValue());
+                    at[0] = rowIdx;
+                    at[1] = textWidth;
+                    if (st.otherVariants() > 0) db.streamOtherAnswers(surveyId, q.getId(), (own, c) -> {
+                        Row r = sh.createRow(at[0]++);
+                        r.createCell(0).setCellValue("Другое: " + own);
+                        at[1] = Math.max(at[1], "Другое: ".length() + own.length());
+                        r.createCell(1).setCellValue(c);
                         Cell pc = r.createCell(2);
-                        pc.setCellValue(completed == 0 ? 0.0 : (e.getValue() * 1.0 / completed));
+                        pc.setCellValue(answered == 0 ? 0.0 : (c * 1.0 / answered));
                         pc.setCellStyle(percent);
-                    }
+                    });
                 }
+                rowIdx = at[0];
+                textWidth = at[1];
 
                 // пустая строка между вопросами
                 rowIdx++;
+                progress.accept(++done);
             }
 
-            // Попытаться авторазмерить колонки; если не получится (headless), выставить фиксированную ширину.
-            for (int col = 0; col <= 2; col++) {
-                try { sh.autoSizeColumn(col); }
-                catch (Throwable t) { try { sh.setColumnWidth(col, 20 * 256); } catch (Throwable ignore) {} }
-            }
+            sh.setColumnWidth(0, columnWidth(textWidth));
+            sh.setColumnWidth(1, columnWidth("Кол-во".length()));
+            sh.setColumnWidth(2, columnWidth(4));
 
-            // в байты
-            try (java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream()) {
-                wb.write(bos);
-                return bos.toByteArray();
-            }
+            if (!snap.crosstabs().isEmpty()) writeCrosstabs(wb.createSheet("Crosstabs"), survey, snap, header);
+            writeFunnel(wb.createSheet("Funnel"), funnel.report(survey), header);
+            wb.setSheetOrder(TIMELINE_SHEET, wb.getNumberOfSheets() - 1);
+            wb.setActiveSheet(0);
+
+            try (OutputStream os = Files.newOutputStream(out)) { wb.write(os); }
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
-            return null;
+            return false;
+        } finally {
+            wb.dispose(); // временные файлы SXSSF
+            try { wb.close(); } catch (Exception ignored) {}
         }
     }
 
+    /** Сырые ответы (CSV + колоночный файл в zip), потоково; прогресс — число респондентов. */
+    public boolean exportRaw(String surveyId, Path out, IntConsumer progress) {
+        long t0 = System.nanoTime();
+        try { return rawExporter.export(surveyId, out, progress); }
+        finally { built("raw_export", t0); }
+    }
+
+    public int completedCount(String surveyId) { return stats.completed(surveyId); }
+
+    private static final String[] RATING_COLUMNS = {"Оценка 1–10", "Ответили", "Среднее", "Медиана", "Ст. откл.",
+            "NPS", "Сторонники 9–10", "Нейтральные 7–8", "Критики 1–6"};
+
+    /** Сводка по шкалам 1..10 под строкой «Завершили опрос»; возвращает длину самого длинного вопроса. */
+    private static int writeRatingSummary(Sheet sh, CompiledSurvey survey, StatsEngine.Snapshot snap, CellStyle header) {
+        int rowIdx = 2, width = 0;
+        for (Question q : survey.getQuestions()) {
+            StatsEngine.Rating r = q.getType() == QuestionType.RATING_1_10 ? snap.question(q).rating() : null;
+            if (r == null) continue;
+            if (rowIdx == 2) {
+                Row h = sh.createRow(rowIdx++);
+                for (int i = 0; i < RATING_COLUMNS.length; i++) { Cell c = h.createCell(i); c.setCellValue(RATING_COLUMNS[i]); c.setCellStyle(header); }
+            }
+            Row row = sh.createRow(rowIdx++);
+            row.createCell(0).setCellValue(q.getText());
+            row.createCell(1).setCellValue(r.n());
+            if (r.n() > 0) {
+                row.createCell(2).setCellValue(Math.round(r.mean() * 100) / 100.0);
+                row.createCell(3).setCellValue(r.median());
+                row.createCell(4).setCellValue(Math.round(r.stddev() * 100) / 100.0);
+                row.createCell(5).setCellValue(r.nps());
+                row.createCell(6).setCellValue(r.promoters());
+                row.createCell(7).setCellValue(r.passives());
+                row.createCell(8).setCellValue(r.detractors());
+            }
+            width = Math.max(width, q.getText().length());
+        }
+        return width;
+    }
+
+    /** Лист с кросс-таблицами: матрица ответов (строки — первый вопрос, столбцы — второй). */
+    private static void writeCrosstabs(Sheet sh, CompiledSurvey survey, StatsEngine.Snapshot snap, CellStyle header) {
+        int rowIdx = 0, labelWidth = 10, maxCols = 0;
+        for (StatsEngine.CrossTab ct : snap.crosstabs().values()) {
+            Cell title = sh.createRow(rowIdx++).createCell(0);
+            title.setCellValue(questionTitle(survey, ct.rowQuestion()) + " × " + questionTitle(survey, ct.colQuestion()));
+            title.setCellStyle(header);
+
+            Row h = sh.createRow(rowIdx++);
+            Cell total = h.createCell(1); total.setCellValue("Всего"); total.setCellStyle(header);
+            for (int j = 0; j < ct.colLabels().size(); j++) {
+                Cell c = h.createCell(j + 2);
+                c.setCellValue(ct.colLabels().get(j));
+                c.setCellStyle(header);
+            }
+            maxCols = Math.max(maxCols, ct.colLabels().size());
+            for (int i = 0; i < ct.rowLabels().size(); i++) {
+                Row r = sh.createRow(rowIdx++);
+                r.createCell(0).setCellValue(ct.rowLabels().get(i));
+                r.createCell(1).setCellValue(ct.rowTotals()[i]);
+                for (int j = 0; j < ct.colLabels().size(); j++) r.createCell(j + 2).setCellValue(ct.cells()[i][j]);
+                labelWidth = Math.max(labelWidth, ct.rowLabels().get(i).length());
+            }
+            rowIdx++;
+        }
+        sh.setColumnWidth(0, columnWidth(labelWidth));
+        sh.setColumnWidth(1, columnWidth("Всего".length()));
+        for (int j = 0; j < maxCols; j++) sh.setColumnWidth(j + 2, columnWidth(16)); // подписи столбцов длинные — переносятся
+    }
+
+    /** Лист воронки: где стоят незавершённые сессии и распределение времени ответа по вопросам. */
+    private static void writeFunnel(Sheet sh, List<FunnelTracker.Step> steps, CellStyle header) {
+        List<String> buckets = FunnelTracker.bucketLabels();
+        Row h = sh.createRow(0);
+        String[] fixed = {"Вопрос", "Сейчас на вопросе", "Дольше часа", "Дольше суток", "Медиана времени"};
+        for (int i = 0; i < fixed.length; i++) { Cell c = h.createCell(i); c.setCellValue(fixed[i]); c.setCellStyle(header); }
+        for (int b = 0; b < buckets.size(); b++) { Cell c = h.createCell(fixed.length + b); c.setCellValue(buckets.get(b)); c.setCellStyle(header); }
+        int rowIdx = 1, textWidth = fixed[0].length();
+        for (FunnelTracker.Step st : steps) {
+            Row r = sh.createRow(rowIdx++);
+            r.createCell(0).setCellValue(st.text());
+            r.createCell(1).setCellValue(st.waiting());
+            r.createCell(2).setCellValue(st.staleHour());
+            r.createCell(3).setCellValue(st.staleDay());
+            int m = FunnelTracker.medianBucket(st.times());
+            r.createCell(4).setCellValue(m < 0 ? "—" : buckets.get(m));
+            for (int b = 0; b < st.times().length; b++) r.createCell(fixed.length + b).setCellValue(st.times()[b]);
+            textWidth = Math.max(textWidth, st.text().length());
+        }
+        sh.setColumnWidth(0, columnWidth(textWidth));
+        for (int i = 1; i < fixed.length; i++) sh.setColumnWidth(i, columnWidth(fixed[i].length()));
+        for (int b = 0; b < buckets.size(); b++) sh.setColumnWidth(fixed.length + b, columnWidth(5));
+    }
+
+    private static final String TIMELINE_SHEET = "Timeline";
+    private static final DateTimeFormatter DAY_LABEL = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+    private static final DateTimeFormatter HOUR_LABEL = DateTimeFormatter.ofPattern("dd.MM HH:00");
+
+    /** Лист динамики: завершения по дням и по часам, длительность прохождения — таблицы и диаграммы к ним. */
+    private static void writeTimeline(XSSFWorkbook wb, CompletionSeries.View v) {
+        XSSFSheet sh = wb.createSheet(TIMELINE_SHEET);
+        CellStyle header = wb.createCellStyle();
+        Font bold = wb.createFont(); bold.setBold(true); header.setFont(bold);
+        ZoneId zone = ZoneId.systemDefault();
+
+        List<String> days = new ArrayList<>(v.daily().length);
+        for (int i = 0; i < v.daily().length; i++) days.add(LocalDate.ofEpochDay(v.day() - (v.daily().length - 1) + i).format(DAY_LABEL));
+        List<String> hours = new ArrayList<>(v.hourly().length);
+        for (int i = 0; i < v.hourly().length; i++) {
+            long hour = v.hour() - (v.hourly().length - 1) + i;
+            hours.add(Instant.ofEpochMilli(hour * 3_600_000L).atZone(zone).format(HOUR_LABEL));
+        }
+        List<String> durations = CompletionSeries.durationLabels();
+
+        int dayRows = timelineColumn(sh, 0, "День", days, v.daily(), header);
+        int hourRows = timelineColumn(sh, 3, "Час", hours, v.hourly(), header);
+        int durRows = timelineColumn(sh, 6, "Длительность", durations, v.durations(), header);
+        sh.setColumnWidth(0, columnWidth(10));
+        sh.setColumnWidth(3, columnWidth(11));
+        sh.setColumnWidth(6, columnWidth("Длительность".length()));
+        for (int c : new int[]{1, 4, 7}) sh.setColumnWidth(c, columnWidth("Завершили".length()));
+
+        XSSFDrawing drawing = sh.createDrawingPatriarch();
+        timelineChart(drawing, sh, 0, dayRows, "Завершения по дням", false, 9, 0);
+        timelineChart(drawing, sh, 3, hourRows, "Завершения по часам", false, 9, 20);
+        timelineChart(drawing, sh, 6, durRows, "Длительность прохождения", true, 9, 40);
+    }
+
+    /** Две колонки «подпись — число» с заголовком; возвращает число строк данных. */
+    private static int timelineColumn(Sheet sh, int col, String title, List<String> labels, int[] values, CellStyle header) {
+        Row h = sh.getRow(0) == null ? sh.createRow(0) : sh.getRow(0);
+        Cell t = h.createCell(col); t.setCellValue(title); t.setCellStyle(header);
+        Cell n = h.createCell(col + 1); n.setCellValue("Завершили"); n.setCellStyle(header);
+        for (int i = 0; i < values.length; i++) {
+            Row r = sh.getRow(i + 1) == null ? sh.createRow(i + 1) : sh.getRow(i + 1);
+            r.createCell(col).setCellValue(labels.get(i));
+            r.createCell(col + 1).setCellValue(values[i]);
+        }
+        return values.length;
+    }
+
+    private static void timelineChart(XSSFDrawing drawing, XSSFSheet sh, int col, int rows, String title, boolean bars, int atCol, int atRow) {
+        XSSFChart chart = drawing.createChart(drawing.createAnchor(0, 0, 0, 0, atCol, atRow, atCol + 12, atRow + 18));
+        chart.setTitleText(title);
+        chart.setTitleOverlay(false);
+        XDDFCategoryAxis x = chart.createCategoryAxis(AxisPosition.BOTTOM);
+        XDDFValueAxis y = chart.createValueAxis(AxisPosition.LEFT);
+        y.setCrosses(AxisCrosses.AUTO_ZERO);
+        XDDFDataSource<String> labels = XDDFDataSourcesFactory.fromStringCellRange(sh, new CellRangeAddress(1, rows, col, col));
+        XDDFNumericalDataSource<Double> values = XDDFDataSourcesFactory.fromNumericCellRange(sh, new CellRangeAddress(1, rows, col + 1, col + 1));
+        XDDFChartData data = chart.createData(bars ? ChartTypes.BAR : ChartTypes.LINE, x, y);
+        XDDFChartData.Series s = data.addSeries(labels, values);
+        s.setTitle("Завершили", null);
+        if (data instanceof XDDFBarChartData bar) bar.setBarDirection(BarDirection.COL);
+        if (s instanceof XDDFLineChartData.Series line) { line.setMarkerStyle(MarkerStyle.NONE); line.setSmooth(false); }
+        data.setVaryColors(false);
+        chart.plot(data);
+    }
+
+    /** Версия статистики анкеты: меняется с каждым завершением (ключ кэша выгрузок). */
+    public long statsVersion(String surveyId) { return stats.version(surveyId); }
+
+    /** Ширина колонки (1/256 символа) по длине текста, с запасом и ограничением Excel. */
+    private static int columnWidth(int chars) {
+        return Math.min(Math.max(chars, 6) + 2, 100) * 256;
+    }
+
     // имя листа не должно быть длинным/с недопустимыми символами
     private static String cleanSheetName(String s) {
         if (s == null || s.isBlank()) return "Question";
@@ -194,16 +410,24 @@ public class AdminService {
 
     public String showUserAnswers(long actor, long tgId) {
         if (!db.isAdmin(actor)) return "Доступ запрещён.";
-        Map<String,List<String>> ans = db.getUserAnswers(tgId);
-        if (ans.isEmpty()) return "Нет завершённой анкеты у пользователя " + tgId;
-        ensureSurvey();
-
-        Map<String, String> qText = survey.getQuestions().stream()
-                .collect(Collectors.toMap(Question::getId, Question::getText, (a,b)->a, LinkedHashMap::new));
-
+        List<CompiledSurvey> surveys = registry.all();
         StringBuilder sb = new StringBuilder("Ответы пользователя ").append(tgId).append(":\n\n");
+        boolean any = false;
+        for (CompiledSurvey survey : surveys) {
+            Map<String,List<String>> ans = db.getUserAnswers(tgId, survey.getId());
+            if (ans.isEmpty()) continue;
+            any = true;
+            if (surveys.size() > 1) sb.append("=== ").append(titleOf(survey)).append(" ===\n\n");
+            appendUserAnswers(sb, survey, ans);
+        }
+        if (!any) return "Нет завершённой анкеты у пользователя " + tgId;
+        return sb.toString();
+    }
+
+    private static void appendUserAnswers(StringBuilder sb, CompiledSurvey survey, Map<String,List<String>> ans) {
         for (Map.Entry<String,List<String>> e : ans.entrySet()) {
-            sb.append("• ").append(qText.getOrDefault(e.getKey(), e.getKey())).append("\n");
+            Question q = survey.findQuestion(e.getKey());
+            sb.append("• ").append(q == null ? e.getKey() : q.getText()).append("\n");
             for (String v : e.getValue()) {
                 if (v != null && v.startsWith("[")) {
                     try {
@@ -218,140 +442,312 @@ public class AdminService {
             }
             sb.append("\n");
         }
-        return sb.toString();
     }
 
     // ----- Общая статистика (постранично) -----
 
-    public int statsTotalPages() {
-        ensureSurvey();
-        return 1 + survey.getQuestions().size();
+    public int statsTotalPages(String surveyId) {
+        CompiledSurvey survey = registry.current(surveyId);
+        return survey == null ? 1 : 1 + survey.size();
+    }
+
+    /** Динамика завершений спарклайнами: последние сутки по часам, 30 дней по дням и длительность прохождения. */
+    private String buildTimeline(String surveyId) {
+        CompletionSeries.View v = series.view(surveyId);
+        int[] h = v.hourly(), d = v.daily();
+        StringBuilder sb = new StringBuilder();
+        sb.append("За 24 часа: ").append(sum(h, h.length - 24, h.length)).append('\n')
+          .append(CompletionSeries.sparkline(h, h.length - 24, h.length)).append('\n');
+        sb.append("За 30 дней: ").append(sum(d, d.length - 30, d.length)).append('\n')
+          .append(CompletionSeries.sparkline(d, d.length - 30, d.length)).append('\n');
+        List<String> labels = CompletionSeries.durationLabels();
+        int m = FunnelTracker.medianBucket(v.durations());
+        sb.append("\nДлительность прохождения").append(m < 0 ? "" : " (медиана " + labels.get(m) + ")").append(":\n");
+        StringJoiner parts = new StringJoiner(" · ");
+        for (int i = 0; i < labels.size(); i++) if (v.durations()[i] > 0) parts.add(labels.get(i) + " " + v.durations()[i]);
+        sb.append(parts.length() == 0 ? "нет данных" : parts.toString());
+        return sb.toString();
+    }
+
+    private static int sum(int[] a, int from, int to) {
+        int s = 0;
+        for (int i = from; i < to; i++) s += a[i];
+        return s;
+    }
+
+    public String buildStatsPage(String surveyId, int pageIndex) {
+        long t0 = System.nanoTime();
+        try { return statsPage(surveyId, pageIndex); }
+        finally { built("stats_page", t0); }
     }
 
-    public String buildStatsPage(int pageIndex) {
-        ensureSurvey();
-        int completed = db.countCompleted();
-        if (pageIndex == 0) return "Завершили опрос: " + completed;
+    private String statsPage(String surveyId, int pageIndex) {
+        CompiledSurvey survey = registry.current(surveyId);
+        if (survey == null) return "Анкета не найдена.";
+        StatsEngine.Snapshot snap = stats.snapshot(surveyId); // один срез на все страницы, пока нет новых завершений
+        int completed = snap.completed();
+        if (pageIndex == 0) return "Завершили опрос: " + completed + "\n\n" + buildTimeline(surveyId);
 
         int qIdx = pageIndex - 1;
-        if (qIdx < 0 || qIdx >= survey.getQuestions().size()) return "Нет такой страницы.";
+        if (qIdx < 0 || qIdx >= survey.size()) return "Нет такой страницы.";
 
-        Question q = survey.getQuestions().get(qIdx);
+        Question q = survey.get(qIdx);
         StringBuilder sb = new StringBuilder("• ").append(q.getText()).append("\n\n");
+        StatsEngine.QuestionStats st = snap.question(q);
+
+        // проценты считаем от ответивших: вопрос могли законно пропустить по логике анкеты
+        int answered = st.answered();
+        if (answered != completed || survey.hasBranching()) {
+            sb.append("Ответили: ").append(answered).append(" из ").append(completed);
+            if (completed > answered) sb.append(" (пропустили по логике анкеты: ").append(completed - answered).append(")");
+            sb.append("\n\n");
+        }
 
-        List<Map<String,Object>> rows = db.getAllCompletedAnswers();
+        if (q.getType() == QuestionType.TEXT) {
+            // вместо всех ответов подряд — самые частые; остальное ищется через /find
+            if (answered == 0) return sb.append("— нет данных").toString();
+            sb.append("Всего ответов: ").append(answered).append("\n");
+            appendPhrases(sb, "Частые ответы:", st.topPhrases());
+            appendPhrases(sb, "Частые сочетания слов:", st.topBigrams());
+            return sb.append("\nПоиск по ответам: /find <слова>").toString();
+        }
+        for (int i = 0; i < st.labels().size(); i++) {
+            int c = st.counts()[i];
+            int pct = answered == 0 ? 0 : (int)Math.round((c * 100.0) / answered);
+            sb.append(st.labels().get(i)).append(" — ").append(c).append(" голосов (").append(pct).append("%)\n");
+        }
+        for (StatsEngine.Phrase p : st.topOther()) {
+            int c = p.count();
+            int pct = answered == 0 ? 0 : (int)Math.round((c * 100.0) / answered);
+            sb.append("Другое (").append(p.text()).append(") — ").append(c)
+                    .append(" голосов (").append(pct).append("%)\n");
+        }
+        int rest = st.otherVariants() - st.topOther().size();
+        if (rest > 0) sb.append("…и ещё ").append(rest).append(" своих вариантов (Excel или /find <слова>)\n");
+        if (st.rating() != null && st.rating().n() > 0) appendRating(sb, st.rating());
+        return sb.toString();
+    }
 
-        switch (q.getType()) {
-            case SINGLE -> {
-                Map<String,Integer> cnt = new LinkedHashMap<>();
-                Set<String> known = new LinkedHashSet<>();
-                for (Option o : q.getOptions()) {
-                    if (o.isOther()) continue;
-                    cnt.put(o.getText(), 0);
-                    known.add(o.getText());
-                }
-                Map<String,Integer> otherMap = new LinkedHashMap<>();
-
-                for (var r : rows) {
-                    if (!q.getId().equals((String) r.get("q"))) continue;
-                    String text = (String) r.get("text");
-                    if (text == null) text = "(пусто)";
-                    if (text.startsWith("Другое: ")) {
-                        String payload = text.substring("Другое: ".length()).trim();
-                        if (payload.isEmpty()) payload = "(без текста)";
-                        otherMap.merge(payload, 1, Integer::sum);
-                    } else { cnt.merge(text, 1, Integer::sum); }
-                }
+    private static void appendRating(StringBuilder sb, StatsEngine.Rating r) {
+        sb.append("\nСредний балл: ").append(fmt1(r.mean()))
+          .append(" · медиана ").append(fmt1(r.median()))
+          .append(" · σ ").append(fmt1(r.stddev())).append("\n");
+        sb.append("NPS: ").append(r.nps() > 0 ? "+" : "").append(r.nps())
+          .append(" (сторонники 9–10: ").append(r.percent(r.promoters()))
+          .append("%, нейтральные 7–8: ").append(r.percent(r.passives()))
+          .append("%, критики 1–6: ").append(r.percent(r.detractors())).append("%)\n");
+    }
 
-                for (var e : cnt.entrySet()) {
-                    int c = e.getValue();
-                    int pct = completed == 0 ? 0 : (int)Math.round((c * 100.0) / Math.max(completed,1));
-                    sb.append(e.getKey()).append(" — ").append(c).append(" голосов (").append(pct).append("%)\n");
-                }
-                for (var e : otherMap.entrySet()) {
-                    int c = e.getValue();
-                    int pct = completed == 0 ? 0 : (int)Math.round((c * 100.0) / Math.max(completed,1));
-                    sb.append("Другое (").append(e.getKey()).append(") — ").append(c)
-                            .append(" голосов (").append(pct).append("%)\n");
-                }
-            }
-            case RATING_1_10 -> {
-                Map<Integer,Integer> cnt = new LinkedHashMap<>();
-                for (int v=1; v<=10; v++) cnt.put(v, 0);
-                for (var r : rows) {
-                    if (!q.getId().equals((String) r.get("q"))) continue;
-                    try { int v = Integer.parseInt((String) r.get("text")); cnt.merge(v, 1, Integer::sum); }
-                    catch (Exception ignored) {}
-                }
-                for (int v=1; v<=10; v++) {
-                    int c = cnt.getOrDefault(v, 0);
-                    int pct = completed == 0 ? 0 : (int)Math.round((c * 100.0) / Math.max(completed,1));
-                    sb.append(v).append(" — ").append(c).append(" голосов (").append(pct).append("%)\n");
-                }
-            }
-            case MULTI -> {
-                Map<String,Integer> cnt = new LinkedHashMap<>();
-                Set<String> known = new LinkedHashSet<>();
-                for (Option o : q.getOptions()) {
-                    if (o.isOther()) continue;
-                    cnt.put(o.getText(), 0);
-                    known.add(o.getText());
-                }
-                Map<String,Integer> otherMap = new LinkedHashMap<>();
-                for (var r : rows) {
-                    if (!q.getId().equals((String) r.get("q"))) continue;
-                    String json = (String) r.get("json");
-                    if (json == null || !json.startsWith("[")) continue;
-                    try {
-                        List<String> arr = new ObjectMapper().readValue(json, new TypeReference<List<String>>() {});
-                        for (String s : arr) {
-                            if (s.startsWith("Другое: ")) {
-                                String payload = s.substring("Другое: ".length()).trim();
-                                if (payload.isEmpty()) payload = "(без текста)";
-                                otherMap.merge(payload, 1, Integer::sum);
-                            } else { cnt.merge(s, 1, Integer::sum); }
-                        }
-                    } catch (Exception ignored) {}
-                }
-                for (var e : cnt.entrySet()) {
-                    int c = e.getValue();
-                    int pct = completed == 0 ? 0 : (int)Math.round((c * 100.0) / Math.max(completed,1));
-                    sb.append(e.getKey()).append(" — ").append(c).append(" голосов (").append(pct).append("%)\n");
-                }
-                for (var e : otherMap.entrySet()) {
-                    int c = e.getValue();
-                    int pct = completed == 0 ? 0 : (int)Math.round((c * 100.0) / Math.max(completed,1));
-                    sb.append("Другое (").append(e.getKey()).append(") — ").append(c)
-                            .append(" голосов (").append(pct).append("%)\n");
-                }
-            }
-            case TEXT -> {
-                List<String> texts = new ArrayList<>();
-                for (var r : rows) {
-                    if (!q.getId().equals((String) r.get("q"))) continue;
-                    String t = (String) r.get("text");
-                    if (t == null || t.isBlank()) t = "(без текста)";
-                    texts.add(t);
-                }
-                if (texts.isEmpty()) sb.append("— нет данных");
-                else for (String t : texts) sb.append("— ").append(t).append("\n");
-            }
+    private static String fmt1(double v) { return String.format(Locale.ROOT, "%.1f", v); }
+
+    private static void appendPhrases(StringBuilder sb, String title, List<StatsEngine.Phrase> phrases) {
+        if (phrases.isEmpty()) return;
+        sb.append("\n").append(title).append("\n");
+        for (StatsEngine.Phrase p : phrases) sb.append("— ").append(p.text()).append(" (").append(p.count()).append(")\n");
+    }
+
+    // ----- Полнотекстовый поиск по свободным ответам -----
+
+    public static final int FIND_PAGE_SIZE = 10;
+    private final Map<Long,String> lastFind = new ConcurrentHashMap<>();
+
+    /** /find: страница результатов (по релевантности) для запроса; null-запрос — повтор последнего. */
+    public String find(long actor, String query, int page) {
+        long t0 = System.nanoTime();
+        try { return findPage(actor, query, page); }
+        finally { built("find", t0); }
+    }
+
+    private String findPage(long actor, String query, int page) {
+        if (!db.isAdmin(actor)) return "Доступ запрещён.";
+        if (query == null) query = lastFind.get(actor);
+        if (query == null || query.isBlank()) return "Использование: /find <слова>";
+        lastFind.put(actor, query);
+        String fts = Db.ftsQuery(query);
+        if (fts.isEmpty()) return "Использование: /find <слова>";
+
+        CompiledSurvey survey = selectedSurvey(actor);
+        int total = db.countFindAnswers(survey.getId(), fts);
+        if (total == 0) return "По запросу «" + query + "» ничего не найдено.";
+        List<Map<String,Object>> rows = db.findAnswers(survey.getId(), fts, FIND_PAGE_SIZE, page * FIND_PAGE_SIZE);
+        StringBuilder sb = new StringBuilder("🔎 «").append(query).append("» — найдено ").append(total).append("\n\n");
+        int n = page * FIND_PAGE_SIZE;
+        for (var r : rows) {
+            sb.append(++n).append(". ").append(r.get("snippet")).append("\n   ")
+                    .append(questionTitle(survey, (String) r.get("q"))).append(" · ").append(r.get("tgId")).append("\n");
         }
         return sb.toString();
     }
 
-    // ----- Пагинация пользователей -----
+    /** Есть ли у последнего запроса страница {@code page}. */
+    public boolean findHasPage(long actor, int page) {
+        String query = lastFind.get(actor);
+        if (query == null) return false;
+        String fts = Db.ftsQuery(query);
+        return !fts.isEmpty() && db.countFindAnswers(selectedSurvey(actor).getId(), fts) > page * FIND_PAGE_SIZE;
+    }
 
-    public List<Long> listUsersPage(int pageIndex) {
-        int offset = pageIndex * USERS_PAGE_SIZE;
-        return db.listCompletedUserTgIdsPaged(USERS_PAGE_SIZE, offset);
+    // ----- /perf: производительность процесса по скользящим окнам -----
+
+    private static final long MINUTE_MS = 60_000, FIVE_MIN_MS = 5 * MINUTE_MS;
+
+    public String buildPerf(long actor) {
+        if (!db.isAdmin(actor)) return "Доступ запрещён.";
+        StringBuilder sb = new StringBuilder("⏱ Производительность (окна: 1 мин / 5 мин)\n\n");
+        Rolling.Window u1 = Metrics.UPDATE.window().window(MINUTE_MS), u5 = Metrics.UPDATE.window().window(FIVE_MIN_MS);
+        sb.append("Апдейты: ").append(fmt1(u1.perSecond())).append("/с · ").append(fmt1(u5.perSecond())).append("/с\n");
+        appendLatency(sb, "Обработка", u1, u5);
+        appendLatency(sb, "Db", Metrics.DB.window().window(MINUTE_MS), Metrics.DB.window().window(FIVE_MIN_MS));
+        appendLatency(sb, "Telegram", Metrics.TELEGRAM.window().window(MINUTE_MS), Metrics.TELEGRAM.window().window(FIVE_MIN_MS));
+
+        long slow = 0, since = System.currentTimeMillis() - FIVE_MIN_MS, slowNs = Trace.slowThresholdMillis() * 1_000_000L;
+        for (Trace.Summary t : Trace.recent(Integer.MAX_VALUE)) if (t.startedAtMs() >= since && t.totalNanos() >= slowNs) slow++;
+        sb.append("Медленные (≥").append(Trace.slowThresholdMillis()).append(" мс) за 5 мин: ").append(slow).append("\n");
+        sb.append("Очереди: ответы ").append(gauge("admission_queued_answer"))
+          .append(", /start ").append(gauge("admission_queued_start"))
+          .append(", прочее ").append(gauge("admission_queued_other"))
+          .append("; отброшено с запуска: ").append(Metrics.SHED.get("answer") + Metrics.SHED.get("start") + Metrics.SHED.get("other") + Metrics.SHED.get("lane"))
+          .append("; сверх лимита частоты: ").append(Metrics.RATE_LIMITED.get("message") + Metrics.RATE_LIMITED.get("callback"))
+          .append("\n\n");
+
+        sb.append("Выгрузки: в очереди ").append(gauge("export_queue_depth"))
+          .append(", всего в работе ").append(gauge("export_jobs_active"))
+          .append(", в кэше ").append(gauge("export_cache_entries")).append("\n");
+        sb.append("Кэш: срез статистики ").append(hitRate(Metrics.STATS_CACHE))
+          .append(", файлы выгрузок ").append(hitRate(Metrics.EXPORT_CACHE)).append("\n");
+        appendLatency(sb, "Возраст среза при выдаче", Metrics.STATS_AGE.window().window(MINUTE_MS), Metrics.STATS_AGE.window().window(FIVE_MIN_MS));
+        sb.append("Активные сессии: ").append(gauge("survey_active_sessions")).append("\n\n");
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long gcCount = 0, gcMs = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMs += Math.max(0, gc.getCollectionTime());
+        }
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        sb.append("JVM: heap ").append(heap.getUsed() >> 20).append(" / ")
+          .append((heap.getMax() > 0 ? heap.getMax() : heap.getCommitted()) >> 20).append(" МБ");
+        sb.append(", GC ").append(gcCount).append(" сборок, ").append(fmt1(gcMs / 1000.0)).append(" с")
+          .append(" (").append(fmt1(uptime == 0 ? 0 : 100.0 * gcMs / uptime)).append("% времени)");
+        sb.append(", потоков ").append(ManagementFactory.getThreadMXBean().getThreadCount());
+        return sb.toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, String title, Rolling.Window w1, Rolling.Window w5) {
+        sb.append(title).append(": ");
+        if (w5.count() == 0) { sb.append("нет данных\n"); return; }
+        sb.append("p50 ").append(fmtMs(w1.percentileMs(0.5))).append(" / ").append(fmtMs(w5.percentileMs(0.5)))
+          .append(" · p95 ").append(fmtMs(w1.percentileMs(0.95))).append(" / ").append(fmtMs(w5.percentileMs(0.95)))
+          .append(" · p99 ").append(fmtMs(w1.percentileMs(0.99))).append(" / ").append(fmtMs(w5.percentileMs(0.99)))
+          .append(" мс (").append(w5.count()).append(" за 5 мин)\n");
+    }
+
+    private static String fmtMs(double ms) { return ms >= 10 ? String.valueOf(Math.round(ms)) : fmt1(ms); }
+
+    private static String gauge(String name) {
+        long v = Metrics.gaugeValue(name);
+        return v < 0 ? "—" : String.valueOf(v);
+    }
+
+    private static String hitRate(Metrics.Cache cache) {
+        double r = cache.hitRate(FIVE_MIN_MS);
+        return r < 0 ? "—" : Math.round(r * 100) + "%";
+    }
+
+    // ----- Воронка -----
+
+    /** Где бросают анкету: сессии на каждом вопросе (и как давно стоят) и типичное время ответа. */
+    public String buildFunnel(long actor) {
+        long t0 = System.nanoTime();
+        try { return funnelPage(actor); }
+        finally { built("funnel", t0); }
+    }
+
+    private String funnelPage(long actor) {
+        if (!db.isAdmin(actor)) return "Доступ запрещён.";
+        CompiledSurvey survey = selectedSurvey(actor);
+        List<FunnelTracker.Step> steps = funnel.report(survey);
+        List<String> buckets = FunnelTracker.bucketLabels();
+        StringBuilder sb = new StringBuilder("📉 Воронка: незавершённые анкеты по вопросам\n");
+        sb.append("(сейчас на вопросе · из них дольше часа / суток · медиана времени ответа)\n\n");
+        int waiting = 0;
+        for (int i = 0; i < steps.size(); i++) {
+            FunnelTracker.Step st = steps.get(i);
+            waiting += st.waiting();
+            int m = FunnelTracker.medianBucket(st.times());
+            sb.append(i + 1).append(". ").append(st.questionId()).append(" — ").append(st.waiting());
+            if (st.staleHour() > 0) sb.append(" · ").append(st.staleHour()).append(" / ").append(st.staleDay());
+            sb.append(" · ").append(m < 0 ? "—" : buckets.get(m)).append("\n");
+        }
+        sb.append("\nВсего незавершённых: ").append(waiting).append(", завершили: ").append(stats.completed(survey.getId()));
+        return sb.append("\nПолные распределения времени — на листе Funnel в Excel-статистике.").toString();
+    }
+
+    // ----- Кросс-таблицы -----
+
+    private static final int MESSAGE_LIMIT = 3900;
+
+    /** Все кросс-таблицы, объявленные в анкете (по сообщению на таблицу). */
+    public List<String> buildCrosstabs(long actor) {
+        long t0 = System.nanoTime();
+        try { return crosstabPages(actor); }
+        finally { built("crosstabs", t0); }
+    }
+
+    private List<String> crosstabPages(long actor) {
+        if (!db.isAdmin(actor)) return List.of("Доступ запрещён.");
+        CompiledSurvey survey = selectedSurvey(actor);
+        StatsEngine.Snapshot snap = stats.snapshot(survey.getId());
+        if (snap.crosstabs().isEmpty())
+            return List.of("В анкете нет кросс-таблиц (\"crosstabs\" в survey.json).\nЛюбую пару можно посмотреть командой /crosstab <id вопроса> <id вопроса>.");
+        List<String> out = new ArrayList<>();
+        for (StatsEngine.CrossTab ct : snap.crosstabs().values()) out.add(renderCrosstab(survey, ct));
+        return out;
+    }
+
+    /** Кросс-таблица по произвольной паре вопросов выбранной анкеты. */
+    public String buildCrosstab(long actor, String rowQ, String colQ) {
+        if (!db.isAdmin(actor)) return "Доступ запрещён.";
+        CompiledSurvey survey = selectedSurvey(actor);
+        for (String id : new String[]{rowQ, colQ}) {
+            Question q = survey.findQuestion(id);
+            if (q == null) return "Нет вопроса " + id + ".";
+            if (q.getType() == QuestionType.TEXT) return "Вопрос " + id + " текстовый — для кросс-таблицы нужны варианты.";
+        }
+        return renderCrosstab(survey, stats.crosstab(survey.getId(), rowQ, colQ));
     }
 
-    private void ensureSurvey() {
-        if (this.survey == null) {
-            try (var in = getClass().getResourceAsStream("/survey.json")) {
-                this.survey = new ObjectMapper().readValue(in, Survey.class);
-            } catch (Exception ignored) {}
+    /** По строкам — ответы первого вопроса, внутри — распределение ответов второго (% от строки). */
+    private static String renderCrosstab(CompiledSurvey survey, StatsEngine.CrossTab ct) {
+        StringBuilder sb = new StringBuilder("🔀 ")
+                .append(questionTitle(survey, ct.rowQuestion())).append("\n×\n")
+                .append(questionTitle(survey, ct.colQuestion())).append("\n\n");
+        int before = sb.length();
+        for (int i = 0; i < ct.rowLabels().size(); i++) {
+            int total = ct.rowTotals()[i];
+            if (total == 0) continue;
+            sb.append("▸ ").append(ct.rowLabels().get(i)).append(" (").append(total).append(")\n");
+            for (int j = 0; j < ct.colLabels().size(); j++) {
+                int c = ct.cells()[i][j];
+                if (c == 0) continue;
+                sb.append("   · ").append(ct.colLabels().get(j)).append(" — ").append(c)
+                        .append(" (").append(Math.round(c * 100.0 / total)).append("%)\n");
+            }
+            if (sb.length() > MESSAGE_LIMIT) { sb.setLength(MESSAGE_LIMIT); sb.append("…\n(полностью — в Excel-статистике)"); break; }
         }
+        if (sb.length() == before) sb.append("— нет данных");
+        return sb.toString();
+    }
+
+    private static String questionTitle(CompiledSurvey survey, String qId) {
+        Question q = survey.findQuestion(qId);
+        return q == null ? qId : q.getText();
+    }
+
+    // ----- Пагинация пользователей -----
+
+    public List<Long> listUsersPage(String surveyId, int pageIndex) {
+        int offset = pageIndex * USERS_PAGE_SIZE;
+        return db.listCompletedUserTgIdsPaged(surveyId, USERS_PAGE_SIZE, offset);
     }
 }
@@ -0,0 +1,222 @@
+package ru.phosagro.survey.service;
+
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.model.CompiledSurvey;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Завершения во времени: почасовой (7 суток) и посуточный (90 дней) ряды в кольцевых буферах int[]
+ * и гистограмма длительности прохождения. Пополняется догонкой по responses.completed_seq — и на каждом
+ * завершении, и при старте после снимка, который периодически сохраняется в БД.
+ */
+public class CompletionSeries {
+    static final int HOURS = 7 * 24;
+    static final int DAYS = 90;
+    /** Границы корзин длительности прохождения, минуты; последняя корзина — «дольше». */
+    static final int[] DURATION_MIN = {1, 2, 5, 10, 20, 30, 60, 24 * 60};
+    private static final String[] DURATION_LABELS = {"≤1м", "≤2м", "≤5м", "≤10м", "≤20м", "≤30м", "≤1ч", "≤1д", ">1д"};
+    private static final char[] SPARKS = "▁▂▃▄▅▆▇█".toCharArray();
+    private static final int SNAPSHOT_FORMAT = 2; // 1 — с отметкой по completed_at, такие пересчитываются
+    private static final long SAVE_EVERY_MS = 60_000;
+
+    private final Db db;
+    private final SurveyRegistry registry;
+    private final ZoneId zone = ZoneId.systemDefault(); // сутки — по часовому поясу сервера (TZ)
+    private final Map<String,Series> bySurvey = new ConcurrentHashMap<>();
+
+    public CompletionSeries(Db db, SurveyRegistry registry) {
+        this.db = db;
+        this.registry = registry;
+    }
+
+    /** Снимок из БД + завершения после него (при старте). */
+    public void rebuild() {
+        for (CompiledSurvey s : registry.all()) bySurvey.put(s.getId(), load(s.getId()));
+    }
+
+    /** Учесть завершение анкеты: догнать ряды по completed_seq (обычно одна строка). */
+    public void completed(String surveyId) {
+        Series s = series(surveyId);
+        boolean save;
+        synchronized (s) {
+            catchUp(surveyId, s);
+            save = System.currentTimeMillis() - s.savedAt > SAVE_EVERY_MS;
+        }
+        if (save) persist(surveyId, s);
+    }
+
+    /**
+     * Завершения удалены в обход сервиса (/resetme): вычесть их из колец нельзя — ряды всех анкет
+     * пересчитываются по БД с нуля, снимки перезаписываются.
+     */
+    public void recount() {
+        Set<String> ids = new TreeSet<>(bySurvey.keySet());
+        for (CompiledSurvey s : registry.all()) ids.add(s.getId());
+        for (String id : ids) {
+            Series s = new Series();
+            synchronized (s) { catchUp(id, s); }
+            bySurvey.put(id, s);
+            persist(id, s);
+        }
+    }
+
+    /** Сохранить снимки всех анкет (например, при остановке). */
+    public void persistAll() {
+        for (var e : bySurvey.entrySet()) persist(e.getKey(), e.getValue());
+    }
+
+    public View view(String surveyId) {
+        Series s = series(surveyId);
+        long now = System.currentTimeMillis();
+        synchronized (s) {
+            long hour = Math.floorDiv(now, 3_600_000L);
+            long day = LocalDate.ofInstant(Instant.ofEpochMilli(now), zone).toEpochDay();
+            return new View(hour, s.window(s.hourly, s.lastHour, hour), day, s.window(s.daily, s.lastDay, day),
+                    s.durations.clone(), s.total);
+        }
+    }
+
+    public static List<String> durationLabels() { return List.of(DURATION_LABELS); }
+
+    /** Спарклайн «▁▂▃…█» по значениям (масштаб — от 0 до максимума). */
+    public static String sparkline(int[] values, int from, int to) {
+        int max = 0;
+        for (int i = from; i < to; i++) max = Math.max(max, values[i]);
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            int v = values[i];
+            sb.append(max == 0 || v == 0 ? SPARKS[0] : SPARKS[Math.min(SPARKS.length - 1, 1 + (v * (SPARKS.length - 2) + max - 1) / max)]);
+        }
+        return sb.toString();
+    }
+
+    private Series series(String surveyId) {
+        return bySurvey.computeIfAbsent(surveyId, this::load);
+    }
+
+    private Series load(String surveyId) {
+        Series s = new Series();
+        Map<String,Object> snap = db.loadSeriesSnapshot(surveyId);
+        if (snap != null) {
+            try { s.read((byte[]) snap.get("data")); s.watermark = (long) snap.get("watermark"); }
+            catch (Exception e) { e.printStackTrace(); s = new Series(); } // битый или старый снимок — пересчитаем полностью
+        }
+        synchronized (s) { catchUp(surveyId, s); }
+        persist(surveyId, s);
+        return s;
+    }
+
+    /** Завершения после отметки (под блокировкой {@code s}). */
+    private void catchUp(String surveyId, Series s) {
+        try {
+            db.streamCompletionTimes(surveyId, s.watermark, (seq, startedAt, completedAt) -> {
+                s.add(millis(startedAt), millis(completedAt), zone);
+                s.watermark = seq;
+            });
+        } catch (Exception e) { e.printStackTrace(); }
+    }
+
+    private void persist(String surveyId, Series s) {
+        byte[] data;
+        long watermark;
+        synchronized (s) {
+            data = s.write();
+            watermark = s.watermark;
+            s.savedAt = System.currentTimeMillis();
+        }
+        db.saveSeriesSnapshot(surveyId, data, watermark);
+    }
+
+    private static long millis(String iso) {
+        if (iso == null) return 0;
+        try { return Instant.parse(iso).toEpochMilli(); } catch (Exception e) { return 0; }
+    }
+
+    /* ===== кольцевые буферы (под блокировкой Series) ===== */
+
+    private static final class Series {
+        final int[] hourly = new int[HOURS];
+        final int[] daily = new int[DAYS];
+        final int[] durations = new int[DURATION_LABELS.length];
+        long lastHour = Long.MIN_VALUE, lastDay = Long.MIN_VALUE; // самый свежий слот кольца
+        long total;
+        long watermark; // последний учтённый completed_seq
+        long savedAt;
+
+        void add(long startedMs, long completedMs, ZoneId zone) {
+            if (completedMs <= 0) return;
+            total++;
+            lastHour = bump(hourly, lastHour, Math.floorDiv(completedMs, 3_600_000L));
+            lastDay = bump(daily, lastDay, LocalDate.ofInstant(Instant.ofEpochMilli(completedMs), zone).toEpochDay());
+            if (startedMs > 0 && completedMs >= startedMs) durations[durationBucket(completedMs - startedMs)]++;
+        }
+
+        /** +1 в слот {@code t}; кольцо сдвигается вперёд, обнуляя пропущенные слоты. */
+        private static long bump(int[] ring, long last, long t) {
+            int n = ring.length;
+            if (last == Long.MIN_VALUE) last = t;
+            if (t > last) {
+                for (long k = last + 1; k <= Math.min(t, last + n); k++) ring[(int) Math.floorMod(k, (long) n)] = 0;
+                last = t;
+            }
+            if (t > last - n) ring[(int) Math.floorMod(t, (long) n)]++;
+            return last;
+        }
+
+        /** Значения кольца от старых к новым, кончая слотом {@code now}. */
+        int[] window(int[] ring, long last, long now) {
+            int n = ring.length;
+            int[] out = new int[n];
+            if (last == Long.MIN_VALUE) return out;
+            for (int i = 0; i < n; i++) {
+                long t = now - (n - 1) + i;
+                if (t <= last && t > last - n) out[i] = ring[(int) Math.floorMod(t, (long) n)];
+            }
+            return out;
+        }
+
+        byte[] write() {
+            try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(bos)) {
+                out.writeInt(SNAPSHOT_FORMAT);
+                out.writeLong(total);
+                out.writeLong(lastHour);
+                for (int v : hourly) out.writeInt(v);
+                out.writeLong(lastDay);
+                for (int v : daily) out.writeInt(v);
+                out.writeInt(durations.length);
+                for (int v : durations) out.writeInt(v);
+                out.flush();
+                return bos.toByteArray();
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+
+        void read(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != SNAPSHOT_FORMAT) throw new IOException("неизвестный формат снимка");
+            total = in.readLong();
+            lastHour = in.readLong();
+            for (int i = 0; i < HOURS; i++) hourly[i] = in.readInt();
+            lastDay = in.readLong();
+            for (int i = 0; i < DAYS; i++) daily[i] = in.readInt();
+            int n = in.readInt();
+            if (n != durations.length) throw new IOException("другие корзины длительности");
+            for (int i = 0; i < n; i++) durations[i] = in.readInt();
+        }
+    }
+
+    private static int durationBucket(long ms) {
+        long min = ms / 60_000;
+        for (int i = 0; i < DURATION_MIN.length; i++) if (min < DURATION_MIN[i] || (min == DURATION_MIN[i] && ms % 60_000 == 0)) return i;
+        return DURATION_MIN.length;
+    }
+
+    /**
+     * Ряды на момент запроса: {@code hourly[i]} — час {@code hour - (HOURS-1) + i} (часы от эпохи, UTC),
+     * {@code daily[i]} — день {@code day - (DAYS-1) + i} (epochDay в поясе сервера).
+     */
+    public record View(long hour, int[] hourly, long day, int[] daily, int[] durations, long total) {}
+}
@@ -0,0 +1,250 @@
+package ru.phosagro.survey.service;
+
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Question;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Воронка прохождения: на каком вопросе сейчас стоят незавершённые сессии и сколько времени
+ * уходит на каждый вопрос. Ведётся в памяти по событиям SurveyService (старт, переход, завершение).
+ * При старте сессии берутся из user_progress, гистограммы — из снимка в БД (funnel_snapshots) плюс ответы
+ * после него по answers.id; снимок сохраняется периодически и при остановке.
+ *
+ * <p>Отметка снимка — наибольший учтённый answers.id анкеты. Запись ответа и его учёт идут под общей
+ * блокировкой, снимок — под исключительной, поэтому в момент снимка нет записанных, но не учтённых ответов:
+ * всё, что не выше отметки, уже в гистограмме, а всё, что выше, догонится при старте.
+ */
+public class FunnelTracker {
+    /** Границы корзин времени на вопрос, секунды; последняя корзина — «дольше». */
+    static final int[] BUCKETS_SEC = {5, 15, 30, 60, 120, 300, 600, 1800};
+    private static final String[] BUCKET_LABELS = {"≤5с", "≤15с", "≤30с", "≤1м", "≤2м", "≤5м", "≤10м", "≤30м", ">30м"};
+    static final long HOUR_MS = 3_600_000L, DAY_MS = 24 * HOUR_MS;
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final long SAVE_EVERY_MS = 60_000;
+
+    private final Db db;
+    private final SurveyRegistry registry;
+    private final Map<Long,Session> sessions = new ConcurrentHashMap<>(); // tg_id -> где стоит
+    private final Map<String,SurveyFunnel> bySurvey = new ConcurrentHashMap<>();
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock(); // ответы — общая, снимок — исключительная
+
+    public FunnelTracker(Db db, SurveyRegistry registry) {
+        this.db = db;
+        this.registry = registry;
+        Metrics.gauge("survey_active_sessions", "Незавершённые сессии (в памяти воронки)", sessions::size);
+    }
+
+    /** Начальное состояние из БД (при старте). */
+    public void rebuild() {
+        for (CompiledSurvey s : registry.all()) {
+            SurveyFunnel f = load(s.getId());
+            bySurvey.put(s.getId(), f);
+            persist(s.getId(), f);
+        }
+        for (var p : db.listProgress()) {
+            CompiledSurvey s = registry.byVersion((String) p.get("survey_id"), (int) p.get("survey_version"));
+            int idx = (int) p.get("current_q_index");
+            if (s == null || idx < 0 || idx >= s.size()) continue;
+            long since = millis((String) p.get("updated_at"));
+            enter((long) p.get("tgId"), s.getId(), s.get(idx).getId(), since > 0 ? since : System.currentTimeMillis());
+        }
+    }
+
+    /** Сессия (пере)начата: пользователь на первом вопросе. */
+    public void started(long tgId, CompiledSurvey survey) {
+        leave(tgId);
+        if (survey.size() > 0) enter(tgId, survey.getId(), survey.get(0).getId(), System.currentTimeMillis());
+    }
+
+    /**
+     * Ответ на вопрос {@code from}: {@code save} записывает его в БД и возвращает answers.id (или -1);
+     * {@code to >= size()} — анкета завершена. Возвращает то же, что {@code save}.
+     */
+    public long answered(long tgId, CompiledSurvey survey, int from, int to, LongSupplier save) {
+        SurveyFunnel f = funnel(survey.getId()); // загрузка — до записи: догонка из БД не увидит ещё не учтённый ответ
+        long answerId;
+        snapshotLock.readLock().lock();
+        try {
+            answerId = save.getAsLong();
+            long now = System.currentTimeMillis();
+            Session s = leave(tgId);
+            if (s != null && s.questionId.equals(survey.get(from).getId())) f.time(s.questionId, now - s.since);
+            if (answerId > 0) f.applied(answerId);
+            if (to < survey.size()) enter(tgId, survey.getId(), survey.get(to).getId(), now);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        if (System.currentTimeMillis() - f.savedAt > SAVE_EVERY_MS) persist(survey.getId(), f);
+        return answerId;
+    }
+
+    /** Сохранить снимки всех анкет (например, при остановке). */
+    public void persistAll() {
+        for (var e : bySurvey.entrySet()) persist(e.getKey(), e.getValue());
+    }
+
+    /** Сессии сброшены в обход сервиса (/resetme). */
+    public void forget(long tgId) { leave(tgId); }
+
+    private void enter(long tgId, String surveyId, String qId, long since) {
+        Session s = new Session(surveyId, qId, since);
+        Session old = sessions.put(tgId, s);
+        if (old != null) funnel(old.surveyId).waiting(old.questionId, -1);
+        funnel(surveyId).waiting(qId, +1);
+    }
+
+    private Session leave(long tgId) {
+        Session s = sessions.remove(tgId);
+        if (s != null) funnel(s.surveyId).waiting(s.questionId, -1);
+        return s;
+    }
+
+    private SurveyFunnel funnel(String surveyId) {
+        return bySurvey.computeIfAbsent(surveyId, this::load);
+    }
+
+    private SurveyFunnel load(String surveyId) {
+        SurveyFunnel f = new SurveyFunnel();
+        long after = 0;
+        Map<String,Object> snap = db.loadFunnelSnapshot(surveyId);
+        if (snap != null) {
+            try { f.read((byte[]) snap.get("data")); after = (long) snap.get("watermark"); }
+            catch (Exception e) { e.printStackTrace(); f = new SurveyFunnel(); } // битый снимок — пересчитаем полностью
+        }
+        SurveyFunnel target = f;
+        target.watermark = after;
+        try {
+            db.streamAnswerTimings(surveyId, after, (answerId, shownAt, qId, answeredAt) -> {
+                long from = millis(shownAt), at = millis(answeredAt);
+                if (from > 0 && at >= from) target.time(qId, at - from);
+                target.applied(answerId);
+            });
+        } catch (Exception e) { e.printStackTrace(); }
+        return target;
+    }
+
+    /** Не вызывать под {@link #snapshotLock} на чтение (изнутри {@link #answered}). */
+    private void persist(String surveyId, SurveyFunnel f) {
+        byte[] data;
+        long watermark;
+        snapshotLock.writeLock().lock();
+        try {
+            synchronized (f) {
+                data = f.write();
+                watermark = f.watermark;
+                f.savedAt = System.currentTimeMillis();
+            }
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        db.saveFunnelSnapshot(surveyId, data, watermark); // пара «гистограммы + отметка» согласована, порядок записей не важен
+    }
+
+    /** Отчёт по вопросам текущей версии анкеты (в порядке анкеты). */
+    public List<Step> report(CompiledSurvey survey) {
+        SurveyFunnel f = funnel(survey.getId());
+        long now = System.currentTimeMillis();
+        // давность простоя — по сессиям в памяти (счётчики «сейчас на вопросе» ведутся инкрементально)
+        Map<String,int[]> stale = new HashMap<>();
+        for (Session s : sessions.values()) {
+            if (!s.surveyId.equals(survey.getId())) continue;
+            long age = now - s.since;
+            int[] a = stale.computeIfAbsent(s.questionId, k -> new int[2]);
+            if (age > HOUR_MS) a[0]++;
+            if (age > DAY_MS) a[1]++;
+        }
+        List<Step> out = new ArrayList<>(survey.size());
+        synchronized (f) {
+            for (Question q : survey.getQuestions()) {
+                int[] h = f.times.get(q.getId());
+                int[] a = stale.getOrDefault(q.getId(), new int[2]);
+                out.add(new Step(q.getId(), q.getText(), f.waiting.getOrDefault(q.getId(), 0), a[0], a[1],
+                        h == null ? new int[BUCKET_LABELS.length] : h.clone()));
+            }
+        }
+        return out;
+    }
+
+    public static List<String> bucketLabels() { return List.of(BUCKET_LABELS); }
+
+    /** Корзина, в которую попадает медиана (или -1, если данных нет). */
+    public static int medianBucket(int[] hist) {
+        int total = 0;
+        for (int c : hist) total += c;
+        if (total == 0) return -1;
+        int half = (total + 1) / 2, acc = 0;
+        for (int i = 0; i < hist.length; i++) { acc += hist[i]; if (acc >= half) return i; }
+        return hist.length - 1;
+    }
+
+    private static int bucket(long ms) {
+        long sec = ms / 1000;
+        for (int i = 0; i < BUCKETS_SEC.length; i++) if (sec <= BUCKETS_SEC[i]) return i;
+        return BUCKETS_SEC.length;
+    }
+
+    private static long millis(String iso) {
+        if (iso == null) return 0;
+        try { return Instant.parse(iso).toEpochMilli(); } catch (Exception e) { return 0; }
+    }
+
+    private record Session(String surveyId, String questionId, long since) {}
+
+    private static final class SurveyFunnel {
+        final Map<String,Integer> waiting = new HashMap<>(); // вопрос -> сессий на нём сейчас
+        final Map<String,int[]> times = new HashMap<>();     // вопрос -> гистограмма времени ответа
+        long watermark; // наибольший учтённый answers.id
+        long savedAt;
+
+        synchronized void applied(long answerId) { if (answerId > watermark) watermark = answerId; }
+
+        synchronized void waiting(String qId, int delta) { waiting.merge(qId, delta, Integer::sum); }
+
+        synchronized void time(String qId, long ms) {
+            times.computeIfAbsent(qId, k -> new int[BUCKET_LABELS.length])[bucket(ms)]++;
+        }
+
+        /** Только гистограммы: сессии при старте берутся из user_progress. */
+        byte[] write() {
+            try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(bos)) {
+                out.writeInt(SNAPSHOT_FORMAT);
+                out.writeInt(BUCKET_LABELS.length);
+                out.writeInt(times.size());
+                for (var e : times.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    for (int v : e.getValue()) out.writeInt(v);
+                }
+                out.flush();
+                return bos.toByteArray();
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+
+        void read(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != SNAPSHOT_FORMAT) throw new IOException("неизвестный формат снимка");
+            if (in.readInt() != BUCKET_LABELS.length) throw new IOException("другие корзины времени");
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String qId = in.readUTF();
+                int[] h = new int[BUCKET_LABELS.length];
+                for (int j = 0; j < h.length; j++) h[j] = in.readInt();
+                times.put(qId, h);
+            }
+        }
+    }
+
+    /**
+     * Шаг воронки: сейчас на вопросе {@code waiting} сессий, из них дольше часа / суток — {@code staleHour} / {@code staleDay};
+     * {@code times} — распределение времени ответа по корзинам {@link #bucketLabels()}.
+     */
+    public record Step(String questionId, String text, int waiting, int staleHour, int staleDay, int[] times) {}
+}
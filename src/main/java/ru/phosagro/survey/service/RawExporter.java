@@ -0,0 +1,264 @@
+package ru.phosagro.survey.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.model.Question;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Сырые ответы: строка на респондента, колонка на вопрос (MULTI — колонка-флаг на вариант
+ * и колонка со «своими» ответами). Идём курсором по БД, в памяти держим только текущую строку.
+ * Результат — zip с двумя файлами:
+ * <ul>
+ *   <li>{@code <id>.csv} — UTF-8 с BOM, разделитель «,», кавычки по RFC 4180;</li>
+ *   <li>{@code <id>.fscb} — колоночный формат: "FSCB", int версия=1, int строк, int колонок;
+ *       по каждой колонке: UTF имя, byte тип (0 — код варианта int, -1 нет ответа; 1 — флаг byte;
+ *       2 — текст UTF, "" нет ответа; 3 — long), для типа 0 — словарь (int n, n×UTF),
+ *       затем long длина данных и сами данные колонки.</li>
+ * </ul>
+ */
+public class RawExporter {
+    private static final String MAGIC = "FSCB";
+    private static final int FORMAT_VERSION = 1;
+    private static final byte CODE = 0, FLAG = 1, TEXT = 2, LONG = 3;
+    private static final String OTHER_PREFIX = "Другое: ";
+    private static final int PROGRESS_EVERY = 500;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Db db;
+    private final SurveyRegistry registry;
+
+    public RawExporter(Db db, SurveyRegistry registry) {
+        this.db = db;
+        this.registry = registry;
+    }
+
+    /** Выгрузить анкету в zip {@code out}; {@code progress} получает число выгруженных респондентов. */
+    public boolean export(String surveyId, Path out, IntConsumer progress) {
+        CompiledSurvey survey = registry.current(surveyId);
+        if (survey == null) return false;
+        Path tmpDir = null;
+        try {
+            tmpDir = Files.createTempDirectory("fosagro_raw_");
+            Layout layout = new Layout(survey, tmpDir);
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(out)))) {
+                zip.putNextEntry(new ZipEntry(surveyId + ".csv"));
+                Writer csv = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+                csv.write('\uFEFF'); // BOM: Excel иначе не узнает UTF-8
+                layout.writeCsvHeader(csv);
+
+                long[] current = {-1};
+                int[] rows = {0};
+                db.streamCompletedAnswers(surveyId, (respId, tgId, completedAt, qId, text, json) -> {
+                    if (respId != current[0]) {
+                        if (current[0] >= 0) {
+                            layout.flush(csv);
+                            if (++rows[0] % PROGRESS_EVERY == 0) progress.accept(rows[0]);
+                        }
+                        current[0] = respId;
+                        layout.begin(tgId, completedAt);
+                    }
+                    layout.put(qId, text, json);
+                });
+                if (current[0] >= 0) { layout.flush(csv); rows[0]++; }
+                csv.flush();
+                zip.closeEntry();
+                progress.accept(rows[0]);
+
+                zip.putNextEntry(new ZipEntry(surveyId + ".fscb"));
+                layout.writeColumnar(zip, rows[0]);
+                zip.closeEntry();
+            } finally {
+                layout.close();
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (tmpDir != null) {
+                File[] left = tmpDir.toFile().listFiles();
+                if (left != null) for (File f : left) f.delete();
+                tmpDir.toFile().delete();
+            }
+        }
+    }
+
+    /* ===== раскладка колонок и буфер текущего респондента ===== */
+
+    private static final class Column {
+        final String name;
+        final byte type;
+        final List<String> dict = new ArrayList<>();
+        final Map<String,Integer> codes = new HashMap<>();
+        final File file;
+        final DataOutputStream data;
+        // значение текущей строки
+        int code = -1;
+        byte flag;
+        String text = "";
+        long number;
+
+        Column(String name, byte type, Path dir, int idx) throws IOException {
+            this.name = name;
+            this.type = type;
+            this.file = dir.resolve("c" + idx + ".bin").toFile();
+            this.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        int codeOf(String label) {
+            Integer c = codes.get(label);
+            if (c == null) { c = dict.size(); dict.add(label); codes.put(label, c); }
+            return c;
+        }
+
+        String csvValue() {
+            return switch (type) {
+                case CODE -> code < 0 ? "" : dict.get(code);
+                case FLAG -> String.valueOf(flag);
+                case LONG -> String.valueOf(number);
+                default -> text;
+            };
+        }
+
+        void flush() throws IOException {
+            switch (type) {
+                case CODE -> data.writeInt(code);
+                case FLAG -> data.writeByte(flag);
+                case LONG -> data.writeLong(number);
+                default -> data.writeUTF(text);
+            }
+            code = -1; flag = 0; text = ""; number = 0;
+        }
+    }
+
+    private static final class Layout implements Closeable {
+        final List<Column> columns = new ArrayList<>();
+        final Map<String,Integer> base = new HashMap<>();                // id вопроса -> первая колонка
+        final Map<String,Map<String,Integer>> flagCols = new HashMap<>(); // MULTI: подпись -> колонка
+        final Map<String,Question> questions = new HashMap<>();
+        final Column tg, completed;
+
+        Layout(CompiledSurvey survey, Path dir) throws IOException {
+            tg = add("tg_id", LONG, dir);
+            completed = add("completed_at", TEXT, dir);
+            for (Question q : survey.getQuestions()) {
+                questions.put(q.getId(), q);
+                base.put(q.getId(), columns.size());
+                switch (q.getType()) {
+                    case SINGLE -> {
+                        Column c = add(q.getId(), CODE, dir);
+                        for (Option o : q.getOptions()) if (!o.isOther()) c.codeOf(o.getText());
+                    }
+                    case RATING_1_10 -> {
+                        Column c = add(q.getId(), CODE, dir);
+                        for (int v = 1; v <= 10; v++) c.codeOf(String.valueOf(v));
+                    }
+                    case TEXT -> add(q.getId(), TEXT, dir);
+                    case MULTI -> {
+                        Map<String,Integer> byLabel = new HashMap<>();
+                        for (Option o : q.getOptions()) {
+                            if (o.isOther() || byLabel.containsKey(o.getText())) continue;
+                            byLabel.put(o.getText(), columns.size());
+                            add(q.getId() + ":" + o.getId(), FLAG, dir);
+                        }
+                        flagCols.put(q.getId(), byLabel);
+                        add(q.getId() + ":other", TEXT, dir);
+                    }
+                }
+            }
+        }
+
+        private Column add(String name, byte type, Path dir) throws IOException {
+            Column c = new Column(name, type, dir, columns.size());
+            columns.add(c);
+            return c;
+        }
+
+        void begin(long tgId, String completedAt) {
+            tg.number = tgId;
+            completed.text = completedAt == null ? "" : completedAt;
+        }
+
+        void put(String qId, String text, String json) throws IOException {
+            Question q = questions.get(qId);
+            if (q == null) return; // вопрос из прежней версии анкеты
+            Column c = columns.get(base.get(qId));
+            switch (q.getType()) {
+                case SINGLE, RATING_1_10 -> { if (text != null) c.code = c.codeOf(text); }
+                case TEXT -> c.text = text == null ? "" : text;
+                case MULTI -> {
+                    if (json == null || !json.startsWith("[")) return;
+                    Map<String,Integer> byLabel = flagCols.get(qId);
+                    Column other = columns.get(base.get(qId) + byLabel.size());
+                    for (String label : MAPPER.readValue(json, new TypeReference<List<String>>() {})) {
+                        Integer col = byLabel.get(label);
+                        if (col != null) { columns.get(col).flag = 1; continue; }
+                        String own = label.startsWith(OTHER_PREFIX) ? label.substring(OTHER_PREFIX.length()).trim() : label;
+                        other.text = other.text.isEmpty() ? own : other.text + "; " + own;
+                    }
+                }
+            }
+        }
+
+        void writeCsvHeader(Writer csv) throws IOException {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) csv.write(',');
+                csvCell(csv, columns.get(i).name);
+            }
+            csv.write("\r\n");
+        }
+
+        void flush(Writer csv) throws IOException {
+            for (int i = 0; i < columns.size(); i++) {
+                Column c = columns.get(i);
+                if (i > 0) csv.write(',');
+                csvCell(csv, c.csvValue());
+                c.flush();
+            }
+            csv.write("\r\n");
+        }
+
+        void writeColumnar(OutputStream os, int rows) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeBytes(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(rows);
+            out.writeInt(columns.size());
+            for (Column c : columns) {
+                c.data.close();
+                out.writeUTF(c.name);
+                out.writeByte(c.type);
+                if (c.type == CODE) {
+                    out.writeInt(c.dict.size());
+                    for (String d : c.dict) out.writeUTF(d);
+                }
+                out.writeLong(c.file.length());
+                Files.copy(c.file.toPath(), out);
+            }
+            out.flush(); // поток zip закрывает вызывающий
+        }
+
+        @Override public void close() {
+            for (Column c : columns) try { c.data.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static void csvCell(Writer w, String v) throws IOException {
+        if (v.indexOf(',') < 0 && v.indexOf('"') < 0 && v.indexOf('\n') < 0 && v.indexOf('\r') < 0) { w.write(v); return; }
+        w.write('"');
+        w.write(v.replace("\"", "\"\""));
+        w.write('"');
+    }
+}
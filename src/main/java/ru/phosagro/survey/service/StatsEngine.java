@@ -0,0 +1,417 @@
+package ru.phosagro.survey.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.model.QuestionType;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Статистика завершённых анкет в памяти: по вопросу — массив счётчиков int[]
+ * (слот на вариант / 10 баллов), счётчики «своих» вариантов и частых фраз с top-K, который ведётся
+ * на каждом ответе (срез копирует K строк, а не все тексты). Сами тексты не хранятся — выгрузка читает их
+ * из БД. Строится один раз из БД при старте,
+ * дальше пополняется при каждом успешном завершении анкеты — админке не нужно сканировать answers.
+ * Читатели получают неизменяемый {@link Snapshot}; он пересобирается не чаще одного раза на версию
+ * (версия растёт с каждым завершением), так что листание страниц и экспорт используют один срез.
+ * Для кросс-таблиц у каждого слота есть битсет респондентов (long[]): ячейка — пересечение
+ * двух битсетов и popcount, без JOIN по answers.
+ *
+ * <p>Загрузка счётчиков анкеты из БД и «завершить анкету + учесть её» ({@link #commitCompleted}) идут под одной
+ * блокировкой анкеты: загрузка либо не видит ответа (и он добавится после неё), либо видит его уже учтённым.
+ */
+public class StatsEngine {
+    static final String OTHER_PREFIX = "Другое: ";
+    static final int TOP_K = 10;
+    private static final int MAX_PHRASE_CHARS = 80;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Db db;
+    private final SurveyRegistry registry;
+    private final Map<String,Tally> bySurvey = new ConcurrentHashMap<>();
+    private final Map<String,Object> locks = new ConcurrentHashMap<>(); // анкета -> блокировка загрузки и завершений
+    private final AtomicLong versions = new AtomicLong(); // общий счётчик: версии не повторяются и после перезагрузки
+
+    public StatsEngine(Db db, SurveyRegistry registry) {
+        this.db = db;
+        this.registry = registry;
+        Metrics.gauge("stats_surveys_loaded", "Анкеты со счётчиками в памяти", bySurvey::size);
+    }
+
+    /** Полная пересборка из БД (при старте). */
+    public void rebuild() {
+        for (CompiledSurvey s : registry.all()) {
+            synchronized (lock(s.getId())) { bySurvey.put(s.getId(), load(s.getId())); }
+        }
+    }
+
+    /** Забыть счётчики (ответы удалены в обход сервиса) — следующее обращение перечитает БД. */
+    public void invalidate() {
+        for (String surveyId : locks.keySet()) { // и те, что прямо сейчас загружаются
+            synchronized (lock(surveyId)) { bySurvey.remove(surveyId); } // идущая загрузка успеет положить старое — дождёмся её
+        }
+    }
+
+    /**
+     * Завершить анкету ({@code commit} — транзакция в БД, возвращает id ответа или -1) и учесть её в счётчиках.
+     * Не пересекается с загрузкой анкеты из БД, иначе загрузка могла бы увидеть ответ и он был бы учтён дважды.
+     */
+    public long commitCompleted(String surveyId, LongSupplier commit) {
+        synchronized (lock(surveyId)) {
+            long responseId = commit.getAsLong();
+            if (responseId > 0) recordCompleted(surveyId, responseId);
+            return responseId;
+        }
+    }
+
+    /** Учесть завершённую анкету: все ответы и счётчик завершивших — под одной блокировкой. Вызывать под lock(surveyId). */
+    private void recordCompleted(String surveyId, long responseId) {
+        Tally t = bySurvey.get(surveyId);
+        if (t == null) { tally(surveyId); return; } // ещё не загружена: загрузка из БД уже видит этот ответ
+        List<Map<String,Object>> rows = db.getResponseAnswers(responseId);
+        CompiledSurvey survey = registry.current(surveyId);
+        synchronized (t) {
+            int respondent = t.respondents++;
+            for (var r : rows) t.add(r, survey, respondent);
+            t.completed++;
+            t.version = versions.incrementAndGet();
+        }
+    }
+
+    /** Текущая версия счётчиков анкеты — без сборки среза. */
+    public long version(String surveyId) {
+        Tally t = tally(surveyId);
+        synchronized (t) { return t.version; }
+    }
+
+    public int completed(String surveyId) {
+        Tally t = tally(surveyId);
+        synchronized (t) { return t.completed; }
+    }
+
+    /** Срез статистики анкеты: из кэша, если с момента сборки никто не завершил анкету. */
+    public Snapshot snapshot(String surveyId) {
+        Tally t = tally(surveyId);
+        Snapshot snap;
+        synchronized (t) {
+            snap = t.cached;
+            boolean hit = snap != null && snap.version() == t.version;
+            Metrics.STATS_CACHE.record(hit);
+            if (!hit) {
+                long t0 = System.nanoTime();
+                Map<String,QuestionStats> qs = new HashMap<>(t.byQuestion.size() * 2);
+                for (var e : t.byQuestion.entrySet()) qs.put(e.getKey(), e.getValue().copy());
+                Map<String,CrossTab> ct = new LinkedHashMap<>();
+                CompiledSurvey survey = registry.current(surveyId);
+                if (survey != null) for (String[] pair : survey.getCrosstabs()) ct.put(pair[0] + "|" + pair[1], t.crosstab(pair[0], pair[1]));
+                snap = new Snapshot(t.version, t.completed, Collections.unmodifiableMap(qs),
+                        Collections.unmodifiableMap(ct), System.currentTimeMillis());
+                t.cached = snap;
+                Metrics.BUILD.observeSince("stats_snapshot", t0);
+            }
+        }
+        Metrics.STATS_AGE.child(surveyId).observeNanos((System.currentTimeMillis() - snap.builtAt()) * 1_000_000);
+        return snap;
+    }
+
+    /** Кросс-таблица по любой паре вопросов (для объявленных в анкете есть готовая в {@link Snapshot}). */
+    public CrossTab crosstab(String surveyId, String rowQuestion, String colQuestion) {
+        Tally t = tally(surveyId);
+        synchronized (t) { return t.crosstab(rowQuestion, colQuestion); }
+    }
+
+    private Tally tally(String surveyId) {
+        Tally t = bySurvey.get(surveyId);
+        if (t != null) return t;
+        synchronized (lock(surveyId)) {
+            t = bySurvey.get(surveyId);
+            if (t == null) bySurvey.put(surveyId, t = load(surveyId));
+            return t;
+        }
+    }
+
+    private Object lock(String surveyId) {
+        return locks.computeIfAbsent(surveyId, k -> new Object());
+    }
+
+    private Tally load(String surveyId) {
+        Tally t = new Tally();
+        CompiledSurvey survey = registry.current(surveyId);
+        Map<Long,Integer> respondent = new HashMap<>(); // анкету проходят один раз: tg_id -> номер респондента
+        for (var r : db.getAllCompletedAnswers(surveyId)) {
+            int idx = respondent.computeIfAbsent((Long) r.get("tgId"), k -> t.respondents++);
+            t.add(r, survey, idx);
+        }
+        t.completed = db.countCompleted(surveyId);
+        t.version = versions.incrementAndGet();
+        return t;
+    }
+
+    /* ===== изменяемые счётчики (под блокировкой Tally) ===== */
+
+    private static final class Tally {
+        final Map<String,QTally> byQuestion = new HashMap<>();
+        int completed;
+        long version;     // новая на каждое завершение
+        Snapshot cached;  // срез для version (или устаревший)
+        int respondents;  // выдано номеров респондентов (биты в битсетах)
+
+        void add(Map<String,Object> row, CompiledSurvey survey, int respondent) {
+            String qId = (String) row.get("q");
+            String text = (String) row.get("text"), json = (String) row.get("json");
+            QTally qt = byQuestion.get(qId);
+            if (qt == null) {
+                Question q = survey == null ? null : survey.findQuestion(qId);
+                qt = q != null ? new QTally(q) : new QTally(json != null ? QuestionType.MULTI : QuestionType.TEXT);
+                byQuestion.put(qId, qt);
+            }
+            qt.add(text, json, (Integer) row.get("int"), respondent);
+        }
+
+        CrossTab crosstab(String rowQ, String colQ) {
+            QTally a = byQuestion.get(rowQ), b = byQuestion.get(colQ);
+            if (a == null || b == null) return new CrossTab(rowQ, colQ, List.of(), List.of(), new int[0][], new int[0]);
+            List<long[]> ra = a.sets(), cb = b.sets();
+            int[][] cells = new int[ra.size()][cb.size()];
+            int[] rowTotals = new int[ra.size()];
+            for (int i = 0; i < ra.size(); i++) {
+                rowTotals[i] = cardinality(ra.get(i));
+                for (int j = 0; j < cb.size(); j++) cells[i][j] = andCardinality(ra.get(i), cb.get(j));
+            }
+            return new CrossTab(rowQ, colQ, a.setLabels(), b.setLabels(), cells, rowTotals);
+        }
+    }
+
+    private static final class QTally {
+        final QuestionType type;
+        final List<String> labels = new ArrayList<>();       // слот -> подпись варианта
+        final Map<String,Integer> slots = new HashMap<>();   // подпись -> слот
+        int[] counts;
+        long[][] bits;                                       // слот -> битсет респондентов
+        long[] otherBits = new long[0];                      // все «свои» ответы вместе
+        final TopK other = new TopK();                       // «свой» вариант -> сколько раз
+        final TopK phrases = new TopK();                     // нормализованный ответ -> сколько раз
+        final TopK bigrams = new TopK();                     // пара соседних слов -> сколько раз
+        int answered;
+
+        QTally(QuestionType type) { this(type, null); }
+        QTally(Question q) { this(q.getType(), q); }
+
+        private QTally(QuestionType type, Question q) {
+            this.type = type;
+            if (type == QuestionType.RATING_1_10) {
+                for (int v = 1; v <= 10; v++) labels.add(String.valueOf(v));
+            } else if (q != null && q.getOptions() != null) {
+                for (Option o : q.getOptions()) {
+                    if (o.isOther() || slots.containsKey(o.getText())) continue;
+                    slots.put(o.getText(), labels.size());
+                    labels.add(o.getText());
+                }
+            }
+            counts = new int[Math.max(labels.size(), 1)];
+            bits = new long[counts.length][0];
+        }
+
+        void add(String text, String json, Integer number, int respondent) {
+            answered++;
+            switch (type) {
+                case TEXT -> { if (text != null && !text.isBlank()) phrases(text); }
+                case RATING_1_10 -> {
+                    int v = number != null ? number : parseRating(text); // answer_int пуст только у строк до миграции
+                    if (v >= 1 && v <= 10) hit(v - 1, respondent);
+                }
+                case SINGLE -> label(text == null ? "(пусто)" : text, respondent);
+                case MULTI -> {
+                    if (json == null || !json.startsWith("[")) return;
+                    try { for (String s : MAPPER.readValue(json, new TypeReference<List<String>>() {})) label(s, respondent); }
+                    catch (Exception ignored) {}
+                }
+            }
+        }
+
+        private static int parseRating(String text) {
+            try { return text == null ? 0 : Integer.parseInt(text.trim()); } catch (NumberFormatException e) { return 0; }
+        }
+
+        private void label(String s, int respondent) {
+            if (s.startsWith(OTHER_PREFIX)) {
+                String payload = s.substring(OTHER_PREFIX.length()).trim();
+                other.inc(payload.isEmpty() ? "(без текста)" : payload);
+                otherBits = set(otherBits, respondent);
+                return;
+            }
+            Integer slot = slots.get(s);
+            if (slot == null) { // подпись из прежней версии анкеты
+                slot = labels.size();
+                slots.put(s, slot);
+                labels.add(s);
+                if (slot >= counts.length) {
+                    int n = Math.max(slot + 1, counts.length * 2);
+                    counts = Arrays.copyOf(counts, n);
+                    bits = Arrays.copyOf(bits, n);
+                    for (int i = slot; i < n; i++) bits[i] = new long[0];
+                }
+            }
+            hit(slot, respondent);
+        }
+
+        private void hit(int slot, int respondent) {
+            counts[slot]++;
+            bits[slot] = set(bits[slot], respondent);
+        }
+
+        /** Частые фразы: ответ целиком (после нормализации) и пары соседних слов. */
+        private void phrases(String text) {
+            String[] words = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+            StringBuilder norm = new StringBuilder();
+            String prev = null;
+            for (String w : words) {
+                if (w.isEmpty()) continue;
+                if (norm.length() > 0) norm.append(' ');
+                norm.append(w);
+                if (w.length() >= 3) {
+                    if (prev != null) bigrams.inc(prev + " " + w);
+                    prev = w;
+                }
+            }
+            if (norm.length() > 0 && norm.length() <= MAX_PHRASE_CHARS) phrases.inc(norm.toString());
+        }
+
+        /** Битсеты для кросс-таблицы: слоты и, если были, общий «Другое». */
+        List<long[]> sets() {
+            List<long[]> out = new ArrayList<>(Arrays.asList(bits).subList(0, labels.size()));
+            if (other.size() > 0) out.add(otherBits);
+            return out;
+        }
+
+        List<String> setLabels() {
+            if (other.size() == 0) return List.copyOf(labels);
+            List<String> out = new ArrayList<>(labels);
+            out.add("Другое");
+            return List.copyOf(out);
+        }
+
+        QuestionStats copy() {
+            return new QuestionStats(answered, List.copyOf(labels), Arrays.copyOf(counts, labels.size()), other.size(),
+                    phrases.top(1), bigrams.top(2), other.top(1),
+                    type == QuestionType.RATING_1_10 ? Rating.of(counts) : null);
+        }
+    }
+
+    /**
+     * Счётчики строк с top-K, который ведётся на каждом +1: счётчики только растут, поэтому место в top
+     * может поменять лишь увеличенный ключ — O(log K) на ответ и O(K) на срез. Порядок — по частоте, при равенстве по алфавиту.
+     */
+    private static final class TopK {
+        private static final Comparator<Phrase> RANK = Comparator.comparingInt(Phrase::count).reversed().thenComparing(Phrase::text);
+        private final Map<String,Integer> counts = new HashMap<>();
+        private final TreeSet<Phrase> top = new TreeSet<>(RANK);
+
+        void inc(String key) {
+            int c = counts.merge(key, 1, Integer::sum);
+            Phrase now = new Phrase(key, c);
+            if (top.remove(new Phrase(key, c - 1))) top.add(now);
+            else if (top.size() < TOP_K) top.add(now);
+            else if (RANK.compare(now, top.last()) < 0) { top.pollLast(); top.add(now); }
+        }
+
+        /** Различных ключей. */
+        int size() { return counts.size(); }
+
+        /** Top-K не реже {@code min} раз. */
+        List<Phrase> top(int min) {
+            List<Phrase> out = new ArrayList<>(top.size());
+            for (Phrase p : top) { if (p.count() < min) break; out.add(p); }
+            return List.copyOf(out);
+        }
+    }
+
+    /* ===== битсеты респондентов на long[] ===== */
+
+    private static long[] set(long[] bits, int i) {
+        int w = i >>> 6;
+        if (w >= bits.length) bits = Arrays.copyOf(bits, Math.max(w + 1, bits.length * 2));
+        bits[w] |= 1L << i;
+        return bits;
+    }
+
+    private static int cardinality(long[] a) {
+        int n = 0;
+        for (long x : a) n += Long.bitCount(x);
+        return n;
+    }
+
+    private static int andCardinality(long[] a, long[] b) {
+        int n = 0;
+        for (int i = 0, len = Math.min(a.length, b.length); i < len; i++) n += Long.bitCount(a[i] & b[i]);
+        return n;
+    }
+
+    /** Неизменяемый срез статистики анкеты на версию {@code version}. */
+    public record Snapshot(long version, int completed, Map<String,QuestionStats> questions,
+                           Map<String,CrossTab> crosstabs, long builtAt) {
+        public QuestionStats question(Question q) {
+            QuestionStats st = questions.get(q.getId());
+            return st != null ? st : QuestionStats.empty(q);
+        }
+    }
+
+    /**
+     * Кросс-таблица: {@code cells[i][j]} — сколько респондентов выбрали i-й ответ вопроса-строки
+     * и j-й ответ вопроса-столбца; {@code rowTotals[i]} — всего выбравших i-й ответ.
+     */
+    public record CrossTab(String rowQuestion, String colQuestion, List<String> rowLabels, List<String> colLabels,
+                           int[][] cells, int[] rowTotals) {}
+
+    /** Фраза и сколько раз она встретилась. */
+    public record Phrase(String text, int count) {}
+
+    /**
+     * Неизменяемый срез счётчиков вопроса; {@code otherVariants} — сколько разных «своих» вариантов;
+     * top* — самые частые ответы/пары слов/«свои» варианты. Полные списки — {@link Db#streamTextAnswers}, {@link Db#streamOtherAnswers}.
+     */
+    public record QuestionStats(int answered, List<String> labels, int[] counts, int otherVariants,
+                                List<Phrase> topPhrases, List<Phrase> topBigrams, List<Phrase> topOther,
+                                Rating rating) {
+        static QuestionStats empty(Question q) { return new QTally(q).copy(); }
+    }
+
+    /**
+     * Сводка по шкале 1..10 из гистограммы баллов (10 счётчиков — O(1) на ответ, O(10) на сводку).
+     * NPS = % сторонников (9–10) − % критиков (1–6); нейтральные — 7–8.
+     */
+    public record Rating(int n, double mean, double median, double stddev,
+                         int promoters, int passives, int detractors) {
+        static Rating of(int[] hist) {
+            int n = 0;
+            long sum = 0, sumSq = 0;
+            for (int i = 0; i < 10; i++) { int v = i + 1; n += hist[i]; sum += (long) hist[i] * v; sumSq += (long) hist[i] * v * v; }
+            if (n == 0) return new Rating(0, 0, 0, 0, 0, 0, 0);
+            double mean = (double) sum / n;
+            double var = Math.max(0, (double) sumSq / n - mean * mean);
+            int promoters = hist[8] + hist[9], passives = hist[6] + hist[7];
+            return new Rating(n, mean, (valueAt(hist, (n - 1) / 2) + valueAt(hist, n / 2)) / 2.0, Math.sqrt(var),
+                    promoters, passives, n - promoters - passives);
+        }
+
+        /** Балл k-го по порядку ответа (с нуля). */
+        private static int valueAt(int[] hist, int k) {
+            int acc = 0;
+            for (int i = 0; i < 10; i++) { acc += hist[i]; if (acc > k) return i + 1; }
+            return 10;
+        }
+
+        /** NPS, от −100 до +100. */
+        public int nps() { return n == 0 ? 0 : (int) Math.round(100.0 * (promoters - detractors) / n); }
+
+        public int percent(int part) { return n == 0 ? 0 : (int) Math.round(100.0 * part / n); }
+    }
+}
@@ -0,0 +1,305 @@
+package ru.phosagro.survey.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Option;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.model.QuestionType;
+import ru.phosagro.survey.model.Survey;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Единственный источник определений анкет: каждый survey.json читается и проверяется один раз,
+ * готовые неизменяемые снимки публикуются через volatile-ссылку на неизменяемую карту id -> снимок.
+ *
+ * Внешний источник (SURVEY_PATH) — файл или каталог с *.json, по файлу на анкету; он отслеживается
+ * через WatchService: новое содержимое проверяется и подменяет снимок целиком. Каждое содержимое
+ * получает номер версии в БД, поэтому начатые сессии продолжают работать на той версии,
+ * с которой стартовали (в т.ч. после перезапуска).
+ */
+public class SurveyRegistry {
+    public static final String BUNDLED_ID = "main"; // id встроенной анкеты, если в json не указан свой
+    private static final Pattern SURVEY_ID = Pattern.compile("[A-Za-z0-9_-]{1,32}"); // допустимо для deep-link
+    private static final int CALLBACK_DATA_LIMIT = 64; // ограничение Telegram на callback_data, байт
+    private static final long DEBOUNCE_MS = 300;       // редакторы пишут файл в несколько приёмов
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Db db;
+    private final Path externalPath;
+    private final Map<Integer, CompiledSurvey> versions = new ConcurrentHashMap<>();
+    private volatile Map<String, CompiledSurvey> current = Map.of();
+    private volatile String defaultId;
+    private volatile Thread watcher;
+
+    /**
+     * Загружает внешний файл/каталог (если задан и существует) или встроенный /survey.json.
+     * При ошибке в определении бросает исключение — бот не стартует.
+     *
+     * @param defaultId анкета для /start без параметра; null — встроенная или первая по алфавиту
+     */
+    public SurveyRegistry(Db db, Path externalPath, String defaultId) {
+        this.db = db;
+        this.externalPath = externalPath;
+        try {
+            List<Path> files = externalFiles();
+            if (files.isEmpty()) publish(readResource(), BUNDLED_ID);
+            else for (Path f : files) publish(Files.readAllBytes(f), baseName(f));
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Не удалось прочитать survey.json: " + e.getMessage(), e);
+        }
+        Map<String, CompiledSurvey> all = current;
+        if (defaultId != null && !defaultId.isBlank() && !all.containsKey(defaultId))
+            throw new IllegalStateException("Анкета по умолчанию не найдена: " + defaultId);
+        this.defaultId = defaultId != null && !defaultId.isBlank() ? defaultId
+                : all.containsKey(BUNDLED_ID) ? BUNDLED_ID : new TreeSet<>(all.keySet()).first();
+    }
+
+    /** Без БД и версий — для утилит и бенчмарков. */
+    public SurveyRegistry(Survey survey) {
+        this.db = null;
+        this.externalPath = null;
+        CompiledSurvey s = compile(survey, survey.getId() == null ? BUNDLED_ID : survey.getId(), 0);
+        this.current = Map.of(s.getId(), s);
+        this.defaultId = s.getId();
+    }
+
+    /** Анкета по умолчанию; никогда не null. */
+    public CompiledSurvey current() { return current.get(defaultId); }
+
+    /** Текущий снимок анкеты или null, если такой нет. */
+    public CompiledSurvey current(String surveyId) { return surveyId == null ? null : current.get(surveyId); }
+
+    public String defaultId() { return defaultId; }
+
+    /** Все анкеты, отсортированные по id. */
+    public List<CompiledSurvey> all() {
+        List<CompiledSurvey> out = new ArrayList<>(current.values());
+        out.sort(Comparator.comparing(CompiledSurvey::getId));
+        return out;
+    }
+
+    /** Снимок конкретной версии (для начатых сессий); неизвестная версия — текущий снимок этой анкеты. */
+    public CompiledSurvey byVersion(String surveyId, int version) {
+        CompiledSurvey cur = current(surveyId);
+        if (cur == null) cur = current();
+        if (version <= 0 || version == cur.getVersion()) return cur;
+        CompiledSurvey s = versions.get(version);
+        if (s != null) return s;
+        if (db == null) return cur;
+        String json = db.loadSurveyVersion(version);
+        if (json == null) return cur;
+        try {
+            s = compile(mapper.readValue(json, Survey.class), cur.getId(), version);
+            CompiledSurvey prev = versions.putIfAbsent(version, s);
+            return prev != null ? prev : s;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return cur;
+        }
+    }
+
+    /** Перечитать файл внешнего источника. Ошибочное определение не применяется, текущий снимок остаётся. */
+    public boolean reload(Path file) {
+        try {
+            Map<String, CompiledSurvey> before = current;
+            String id = publish(Files.readAllBytes(file), baseName(file));
+            if (current != before) System.out.println(file.getFileName() + ": анкета " + id + " — версия " + current.get(id).getVersion());
+            return true;
+        } catch (Exception e) {
+            System.err.println(file.getFileName() + ": изменения не применены — " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Запустить слежение за внешним источником (daemon-поток). */
+    public synchronized void watch() {
+        if (externalPath == null || watcher != null) return;
+        Path abs = externalPath.toAbsolutePath();
+        boolean dir = Files.isDirectory(abs);
+        Path watchDir = dir ? abs : abs.getParent();
+        Path only = dir ? null : abs.getFileName();
+        Thread t = new Thread(() -> watchLoop(watchDir, only), "survey-watcher");
+        t.setDaemon(true);
+        t.start();
+        watcher = t;
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) { watcher.interrupt(); watcher = null; }
+    }
+
+    /** @param only имя отслеживаемого файла; null — все *.json каталога */
+    private void watchLoop(Path dir, Path only) {
+        try (WatchService ws = dir.getFileSystem().newWatchService()) {
+            dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = ws.take();
+                Set<Path> touched = new LinkedHashSet<>();
+                do {
+                    for (WatchEvent<?> ev : key.pollEvents()) {
+                        if (!(ev.context() instanceof Path name)) continue;
+                        if (only != null ? only.equals(name) : name.toString().endsWith(".json")) touched.add(name);
+                    }
+                    key.reset();
+                } while ((key = ws.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null);
+                for (Path name : touched) if (Files.isRegularFile(dir.resolve(name))) reload(dir.resolve(name));
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        } catch (Exception e) { e.printStackTrace(); }
+    }
+
+    /** Проверить, зарегистрировать версию и опубликовать; возвращает id анкеты. */
+    private synchronized String publish(byte[] raw, String fallbackId) throws Exception {
+        Survey parsed = mapper.readValue(raw, Survey.class);
+        String id = parsed == null || isBlank(parsed.getId()) ? fallbackId : parsed.getId();
+        List<String> errors = validate(parsed, id);
+        if (!errors.isEmpty()) throw new IllegalStateException("Ошибки в определении анкеты " + id + ":\n— " + String.join("\n— ", errors));
+
+        int version = 0;
+        if (db != null) {
+            // id входит в хэш: одинаковые файлы без явного id — разные анкеты
+            version = db.saveSurveyVersion(id, sha256(id, raw), new String(raw, StandardCharsets.UTF_8));
+            CompiledSurvey cur = current.get(id);
+            if (cur != null && version != 0 && cur.getVersion() == version) return id; // содержимое не изменилось
+        }
+        CompiledSurvey next = compile(parsed, id, version);
+        if (version != 0) versions.put(version, next);
+        Map<String, CompiledSurvey> m = new HashMap<>(current);
+        m.put(id, next);
+        current = Map.copyOf(m); // атомарная подмена снимка
+        return id;
+    }
+
+    private List<Path> externalFiles() throws Exception {
+        if (externalPath == null) return List.of();
+        if (Files.isRegularFile(externalPath)) return List.of(externalPath);
+        if (!Files.isDirectory(externalPath)) return List.of();
+        try (var st = Files.list(externalPath)) {
+            return st.filter(f -> f.getFileName().toString().endsWith(".json") && Files.isRegularFile(f)).sorted().toList();
+        }
+    }
+
+    private byte[] readResource() throws Exception {
+        try (InputStream in = getClass().getResourceAsStream("/survey.json")) {
+            if (in == null) throw new IllegalStateException("survey.json не найден в ресурсах");
+            return in.readAllBytes();
+        }
+    }
+
+    private static String baseName(Path f) {
+        String n = f.getFileName().toString();
+        return n.endsWith(".json") ? n.substring(0, n.length() - 5) : n;
+    }
+
+    static CompiledSurvey compile(Survey s, String id, int version) {
+        List<String> errors = validate(s, id);
+        if (!errors.isEmpty()) throw new IllegalStateException("Ошибки в определении анкеты " + id + ":\n— " + String.join("\n— ", errors));
+        return new CompiledSurvey(s, id, version); // копирует вопросы: разобранный Survey дальше не используется
+    }
+
+    static List<String> validate(Survey s, String id) {
+        List<String> errors = new ArrayList<>();
+        if (s == null) { errors.add("пустое определение"); return errors; }
+        if (id == null || !SURVEY_ID.matcher(id).matches()) errors.add("id анкеты должен состоять из латиницы, цифр, '_' или '-' (до 32 символов)");
+        if (isBlank(s.getWelcome())) errors.add("нет welcome");
+        if (isBlank(s.getStartButton())) errors.add("нет startButton");
+        if (isBlank(s.getFinish())) errors.add("нет finish");
+        if (s.getQuestions() == null || s.getQuestions().isEmpty()) { errors.add("нет вопросов"); return errors; }
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < s.getQuestions().size(); i++) {
+            Question q = s.getQuestions().get(i);
+            String where = "вопрос #" + (i + 1);
+            if (q == null) { errors.add(where + ": пусто"); continue; }
+            if (isBlank(q.getId())) { errors.add(where + ": нет id"); continue; }
+            where = where + " (" + q.getId() + ")";
+            if (!ids.add(q.getId())) errors.add(where + ": повторяющийся id");
+            if (q.getId().indexOf(':') >= 0) errors.add(where + ": ':' в id недопустим");
+            if (q.getType() == null) { errors.add(where + ": нет type"); continue; }
+            if (isBlank(q.getText())) errors.add(where + ": нет text");
+
+            if (q.getType() == QuestionType.SINGLE || q.getType() == QuestionType.MULTI) {
+                if (q.getOptions() == null || q.getOptions().isEmpty()) { errors.add(where + ": нет вариантов"); continue; }
+                Set<String> optIds = new HashSet<>();
+                int regular = 0;
+                for (Option o : q.getOptions()) {
+                    if (o == null || isBlank(o.getId())) { errors.add(where + ": вариант без id"); continue; }
+                    if (!optIds.add(o.getId())) errors.add(where + ": повторяющийся вариант " + o.getId());
+                    if (o.getId().indexOf(':') >= 0) errors.add(where + ": ':' в id варианта недопустим");
+                    if (isBlank(o.getText())) errors.add(where + ": вариант " + o.getId() + " без текста");
+                    if (!o.isOther()) regular++;
+                    if (bytes("ans:" + q.getId() + ":m:" + o.getId()) > CALLBACK_DATA_LIMIT)
+                        errors.add(where + ": callback_data длиннее " + CALLBACK_DATA_LIMIT + " байт");
+                }
+                if (regular == 0) errors.add(where + ": нет вариантов для кнопок");
+                if (q.getType() == QuestionType.MULTI && (q.getMax() < 1 || q.getMax() > q.getOptions().size()))
+                    errors.add(where + ": max должен быть от 1 до " + q.getOptions().size());
+            } else if (bytes("ans:" + q.getId() + ":r:10") > CALLBACK_DATA_LIMIT) {
+                errors.add(where + ": callback_data длиннее " + CALLBACK_DATA_LIMIT + " байт");
+            }
+        }
+        if (errors.isEmpty()) validateBranches(s.getQuestions(), errors);
+        if (errors.isEmpty() && s.getCrosstabs() != null) validateCrosstabs(s, errors);
+        return errors;
+    }
+
+    /** Кросс-таблицы: пары разных существующих вопросов с вариантами (не TEXT). */
+    private static void validateCrosstabs(Survey s, List<String> errors) {
+        Map<String,Question> byId = new HashMap<>();
+        for (Question q : s.getQuestions()) byId.put(q.getId(), q);
+        for (List<String> pair : s.getCrosstabs()) {
+            if (pair == null || pair.size() != 2) { errors.add("crosstabs: нужна пара [вопрос, вопрос], а не " + pair); continue; }
+            if (pair.get(0) != null && pair.get(0).equals(pair.get(1))) errors.add("crosstabs " + pair + ": вопросы должны различаться");
+            for (String id : pair) {
+                Question q = id == null ? null : byId.get(id);
+                if (q == null) errors.add("crosstabs " + pair + ": нет вопроса '" + id + "'");
+                else if (q.getType() == QuestionType.TEXT) errors.add("crosstabs " + pair + ": " + id + " — текстовый вопрос");
+            }
+        }
+    }
+
+    /** Переходы "next": известные ответы, существующие цели и только вперёд (без циклов). */
+    private static void validateBranches(List<Question> questions, List<String> errors) {
+        Map<String,Integer> ord = new HashMap<>();
+        for (int i = 0; i < questions.size(); i++) ord.put(questions.get(i).getId(), i);
+        for (int i = 0; i < questions.size(); i++) {
+            Question q = questions.get(i);
+            if (q.getNext() == null) continue;
+            String where = "вопрос " + q.getId() + ", next";
+            Set<String> keys = new HashSet<>();
+            keys.add(CompiledSurvey.ANY);
+            if (q.getType() == QuestionType.SINGLE) for (Option o : q.getOptions()) keys.add(o.getId());
+            if (q.getType() == QuestionType.RATING_1_10) for (int v = 1; v <= 10; v++) keys.add(String.valueOf(v));
+            for (Map.Entry<String,String> e : q.getNext().entrySet()) {
+                if (!keys.contains(e.getKey()))
+                    errors.add(where + ": неизвестный ответ '" + e.getKey() + "'"
+                            + (q.getType() == QuestionType.MULTI || q.getType() == QuestionType.TEXT ? " (для " + q.getType() + " допустим только '*')" : ""));
+                String target = e.getValue();
+                if (CompiledSurvey.END.equals(target)) continue;
+                Integer t = target == null ? null : ord.get(target);
+                if (t == null) errors.add(where + ": нет вопроса '" + target + "'");
+                else if (t <= i) errors.add(where + ": переход назад на " + target + " недопустим");
+            }
+        }
+    }
+
+    private static String sha256(String id, byte[] raw) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update((id + "\n").getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(md.digest(raw));
+    }
+
+    private static boolean isBlank(String s) { return s == null || s.isBlank(); }
+    private static int bytes(String s) { return s.getBytes(StandardCharsets.UTF_8).length; }
+}
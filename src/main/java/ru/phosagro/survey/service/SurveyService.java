@@ -1,30 +1,61 @@
 package ru.phosagro.survey.service;
 
 import ru.phosagro.survey.db.Db;
+import ru.phosagro.survey.metrics.Metrics;
+import ru.phosagro.survey.model.CompiledSurvey;
 import ru.phosagro.survey.model.Option;
 import ru.phosagro.survey.model.Question;
 import ru.phosagro.survey.model.QuestionType;
-import ru.phosagro.survey.model.Survey;
 
 import java.util.*;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 public class SurveyService {
     private final Db db;
-    private Survey survey;
+    private final SurveyRegistry registry;
+    private final StatsEngine stats;
+    private final FunnelTracker funnel;
+    private final CompletionSeries series;
+
+    public SurveyService(Db db, SurveyRegistry registry, StatsEngine stats, FunnelTracker funnel, CompletionSeries series) {
+        this.db = db;
+        this.registry = registry;
+        this.stats = stats;
+        this.funnel = funnel;
+        this.series = series;
+    }
+
+    public boolean userCompleted(long tgId, String surveyId) { return db.hasCompleted(tgId, surveyId); }
+
+    /** Начать анкету; незавершённая сессия другой анкеты при этом бросается. */
+    public void startSurvey(long tgId, String surveyId) {
+        CompiledSurvey survey = registry.current(surveyId);
+        if (survey == null) survey = registry.current();
+        Map<String,Object> p = db.loadProgress(tgId);
+        if (p != null && survey.getId().equals(p.get("survey_id"))) return;
+        if (db.startResponse(tgId, survey.getId(), survey.getVersion()) > 0) funnel.started(tgId, survey);
+    }
 
-    public SurveyService(Db db) { this.db = db; }
-    public void setSurvey(Survey survey) { this.survey = survey; }
+    /** Анкета (и версия), на которой идёт сессия пользователя; без сессии — анкета по умолчанию. */
+    public CompiledSurvey surveyFor(long tgId) {
+        Map<String,Object> p = db.loadProgress(tgId);
+        return p == null ? registry.current() : surveyOf(p);
+    }
 
-    public boolean userCompleted(long tgId) { return db.hasCompleted(tgId); }
-    public void startSurvey(long tgId) { if (!db.inDraft(tgId)) db.startResponse(tgId); }
+    /** Вопрос {@code qId} — текущий в сессии (иначе нажата кнопка старого сообщения или другой ветки). */
+    public boolean isCurrentQuestion(long tgId, String qId) {
+        Question q = currentQuestion(tgId);
+        return q != null && q.getId().equals(qId);
+    }
 
     public Question currentQuestion(long tgId) {
         Map<String,Object> p = db.loadProgress(tgId);
         if (p == null) return null;
         int idx = (int)p.get("current_q_index");
-        if (idx < 0 || idx >= survey.getQuestions().size()) return null;
-        return survey.getQuestions().get(idx);
+        CompiledSurvey survey = surveyOf(p);
+        if (idx < 0 || idx >= survey.size()) return null;
+        return survey.get(idx);
     }
 
     /** Ждём свободный текст:
@@ -36,8 +67,9 @@ public class SurveyService {
         Question q = currentQuestion(tgId);
         if (q == null) return false;
         if (q.getType() == QuestionType.TEXT) return true;
-        boolean hasOther = q.getOptions() != null && q.getOptions().stream().anyMatch(Option::isOther);
-        return hasOther; // разрешаем текст для вопросов с «Другое», даже без нажатия кнопки
+        CompiledSurvey survey = surveyOf(p);
+        int ord = survey.ordinalOf(q.getId());
+        return ord >= 0 && survey.hasOther(ord); // разрешаем текст для вопросов с «Другое», даже без нажатия кнопки
     }
 
     public void prepareAwaitingText(long tgId, String qId) {
@@ -54,21 +86,16 @@ public class SurveyService {
         if (p == null) return "";
         long respId = (long)p.get("response_id");
         int idx = (int)p.get("current_q_index");
-        Question q = survey.getQuestions().get(idx);
+        CompiledSurvey survey = surveyOf(p);
+        Question q = survey.get(idx);
 
         if (q.getType() == QuestionType.TEXT) {
-            db.insertAnswer(respId, q.getId(), text, null);
-            db.saveProgress(tgId, idx+1, null, null, null);
-            if (idx+1 >= survey.getQuestions().size()) { db.finishAndCommit(tgId); return "Спасибо! Анкетирование завершено."; }
-            return "";
+            return advance(tgId, survey, idx, -1, () -> db.insertAnswer(respId, q.getId(), text, null, true));
         }
 
-        // SINGLE с «Другое»: принять как ответ (Другое: ...)
+        // SINGLE с «Другое»: принять как ответ (Другое: ...), переход — как у варианта «Другое»
         if (q.getType() == QuestionType.SINGLE) {
-            db.insertAnswer(respId, q.getId(), "Другое: " + text, null);
-            db.saveProgress(tgId, idx+1, null, null, null);
-            if (idx+1 >= survey.getQuestions().size()) { db.finishAndCommit(tgId); return "Спасибо! Анкетирование завершено."; }
-            return "";
+            return advance(tgId, survey, idx, survey.otherOrdinal(idx), () -> db.insertAnswer(respId, q.getId(), "Другое: " + text, null));
         }
 
         // MULTI с «Другое»: добавить к выбору
@@ -80,10 +107,7 @@ public class SurveyService {
 
             if (selected.size() >= max) {
                 List<String> labels = mapMultiLabels(q, selected);
-                db.insertAnswer(respId, q.getId(), null, labels);
-                db.saveProgress(tgId, idx+1, null, null, null);
-                if (idx+1 >= survey.getQuestions().size()) { db.finishAndCommit(tgId); return "Спасибо! Анкетирование завершено."; }
-                return "";
+                return advance(tgId, survey, idx, -1, () -> db.insertAnswer(respId, q.getId(), null, labels));
             } else {
                 db.saveProgress(tgId, idx, null, null, selected);
                 return ""; // останемся на вопросе; Bot отредактирует сообщение с текущим набором
@@ -103,26 +127,23 @@ public class SurveyService {
         Map<String,Object> p = db.loadProgress(tgId);
         if (p == null) return "Сессия не найдена.";
         int idx = (int)p.get("current_q_index");
-        Question q = survey.getQuestions().get(idx);
+        CompiledSurvey survey = surveyOf(p);
+        Question q = survey.get(idx);
         if (!q.getId().equals(qId)) return ""; // протухший колбэк
         long respId = (long)p.get("response_id");
 
         if ("s".equals(parts[2])) { // SINGLE
-            String optId = parts[3];
-            Option o = q.getOptions().stream().filter(x->x.getId().equals(optId)).findFirst().orElse(null);
-            if (o == null) return "Опция не найдена.";
-            db.insertAnswer(respId, q.getId(), o.getText(), null);
-            db.saveProgress(tgId, idx+1, null, null, null);
-            if (idx+1 >= survey.getQuestions().size()) { db.finishAndCommit(tgId); return "Спасибо! Анкетирование завершено."; }
-            return "";
+            int opt = survey.optionOrdinal(idx, parts[3]);
+            if (opt < 0) return "Опция не найдена.";
+            return advance(tgId, survey, idx, opt, () -> db.insertAnswer(respId, q.getId(), q.getOptions().get(opt).getText(), null));
         }
 
         if ("r".equals(parts[2])) { // RATING
             String val = parts[3];
-            db.insertAnswer(respId, q.getId(), val, null);
-            db.saveProgress(tgId, idx+1, null, null, null);
-            if (idx+1 >= survey.getQuestions().size()) { db.finishAndCommit(tgId); return "Спасибо! Анкетирование завершено."; }
-            return "";
+            int v;
+            try { v = Integer.parseInt(val); } catch (NumberFormatException e) { return "Опция не найдена."; }
+            if (v < 1 || v > 10) return "Опция не найдена.";
+            return advance(tgId, survey, idx, v - 1, () -> db.insertRating(respId, q.getId(), v));
         }
 
         if ("m".equals(parts[2])) { // MULTI toggle
@@ -140,10 +161,7 @@ public class SurveyService {
 
             if (selected.size() == max) {
                 List<String> labels = mapMultiLabels(q, selected);
-                db.insertAnswer(respId, q.getId(), null, labels);
-                db.saveProgress(tgId, idx+1, null, null, null);
-                if (idx+1 >= survey.getQuestions().size()) { db.finishAndCommit(tgId); return "Спасибо! Анкетирование завершено."; }
-                return "";
+                return advance(tgId, survey, idx, -1, () -> db.insertAnswer(respId, q.getId(), null, labels));
             }
 
             db.saveProgress(tgId, idx, null, null, selected);
@@ -153,14 +171,50 @@ public class SurveyService {
         return "";
     }
 
-    public boolean isCompleted(long tgId) {
-        return db.hasCompleted(tgId) && !db.inDraft(tgId);
+    /** Зафиксировать ответ на MULTI-вопрос {@code qId} (подписи уже собраны) и перейти дальше; не текущий — ничего. */
+    public String commitMulti(long tgId, String qId, List<String> labels) {
+        Map<String,Object> p = db.loadProgress(tgId);
+        if (p == null) return "Сессия не найдена.";
+        int idx = (int)p.get("current_q_index");
+        CompiledSurvey survey = surveyOf(p);
+        if (idx < 0 || idx >= survey.size()) return "";
+        if (!survey.get(idx).getId().equals(qId)) return ""; // протухшая клавиатура
+        long respId = (long)p.get("response_id");
+        return advance(tgId, survey, idx, -1, () -> db.insertAnswer(respId, qId, null, labels));
+    }
+
+    /**
+     * Записать ответ ({@code save} — вставка в answers, возвращает её id) и перейти по таблице переходов;
+     * за последним вопросом — завершение. Запись — через воронку: её снимок не встаёт между записью и учётом.
+     */
+    private String advance(long tgId, CompiledSurvey survey, int idx, int answer, LongSupplier save) {
+        int next = survey.next(idx, answer);
+        funnel.answered(tgId, survey, idx, next, save);
+        db.saveProgress(tgId, next, null, null, null);
+        if (next >= survey.size()) {
+            long respId = stats.commitCompleted(survey.getId(), () -> db.finishAndCommit(tgId));
+            if (respId > 0) {
+                Metrics.COMPLETIONS.inc();
+                series.completed(survey.getId());
+            }
+            return "Спасибо! Анкетирование завершено.";
+        }
+        return "";
+    }
+
+    public boolean isCompleted(long tgId, String surveyId) {
+        return db.hasCompleted(tgId, surveyId) && !db.inDraft(tgId);
     }
 
     public Set<String> getMultiSelected(long tgId, String qId) {
         return new LinkedHashSet<>(db.getMultiSelected(tgId));
     }
 
+    private CompiledSurvey surveyOf(Map<String,Object> progress) {
+        Object v = progress.get("survey_version");
+        return registry.byVersion((String) progress.get("survey_id"), v == null ? 0 : (int) v);
+    }
+
     private List<String> getMultiSelectedInternal(long tgId) {
         return new ArrayList<>(db.getMultiSelected(tgId));
     }
@@ -174,13 +228,4 @@ public class SurveyService {
         }
         return labels;
     }
-
-    /* ===== Helpers for UI text ===== */
-    public static String renderSelectedList(Question q, Collection<String> selected) {
-        if (selected == null || selected.isEmpty()) return "Ответы: —";
-        Map<String,String> dict = q.getOptions().stream().collect(Collectors.toMap(Option::getId, Option::getText));
-        List<String> labels = new ArrayList<>();
-        for (String id : selected) labels.add(id.startsWith("Другое: ") ? id : dict.getOrDefault(id, id));
-        return "Ответы: " + String.join(", ", labels);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,41 @@
+package ru.phosagro.survey.util;
+
+/** HTML-экранирование для ParseMode.HTML Telegram: один проход, без промежуточных строк. */
+public final class Html {
+    private Html() {}
+
+    public static String escape(String s) {
+        if (s == null) return "";
+        int first = firstSpecial(s);
+        if (first < 0) return s; // типичный случай — экранировать нечего
+        return escape(s, new StringBuilder(s.length() + 16)).toString();
+    }
+
+    /** Дописывает экранированный {@code s} в {@code out}; неизменённые участки копируются блоками. */
+    public static StringBuilder escape(CharSequence s, StringBuilder out) {
+        if (s == null) return out;
+        int len = s.length(), start = 0;
+        for (int i = 0; i < len; i++) {
+            String rep;
+            switch (s.charAt(i)) {
+                case '&' -> rep = "&amp;";
+                case '<' -> rep = "&lt;";
+                case '>' -> rep = "&gt;";
+                default -> { continue; }
+            }
+            if (i > start) out.append(s, start, i);
+            out.append(rep);
+            start = i + 1;
+        }
+        if (start < len) out.append(s, start, len);
+        return out;
+    }
+
+    private static int firstSpecial(CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '&' || c == '<' || c == '>') return i;
+        }
+        return -1;
+    }
+}
@@ -2,6 +2,7 @@ package ru.phosagro.survey.util;
 
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+import ru.phosagro.survey.model.CompiledSurvey;
 import ru.phosagro.survey.model.Option;
 import ru.phosagro.survey.model.Question;
 import ru.phosagro.survey.model.QuestionType;
@@ -12,20 +13,40 @@ public class Keyboards {
 
     /* ===== Старт ===== */
 
-    public static InlineKeyboardMarkup startKeyboard(String caption) {
+    public static InlineKeyboardMarkup startKeyboard(String caption, String surveyId) {
         return new InlineKeyboardMarkup(
-                new InlineKeyboardButton(caption).callbackData("start")
+                new InlineKeyboardButton(caption).callbackData("start:" + surveyId)
         );
     }
 
     /* ===== Админ меню ===== */
 
-    public static InlineKeyboardMarkup adminMenu() {
-        return new InlineKeyboardMarkup(
+    /** Меню админа; при нескольких анкетах — ещё и переключатель анкеты (выбранная отмечена ✅). */
+    public static InlineKeyboardMarkup adminMenu(List<CompiledSurvey> surveys, String selectedId) {
+        List<InlineKeyboardButton[]> rows = new ArrayList<>();
+        rows.add(new InlineKeyboardButton[]{
                 new InlineKeyboardButton("🔢 Общая статистика").callbackData("admin:stats"),
                 new InlineKeyboardButton("👥 Пользователи").callbackData("admin:users"),
                 new InlineKeyboardButton("📊 Excel-статистика").callbackData("admin:export")
-        );
+        });
+        rows.add(new InlineKeyboardButton[]{
+                new InlineKeyboardButton("📉 Воронка").callbackData("admin:funnel"),
+                new InlineKeyboardButton("🔀 Кросс-таблицы").callbackData("admin:crosstab"),
+                new InlineKeyboardButton("🗂 Сырые данные (CSV)").callbackData("admin:raw")
+        });
+        rows.add(new InlineKeyboardButton[]{
+                new InlineKeyboardButton("⏱ Производительность").callbackData("admin:perf")
+        });
+        if (surveys != null && surveys.size() > 1) {
+            for (CompiledSurvey s : surveys) {
+                String title = s.getTitle() == null || s.getTitle().isBlank() ? s.getId() : s.getTitle();
+                String mark = s.getId().equals(selectedId) ? "✅ " : "📋 ";
+                rows.add(new InlineKeyboardButton[]{
+                        new InlineKeyboardButton(mark + title).callbackData("admin:survey:" + s.getId())
+                });
+            }
+        }
+        return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
     }
 
     /** Навигация по странице статистики (много текста) */
@@ -43,6 +64,13 @@ public class Keyboards {
         return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
     }
 
+    /** Следующая страница результатов /find */
+    public static InlineKeyboardMarkup adminFindNext(int nextPageIndex) {
+        return new InlineKeyboardMarkup(
+                new InlineKeyboardButton("▶️ Ещё результаты").callbackData("admin:find:" + nextPageIndex)
+        );
+    }
+
     /** Кнопка «следующая страница» в списке пользователей */
     public static InlineKeyboardMarkup adminUsersNext(int nextPageIndex) {
         return new InlineKeyboardMarkup(
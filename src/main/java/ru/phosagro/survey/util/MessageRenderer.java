@@ -0,0 +1,76 @@
+package ru.phosagro.survey.util;
+
+import ru.phosagro.survey.model.CompiledSurvey;
+import ru.phosagro.survey.model.Question;
+import ru.phosagro.survey.model.QuestionType;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Сборка HTML-текстов сообщений с вопросами.
+ * Заголовки берутся готовыми из {@link CompiledSurvey}, остальное дописывается в переиспользуемый буфер потока.
+ */
+public class MessageRenderer {
+    private static final int MAX_RETAINED = 8 * 1024; // слишком разросшийся буфер не держим
+    private static final ThreadLocal<StringBuilder> BUF = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+    /** Текст вопроса с подсказкой и счётчиком/списком для MULTI. */
+    public static String question(CompiledSurvey survey, Question q, Collection<String> selected) {
+        int ord = survey.ordinalOf(q.getId());
+        StringBuilder sb = buffer();
+        if (ord >= 0) sb.append(survey.header(ord));
+        else Html.escape(q.getText(), sb);
+
+        if (q.getType() == QuestionType.MULTI) {
+            int n = selected == null ? 0 : selected.size();
+            sb.append("\n\nВыбрано: ").append(n).append(" / ").append(q.getMax()).append("\nОтветы: ");
+            if (n == 0) sb.append('—');
+            else {
+                boolean first = true;
+                for (String id : selected) {
+                    if (!first) sb.append(", ");
+                    first = false;
+                    String label = id.startsWith("Другое: ") || ord < 0 ? id : survey.optionText(ord, id);
+                    Html.escape(label, sb);
+                }
+            }
+        }
+        return release(sb);
+    }
+
+    /** «Вопрос + Ваш ответ: <b>…</b>» для SINGLE / RATING / TEXT. */
+    public static String answered(CompiledSurvey survey, Question q, String answer) {
+        StringBuilder sb = prefix(survey, q).append("\n\n<b>Ваш ответ:</b> <b>");
+        Html.escape(answer, sb).append("</b>");
+        return release(sb);
+    }
+
+    /** «Вопрос + Ваши ответы: <b>a</b>, <b>b</b>» для MULTI. */
+    public static String answeredMulti(CompiledSurvey survey, Question q, List<String> labels) {
+        StringBuilder sb = prefix(survey, q).append("\n\n<b>Ваши ответы:</b> ");
+        for (int i = 0; i < labels.size(); i++) {
+            if (i > 0) sb.append(", ");
+            Html.escape(labels.get(i), sb.append("<b>")).append("</b>");
+        }
+        return release(sb);
+    }
+
+    private static StringBuilder prefix(CompiledSurvey survey, Question q) {
+        int ord = survey.ordinalOf(q.getId());
+        StringBuilder sb = buffer();
+        return ord >= 0 ? sb.append(survey.escapedText(ord)) : Html.escape(q.getText(), sb);
+    }
+
+    private static StringBuilder buffer() {
+        StringBuilder sb = BUF.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    private static String release(StringBuilder sb) {
+        String s = sb.toString();
+        if (sb.capacity() > MAX_RETAINED) BUF.remove();
+        return s;
+    }
+}